@@ -0,0 +1,292 @@
+/*
+	Multi-jurisdiction mode: income split across states and localities by work days.
+	An allocation lists where the work was done, e.g. "CA:120;NY:110;NY/new_york_city:110" (days). The total of the
+	state days is the year's work; each state taxes its share of the income, days / total days, on its own schedule,
+	and each locality taxes its share on its local schedule (see LocalTaxRegistry). A locality without days gets all
+	of its state's days, and a single state without days gets the whole income. Federal tax is always on the whole
+	income. There is no resident-state credit: every jurisdiction taxes only the income apportioned to it.
+
+	An Allocation is compiled once into parallel arrays of jurisdictions (or local indexes) and day counts, and
+	compiled allocations are kept by their text. Records that repeat an allocation resolve no names and parse
+	nothing; each extra jurisdiction costs one multiply and one schedule lookup in the shared tables. State taxes go
+	through the same TaxCalculator chain as batch mode, so --exact and --cache apply to them.
+
+	Usage: java TaxEstimator --apportion <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]
+	Input records are filing_status,allocation,taxable_income[,year], the allocation in the state column; a plain state abbreviation works too.
+	Local schedules are always read from --data-dir, also with --snapshot.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public final class Apportionment {
+    static final String CSV_HEADER = "filing_status,allocation,taxable_income,federal_tax,state_tax,local_tax,total_tax,effective_tax_rate";
+
+    // Cap on compiled allocations kept by text; a file of all-distinct allocations should not grow the map forever
+    static final int MAX_CACHED_ALLOCATIONS = 1 << 16;
+
+    final TaxCalculator calculator;
+    final LocalTaxRegistry locals;
+    final HashMap<String, Allocation> allocations_by_text = new HashMap<String, Allocation>();
+
+    public static final class Allocation {
+        final Jurisdiction[] states;
+        final long[] stateDays;
+        final int[] localIndexes;
+        final long[] localDays;
+        final long totalDays;
+
+        Allocation(Jurisdiction[] states, long[] stateDays, int[] localIndexes, long[] localDays) {
+            this.states = states;
+            this.stateDays = stateDays;
+            this.localIndexes = localIndexes;
+            this.localDays = localDays;
+
+            long total_days = 0;
+            for (long days : stateDays) {
+                total_days += days;
+            }
+            this.totalDays = total_days;
+        }
+
+        public static Allocation parse(String text, LocalTaxRegistry locals) {
+            // Throws IllegalArgumentException with the reason when the allocation cannot be used
+            ArrayList<Jurisdiction> states = new ArrayList<Jurisdiction>();
+            ArrayList<Long> state_days = new ArrayList<Long>();
+            ArrayList<Integer> local_indexes = new ArrayList<Integer>();
+            ArrayList<Long> local_days = new ArrayList<Long>();
+
+            boolean missing_days = false;
+
+            for (String part : text.split(";")) {
+                int colon = part.indexOf(':');
+                String name = (colon < 0 ? part : part.substring(0, colon)).trim();
+                long days = colon < 0 ? -1 : BatchEstimator.parseTaxableIncome(part.substring(colon + 1));
+                if (colon >= 0 && days < 0) {
+                    throw new IllegalArgumentException("Invalid day count in \"" + part.trim() + "\"");
+                }
+
+                if (name.indexOf('/') >= 0) {
+                    int local_index = locals.indexOf(name);
+                    if (local_index < 0) {
+                        throw new IllegalArgumentException("No local tax data for " + name);
+                    }
+                    local_indexes.add(local_index);
+                    local_days.add(days);
+                    continue;
+                }
+
+                Jurisdiction state = Jurisdiction.fromAbbreviation(name);
+                if (state == null) {
+                    throw new IllegalArgumentException("Unknown state " + name);
+                }
+                if (states.contains(state)) {
+                    throw new IllegalArgumentException(state.name() + " is listed twice");
+                }
+                missing_days |= days < 0;
+                states.add(state);
+                state_days.add(days < 0 ? 1 : days);
+            }
+
+            long total_days = 0;
+            for (long days : state_days) {
+                total_days += days;
+            }
+            if (states.isEmpty() || total_days == 0) {
+                throw new IllegalArgumentException("An allocation needs at least one state with work days");
+            }
+            if (missing_days && states.size() > 1) {
+                throw new IllegalArgumentException("Every state needs its work days when income is split");
+            }
+
+            for (int part_index = 0; part_index < local_indexes.size(); part_index++) {
+                Jurisdiction state = locals.state(local_indexes.get(part_index));
+                int state_index = states.indexOf(state);
+                if (state_index < 0) {
+                    throw new IllegalArgumentException(locals.name(local_indexes.get(part_index)) + " is outside every listed state");
+                }
+                if (local_days.get(part_index) < 0) {
+                    local_days.set(part_index, state_days.get(state_index));
+                }
+                if (local_days.get(part_index) > state_days.get(state_index)) {
+                    throw new IllegalArgumentException(locals.name(local_indexes.get(part_index)) + " has more days than " + state.name());
+                }
+            }
+
+            return new Allocation(states.toArray(new Jurisdiction[0]), state_days.stream().mapToLong(Long::longValue).toArray(),
+                    local_indexes.stream().mapToInt(Integer::intValue).toArray(), local_days.stream().mapToLong(Long::longValue).toArray());
+        }
+
+        public long share(long taxableIncome, long days) {
+            // The whole-dollar part of the income earned in days out of totalDays
+            return days == totalDays ? taxableIncome : Math.round((double) taxableIncome * days / totalDays);
+        }
+
+        public int stateCount() {
+            return states.length;
+        }
+
+        public int localCount() {
+            return localIndexes.length;
+        }
+    }
+
+    // Taxes for one record, by part in the allocation's order
+    public static final class Estimate {
+        double federalTax;
+        final double[] stateTaxes;
+        final double[] localTaxes;
+
+        Estimate(Allocation allocation) {
+            stateTaxes = new double[allocation.stateCount()];
+            localTaxes = new double[allocation.localCount()];
+        }
+
+        public double stateTax() {
+            double state_tax = 0.0;
+            for (double tax : stateTaxes) {
+                state_tax += tax;
+            }
+            return state_tax;
+        }
+
+        public double localTax() {
+            double local_tax = 0.0;
+            for (double tax : localTaxes) {
+                local_tax += tax;
+            }
+            return local_tax;
+        }
+    }
+
+    public Apportionment(TaxCalculator calculator, LocalTaxRegistry locals) {
+        this.calculator = calculator;
+        this.locals = locals;
+    }
+
+    public Allocation allocation(String text) {
+        Allocation allocation = allocations_by_text.get(text);
+        if (allocation == null) {
+            allocation = Allocation.parse(text, locals);
+            if (allocations_by_text.size() >= MAX_CACHED_ALLOCATIONS) {
+                allocations_by_text.clear();
+            }
+            allocations_by_text.put(text, allocation);
+        }
+        return allocation;
+    }
+
+    public boolean has(int year, Allocation allocation) {
+        if (!calculator.has(year, Jurisdiction.FEDERAL)) {
+            return false;
+        }
+        for (Jurisdiction state : allocation.states) {
+            if (!calculator.has(year, state)) {
+                return false;
+            }
+        }
+        for (int local_index : allocation.localIndexes) {
+            if (!locals.has(year, local_index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Estimate estimate(int year, Allocation allocation, FilingStatus filingStatus, long taxableIncome) {
+        Estimate estimate = new Estimate(allocation);
+        estimate.federalTax = calculator.calculateTax(year, Jurisdiction.FEDERAL, filingStatus, taxableIncome);
+        for (int part = 0; part < allocation.states.length; part++) {
+            estimate.stateTaxes[part] = calculator.calculateTax(year, allocation.states[part], filingStatus, allocation.share(taxableIncome, allocation.stateDays[part]));
+        }
+        for (int part = 0; part < allocation.localIndexes.length; part++) {
+            estimate.localTaxes[part] = locals.calculateTax(year, allocation.localIndexes[part], filingStatus, allocation.share(taxableIncome, allocation.localDays[part]));
+        }
+        return estimate;
+    }
+
+    static void encode(ResultWriter.Encoder encoder, FilingStatus filingStatus, String allocationText, long taxableIncome, Allocation allocation, Estimate estimate, LocalTaxRegistry locals, boolean jsonOutput) {
+        double state_tax = estimate.stateTax();
+        double local_tax = estimate.localTax();
+        double total_tax = estimate.federalTax + state_tax + local_tax;
+        double effective_tax_rate = taxableIncome == 0 ? 0.0 : (total_tax / taxableIncome) * 100;
+
+        if (jsonOutput) {
+            encoder.append("{\"filing_status\":\"").appendFilingStatus(filingStatus);
+            encoder.append("\",\"allocation\":\"").append(allocationText);
+            encoder.append("\",\"taxable_income\":").append(taxableIncome);
+            encoder.append(",\"federal_tax\":").appendCents(estimate.federalTax);
+            encoder.append(",\"state_tax\":").appendCents(state_tax);
+            encoder.append(",\"local_tax\":").appendCents(local_tax);
+            encoder.append(",\"total_tax\":").appendCents(total_tax);
+            encoder.append(",\"effective_tax_rate\":").appendCents(effective_tax_rate);
+            encoder.append(",\"states\":{");
+            for (int part = 0; part < allocation.states.length; part++) {
+                encoder.append(part == 0 ? "\"" : ",\"").append(allocation.states[part].name()).append("\":").appendCents(estimate.stateTaxes[part]);
+            }
+            encoder.append("},\"locals\":{");
+            for (int part = 0; part < allocation.localIndexes.length; part++) {
+                encoder.append(part == 0 ? "\"" : ",\"").append(locals.name(allocation.localIndexes[part])).append("\":").appendCents(estimate.localTaxes[part]);
+            }
+            encoder.append("}}\n");
+            return;
+        }
+
+        encoder.appendFilingStatus(filingStatus).append(',').append(allocationText).append(',').append(taxableIncome);
+        encoder.append(',').appendCents(estimate.federalTax);
+        encoder.append(',').appendCents(state_tax);
+        encoder.append(',').appendCents(local_tax);
+        encoder.append(',').appendCents(total_tax);
+        encoder.append(',').appendCents(effective_tax_rate).append('\n');
+    }
+
+    // JSONL field names, in the order of the CSV columns; the first three are required
+    static final String[] FIELD_NAMES = { "filing_status", "allocation", "taxable_income", "year" };
+
+    boolean apportionRecord(String[] fields, ResultWriter.Encoder encoder, int defaultYear, boolean jsonOutput) {
+        FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+        String allocation_text = fields[1].trim();
+        long taxableIncome = BatchEstimator.parseTaxableIncome(fields[2]);
+        int year = fields.length > 3 && !fields[3].trim().isEmpty() ? BatchEstimator.parseYear(fields[3]) : defaultYear;
+
+        // An allocation that cannot be used throws, which skips the record with the reason
+        Allocation allocation = allocation(allocation_text);
+
+        if (filingStatus == null || taxableIncome < 0 || year < 0 || !has(year, allocation)) {
+            return false;
+        }
+
+        encode(encoder, filingStatus, allocation_text, taxableIncome, allocation, estimate(year, allocation, filingStatus, taxableIncome), locals, jsonOutput);
+        return true;
+    }
+
+    public void run(String inputFile, String outputFile, int defaultYear, boolean gzip) throws IOException {
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        long startTime = System.nanoTime();
+
+        long[] counts = BatchEstimator.forEachRecord(inputFile, outputFile, gzip, CSV_HEADER, FIELD_NAMES, 3, (fields, encoder) -> apportionRecord(fields, encoder, defaultYear, jsonOutput));
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Processed " + counts[0] + " records (" + counts[1] + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--apportion" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--apportion");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --apportion <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]");
+            System.exit(-1);
+        }
+
+        int year = options.yearAt(2);
+
+        BatchEstimator.runOrExit(() -> {
+            BracketRegistry registry = options.loadRegistry(year);
+            LocalTaxRegistry locals = LocalTaxRegistry.load(options.dataDirectory, registry.years());
+            Apportionment apportionment = new Apportionment(options.calculator(registry), locals);
+            apportionment.run(options.positional(0), options.positional(1), year, options.hasFlag("--gzip"));
+        });
+    }
+}
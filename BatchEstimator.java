@@ -0,0 +1,445 @@
+/*
+	Batch mode for the Tax Estimator
+	Reads (filing status, state, taxable income) records from a CSV or JSONL file and writes
+	federal, state and total taxes plus the effective tax rate for every record.
+	A record may carry a fourth "year" field; it must be the default year or one of --years, as in the ParallelBatchEngine.
+
+	Usage: java TaxEstimator --batch <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--threads <n>] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--columnar] [--exact [--rounding <rules>]] [--gzip] [--checkpoint <file>] [--rejects <file>]
+	--threads > 1 (or --columnar / --exact / --snapshot) runs the ParallelBatchEngine instead of the single-threaded loop; it
+	preloads every jurisdiction for the default year and any --years from --data-dir (default tax_data/<year>/), or takes
+	them all from the --snapshot file without reading any JSON
+	--source fetches bracket files from another base URL or local directory instead of taxee's GitHub
+	An output file ending in .gz, or --gzip, writes gzip-compressed output (see ResultWriter)
+	--checkpoint makes the job resumable and --rejects collects the lines that could not be estimated; both run the
+	ParallelBatchEngine. A checkpointed job cannot write gzip output.
+*/
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class BatchEstimator {
+    static final String CSV_HEADER = "filing_status,state,taxable_income,federal_tax,state_tax,total_tax,effective_tax_rate";
+
+    int year;
+    BracketDataFetcher fetcher;
+    // Years a record may ask for: the default year plus any --years, as the registry path preloads them
+    HashSet<Integer> years;
+    HashMap<Integer, TaxEstimator> federal_estimators;
+    // Keyed by "<year> <state>"
+    HashMap<String, TaxEstimator> state_estimators;
+    HashSet<String> unavailable_states;
+    JSONParser jsonLineParser;
+    boolean gzip;
+
+    long records_processed;
+    long records_skipped;
+
+    public BatchEstimator(int year) {
+        this(year, new BracketDataFetcher(BracketSource.taxee(), BracketRegistry.defaultDataDirectory()));
+    }
+
+    public BatchEstimator(int year, BracketDataFetcher fetcher) {
+        this.year = year;
+        this.fetcher = fetcher;
+        years = new HashSet<Integer>();
+        years.add(year);
+        federal_estimators = new HashMap<Integer, TaxEstimator>();
+        state_estimators = new HashMap<String, TaxEstimator>();
+        unavailable_states = new HashSet<String>();
+        jsonLineParser = new JSONParser();
+    }
+
+    public BatchEstimator gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public BatchEstimator years(int[] years) {
+        for (int extra_year : years) {
+            this.years.add(extra_year);
+        }
+        return this;
+    }
+
+    public void loadFederalBrackets() throws IOException, ParseException {
+        // Only the default year's federal brackets are required up front; other years are loaded when a record needs them
+        federal_estimators.put(year, loadFederalBrackets(year));
+    }
+
+    TaxEstimator loadFederalBrackets(int federal_year) throws IOException, ParseException {
+        fetcher.fetch(federal_year, Jurisdiction.FEDERAL);
+        TaxEstimator federalEstimator = new TaxEstimator();
+        federalEstimator.load_federal_brackets_from_file(fetcher.cachedFile(federal_year, Jurisdiction.FEDERAL).toString());
+        return federalEstimator;
+    }
+
+    public TaxEstimator estimatorForState(String stateAbbr) {
+        return estimatorForState(year, stateAbbr);
+    }
+
+    public TaxEstimator estimatorForState(int record_year, String stateAbbr) {
+        // Each state's brackets are loaded the first time the (year, state) shows up and then kept for the rest of the run
+        String key = record_year + " " + stateAbbr;
+        TaxEstimator stateEstimator = state_estimators.get(key);
+        if (stateEstimator != null) {
+            return stateEstimator;
+        }
+
+        Jurisdiction state = Jurisdiction.fromAbbreviation(stateAbbr);
+        if (state == null || !years.contains(record_year) || unavailable_states.contains(key)) {
+            return null;
+        }
+
+        // A year or state whose brackets cannot be fetched or parsed is reported once; its records are skipped like invalid ones
+        try {
+            TaxEstimator federalEstimator = federal_estimators.get(record_year);
+            if (federalEstimator == null) {
+                federalEstimator = loadFederalBrackets(record_year);
+                federal_estimators.put(record_year, federalEstimator);
+            }
+
+            fetcher.fetch(record_year, state);
+
+            stateEstimator = new TaxEstimator();
+            stateEstimator.federal_brackets = federalEstimator.federal_brackets;
+            stateEstimator.load_selected_state_brackets_from_file(fetcher.cachedFile(record_year, state).toString());
+        }
+        catch (IOException | ParseException e) {
+            System.out.println("No usable tax bracket data for " + state.fileName() + " (" + record_year + "), skipping its records: " + e);
+            unavailable_states.add(key);
+            return null;
+        }
+        state_estimators.put(key, stateEstimator);
+
+        return stateEstimator;
+    }
+
+    public void run(String inputFile, String outputFile) throws IOException, ParseException {
+        boolean jsonInput = inputFile.endsWith(".jsonl") || inputFile.endsWith(".json");
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+
+        long startTime = System.nanoTime();
+
+        // Records are read and written one line at a time, so memory use does not grow with the input size
+        BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16);
+        ResultWriter writer = ResultWriter.open(outputFile, gzip);
+        ResultWriter.Encoder encoder = new ResultWriter.Encoder();
+
+        try {
+            if (!jsonOutput) {
+                writer.writeLine(CSV_HEADER);
+            }
+
+            String line;
+            long line_number = 0;
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = jsonInput ? splitJsonRecord(jsonLineParser, line) : splitCsvRecord(line);
+
+                if (fields == null) {
+                    System.out.println("Skipping malformed record on line " + line_number + ": " + line);
+                    records_skipped++;
+                    continue;
+                }
+
+                // Skip a CSV header row if there is one
+                if (!jsonInput && line_number == 1 && TaxEstimator.keyToFilingStatus(fields[0]) == null) {
+                    continue;
+                }
+
+                FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+                String stateAbbr = fields[1].trim().toUpperCase();
+                long taxableIncome = parseTaxableIncome(fields[2]);
+                int record_year = fields.length > 3 ? parseYear(fields[3]) : year;
+
+                TaxEstimator stateEstimator = record_year < 0 ? null : estimatorForState(record_year, stateAbbr);
+
+                if (filingStatus == null || stateEstimator == null || taxableIncome < 0) {
+                    System.out.println("Skipping invalid record on line " + line_number + ": " + line);
+                    records_skipped++;
+                    continue;
+                }
+
+                double federal_taxes = stateEstimator.calculateFederalTaxes(filingStatus, taxableIncome);
+                double state_taxes = stateEstimator.calculateSelectedStateTaxes(filingStatus, taxableIncome);
+                encoder.reset();
+                writer.write(encoder.appendResult(filingStatus, stateAbbr, taxableIncome, federal_taxes, state_taxes, jsonOutput));
+                records_processed++;
+                if (Metrics.ENABLED) {
+                    Metrics.count(Metrics.Counter.RECORDS_PROCESSED, stateEstimator.selected_state, 1);
+                }
+            }
+        }
+
+        finally {
+            reader.close();
+            writer.close();
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.count(Metrics.Counter.RECORDS_SKIPPED, null, records_skipped);
+        }
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Processed " + records_processed + " records (" + records_skipped + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+        System.out.println("Throughput: " + String.format("%.0f", records_processed / Math.max(elapsed_seconds, 1e-9)) + " records/second");
+    }
+
+    public static String formatResult(FilingStatus filingStatus, String stateAbbr, long taxableIncome, double federal_taxes, double state_taxes, boolean jsonOutput) {
+        double total_taxes = federal_taxes + state_taxes;
+        double effective_tax_rate = taxableIncome == 0 ? 0.0 : (total_taxes / taxableIncome) * 100;
+
+        String filing_status_key = TaxEstimator.filingStatusToKey(filingStatus);
+
+        if (jsonOutput) {
+            return String.format("{\"filing_status\":\"%s\",\"state\":\"%s\",\"taxable_income\":%d,\"federal_tax\":%.2f,\"state_tax\":%.2f,\"total_tax\":%.2f,\"effective_tax_rate\":%.2f}",
+                    filing_status_key, stateAbbr, taxableIncome, federal_taxes, state_taxes, total_taxes, effective_tax_rate);
+        }
+
+        return String.format("%s,%s,%d,%.2f,%.2f,%.2f,%.2f",
+                filing_status_key, stateAbbr, taxableIncome, federal_taxes, state_taxes, total_taxes, effective_tax_rate);
+    }
+
+    public static long parseTaxableIncome(String field) {
+        // Returns -1 for anything that is not a non-negative whole number
+        try {
+            return Long.parseLong(field.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static int parseYear(String field) {
+        // Returns -1 for anything that is not a plausible year
+        long year = parseTaxableIncome(field);
+        return year > 9999 ? -1 : (int) year;
+    }
+
+    public static String[] splitCsvRecord(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 3) {
+            return null;
+        }
+        return fields;
+    }
+
+    public static String[] splitJsonRecord(JSONParser jsonLineParser, String line) {
+        // Expected shape: {"filing_status": "single", "state": "CA", "taxable_income": 85000}, with an optional "year"
+        try {
+            JSONObject record = (JSONObject) jsonLineParser.parse(line);
+            Object filingStatus = record.get("filing_status");
+            Object state = record.get("state");
+            Object taxableIncome = record.get("taxable_income");
+
+            if (filingStatus == null || state == null || taxableIncome == null) {
+                return null;
+            }
+
+            Object year = record.get("year");
+            if (year != null) {
+                return new String[] { filingStatus.toString(), state.toString(), taxableIncome.toString(), year.toString() };
+            }
+
+            return new String[] { filingStatus.toString(), state.toString(), taxableIncome.toString() };
+        }
+        catch (ParseException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    public static String[] splitJsonRecord(JSONParser jsonLineParser, String line, String[] fieldNames, int requiredFields) {
+        // The named fields in order, with "" for a missing optional one, or null when one of the first requiredFields is missing
+        try {
+            JSONObject record = (JSONObject) jsonLineParser.parse(line);
+            String[] fields = new String[fieldNames.length];
+            for (int field_index = 0; field_index < fieldNames.length; field_index++) {
+                Object value = record.get(fieldNames[field_index]);
+                if (value == null && field_index < requiredFields) {
+                    return null;
+                }
+                fields[field_index] = value == null ? "" : value.toString();
+            }
+            return fields;
+        }
+        catch (ParseException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    static boolean isNumber(String field) {
+        try {
+            Double.parseDouble(field.trim());
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public interface RecordHandler {
+        // Appends the output of one record to the encoder and returns true, or returns false to skip it as invalid.
+        // An IllegalArgumentException or ArithmeticException skips the record too, with its message in the log line.
+        boolean handle(String[] fields, ResultWriter.Encoder encoder);
+    }
+
+    public static long[] forEachRecord(String inputFile, String outputFile, boolean gzip, String csvHeader, String[] fieldNames, int requiredFields, RecordHandler handler) throws IOException {
+        // The record loop of the modes that read a CSV or JSONL file and write one output per record (--gross-up,
+        // --compare, --apportion, --pipeline). JSONL records are read by fieldNames, CSV ones by position; a first CSV line
+        // whose third field is not a number is a header. Returns { records processed, records skipped }.
+        boolean jsonInput = inputFile.endsWith(".jsonl") || inputFile.endsWith(".json");
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        JSONParser jsonLineParser = new JSONParser();
+        long records_processed = 0;
+        long records_skipped = 0;
+
+        BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16);
+        ResultWriter writer = ResultWriter.open(outputFile, gzip);
+        ResultWriter.Encoder encoder = new ResultWriter.Encoder();
+
+        try {
+            if (!jsonOutput) {
+                writer.writeLine(csvHeader);
+            }
+
+            String line;
+            long line_number = 0;
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = jsonInput ? splitJsonRecord(jsonLineParser, line, fieldNames, requiredFields) : splitCsvRecord(line);
+
+                if (fields == null) {
+                    System.out.println("Skipping malformed record on line " + line_number + ": " + line);
+                    records_skipped++;
+                    continue;
+                }
+
+                // Skip a CSV header row if there is one
+                if (!jsonInput && line_number == 1 && !isNumber(fields[2])) {
+                    continue;
+                }
+
+                encoder.reset();
+                String reason = null;
+                boolean handled;
+                try {
+                    handled = handler.handle(fields, encoder);
+                }
+                catch (IllegalArgumentException | ArithmeticException e) {
+                    reason = e.getMessage();
+                    handled = false;
+                }
+
+                if (!handled) {
+                    System.out.println("Skipping invalid record on line " + line_number + (reason == null ? "" : " (" + reason + ")") + ": " + line);
+                    records_skipped++;
+                    continue;
+                }
+
+                writer.write(encoder);
+                records_processed++;
+            }
+        }
+
+        finally {
+            reader.close();
+            writer.close();
+        }
+
+        return new long[] { records_processed, records_skipped };
+    }
+
+    public interface Mode {
+        void run() throws IOException, ParseException;
+    }
+
+    public static void runOrExit(Mode mode) {
+        // The error handling every mode's main shares: report the failure and exit
+        try {
+            mode.run();
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--batch" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--batch", "--checkpoint", "--rejects");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --batch <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--threads <n>] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--columnar] [--exact [--rounding <rules>]] [--gzip] [--checkpoint <file>] [--rejects <file>]");
+            System.exit(-1);
+        }
+
+        String inputFile = options.positional(0);
+        String outputFile = options.positional(1);
+        int year = options.yearAt(2);
+        String checkpointFile = options.flag("--checkpoint", null);
+        String rejectsFile = options.flag("--rejects", null);
+
+        if (checkpointFile != null && (options.hasFlag("--gzip") || outputFile.endsWith(".gz") || (rejectsFile != null && rejectsFile.endsWith(".gz")))) {
+            System.out.println("--checkpoint appends to its output when resumed, which gzip output does not allow.");
+            System.exit(-1);
+        }
+
+        try {
+            // The single-threaded loop fetches and parses JSON per state, so a --snapshot run always goes through the registry
+            if (options.threads > 1 || options.hasFlag("--columnar") || options.exact || options.snapshotFile != null || checkpointFile != null || rejectsFile != null) {
+                BracketRegistry registry = options.loadRegistry(year);
+                ParallelBatchEngine engine = new ParallelBatchEngine(options.calculator(registry), year, options.threads).gzip(options.hasFlag("--gzip")).rejects(rejectsFile);
+                if (checkpointFile != null) {
+                    engine.checkpoint(Paths.get(checkpointFile));
+                }
+                if (options.hasFlag("--columnar") && options.exact) {
+                    System.out.println("--columnar works in floating point and is ignored with --exact.");
+                }
+                else if (options.hasFlag("--columnar")) {
+                    engine.columnar(new ColumnarTaxCalculator(registry));
+                }
+                engine.run(inputFile, outputFile);
+            }
+
+            else {
+                BatchEstimator batchEstimator = new BatchEstimator(year, new BracketDataFetcher(options.source, options.dataDirectory)).gzip(options.hasFlag("--gzip")).years(options.years(year));
+                batchEstimator.loadFederalBrackets();
+                batchEstimator.run(inputFile, outputFile);
+            }
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+	Progress journal of a checkpointed batch run (--checkpoint <file>).
+	The journal is a small memory-mapped file. After every chunk of input has been written out, the engine records
+	a checkpoint: the input byte offset and line number it got to, the output and reject file positions at that
+	point, and the record counters. A restarted job reads the last checkpoint, cuts the output and reject files back
+	to the recorded positions and continues reading the input from the recorded offset, so every input line ends
+	up in the output exactly once.
+
+	A checkpoint is a handful of stores into mapped memory, so it survives the process dying (an OutOfMemoryError, a
+	kill) without any system call. Every SYNC_INTERVAL_NANOS the engine also forces the output and the journal to disk,
+	which covers a machine going down (a checkpoint that reached the disk ahead of the output is caught on resume:
+	ResultWriter.resume refuses an output file shorter than the checkpoint). There are two checkpoint slots, written in turn and each with its own
+	sequence number and checksum, so a checkpoint torn by a crash leaves the previous one intact.
+
+	The journal remembers the input file's size and modification time and refuses to resume a different input. It is
+	deleted when the run completes.
+
+	Layout (big-endian, 192 bytes):
+	    int magic ("TXCJ"), int version, long inputSize, long inputModifiedMillis, padding up to byte 64
+	    two slots of 64 bytes: long sequence, long inputOffset, long nextLineNumber, long outputPosition,
+	                           long rejectsPosition, long recordsProcessed, long recordsSkipped, long checksum
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+public final class BatchJournal implements Closeable {
+    static final int MAGIC = 0x5458434A;
+    static final int VERSION = 1;
+    static final int SLOT_SIZE = 64;
+    static final int FIRST_SLOT = 64;
+    static final int FILE_SIZE = FIRST_SLOT + 2 * SLOT_SIZE;
+    static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    public static final class Checkpoint {
+        final long sequence;
+        public final long inputOffset;
+        public final long nextLineNumber;
+        public final long outputPosition;
+        public final long rejectsPosition;
+        public final long recordsProcessed;
+        public final long recordsSkipped;
+
+        Checkpoint(long sequence, long inputOffset, long nextLineNumber, long outputPosition, long rejectsPosition, long recordsProcessed, long recordsSkipped) {
+            this.sequence = sequence;
+            this.inputOffset = inputOffset;
+            this.nextLineNumber = nextLineNumber;
+            this.outputPosition = outputPosition;
+            this.rejectsPosition = rejectsPosition;
+            this.recordsProcessed = recordsProcessed;
+            this.recordsSkipped = recordsSkipped;
+        }
+    }
+
+    final Path journalFile;
+    final FileChannel channel;
+    final MappedByteBuffer mapped;
+    final Checkpoint resumeFrom;
+    long sequence;
+    long last_sync_nanos = System.nanoTime();
+
+    BatchJournal(Path journalFile, FileChannel channel, MappedByteBuffer mapped, Checkpoint resumeFrom) {
+        this.journalFile = journalFile;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.resumeFrom = resumeFrom;
+        this.sequence = resumeFrom == null ? 0 : resumeFrom.sequence;
+    }
+
+    public static BatchJournal open(Path journalFile, Path inputFile) throws IOException {
+        long input_size = Files.size(inputFile);
+        long input_modified = Files.getLastModifiedTime(inputFile).toMillis();
+        boolean existing = Files.exists(journalFile) && Files.size(journalFile) == FILE_SIZE;
+
+        FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+
+        Checkpoint resume_from = null;
+        if (existing && mapped.getInt(0) == MAGIC) {
+            if (mapped.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported batch journal version " + mapped.getInt(4) + " in " + journalFile);
+            }
+            if (mapped.getLong(8) != input_size || mapped.getLong(16) != input_modified) {
+                channel.close();
+                throw new IOException("The input changed since " + journalFile + " was written; delete the journal to start over");
+            }
+            Checkpoint first = readSlot(mapped, FIRST_SLOT);
+            Checkpoint second = readSlot(mapped, FIRST_SLOT + SLOT_SIZE);
+            resume_from = first == null ? second : second == null || first.sequence > second.sequence ? first : second;
+        }
+
+        if (resume_from == null) {
+            // A new job, or one that died before its first checkpoint
+            for (int position = 0; position < FILE_SIZE; position += 8) {
+                mapped.putLong(position, 0);
+            }
+            mapped.putInt(4, VERSION);
+            mapped.putLong(8, input_size);
+            mapped.putLong(16, input_modified);
+            // The magic goes in last, so a journal is never valid with a half-written header
+            mapped.putInt(0, MAGIC);
+            mapped.force();
+        }
+
+        return new BatchJournal(journalFile, channel, mapped, resume_from);
+    }
+
+    static Checkpoint readSlot(MappedByteBuffer mapped, int slot) {
+        long[] values = new long[7];
+        for (int field = 0; field < values.length; field++) {
+            values[field] = mapped.getLong(slot + field * 8);
+        }
+        if (values[0] == 0 || mapped.getLong(slot + 56) != checksum(values)) {
+            return null;
+        }
+        return new Checkpoint(values[0], values[1], values[2], values[3], values[4], values[5], values[6]);
+    }
+
+    static long checksum(long[] values) {
+        long checksum = 0x9E3779B97F4A7C15L;
+        for (long value : values) {
+            checksum = Long.rotateLeft(checksum ^ value, 23) * 0xBF58476D1CE4E5B9L;
+        }
+        return checksum;
+    }
+
+    public Checkpoint resumeFrom() {
+        // The last complete checkpoint of an earlier run of this job, or null for a fresh start
+        return resumeFrom;
+    }
+
+    public boolean syncDue() {
+        // True every SYNC_INTERVAL_NANOS, when the caller should force its files, record, and then call sync
+        return System.nanoTime() - last_sync_nanos >= SYNC_INTERVAL_NANOS;
+    }
+
+    public void record(long inputOffset, long nextLineNumber, long outputPosition, long rejectsPosition, long recordsProcessed, long recordsSkipped) {
+        sequence++;
+        long[] values = { sequence, inputOffset, nextLineNumber, outputPosition, rejectsPosition, recordsProcessed, recordsSkipped };
+        int slot = FIRST_SLOT + (int) (sequence & 1) * SLOT_SIZE;
+        for (int field = 0; field < values.length; field++) {
+            mapped.putLong(slot + field * 8, values[field]);
+        }
+        mapped.putLong(slot + 56, checksum(values));
+    }
+
+    public void sync() {
+        // Callers force their output files before recording the checkpoint they sync, so it never points past forced data
+        mapped.force();
+        last_sync_nanos = System.nanoTime();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public void complete() throws IOException {
+        // A finished job needs no journal; running it again starts over
+        channel.close();
+        Files.deleteIfExists(journalFile);
+    }
+}
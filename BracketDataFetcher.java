@@ -0,0 +1,244 @@
+/*
+	Downloads taxee bracket files into a year-versioned local cache: <cache directory>/<year>/<file>.json.
+	Every downloaded file is parsed before it is installed, and it is moved into place atomically. A
+	<file>.json.sha256 checksum is written next to it. A cached file is reused while its checksum still
+	matches and it is younger than the maximum age. Otherwise it is fetched again. If a refresh fails,
+	the old file stays in use. Many files are fetched concurrently, and transient errors are retried
+	with backoff.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.parser.ParseException;
+
+public final class BracketDataFetcher {
+    public enum Outcome {
+        UP_TO_DATE,
+        DOWNLOADED,
+        STALE,
+        FAILED
+    }
+
+    final BracketSource source;
+    final Path cacheDirectory;
+
+    Duration maxAge = Duration.ofDays(30);
+    int maxAttempts = 3;
+    long initialBackoffMillis = 500;
+    int threads = 8;
+    boolean quiet = false;
+
+    public BracketDataFetcher(BracketSource source, Path cacheDirectory) {
+        this.source = source;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public BracketDataFetcher maxAge(Duration maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public BracketDataFetcher threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public BracketDataFetcher quiet(boolean quiet) {
+        this.quiet = quiet;
+        return this;
+    }
+
+    public Path cachedFile(int year, Jurisdiction jurisdiction) {
+        return cacheDirectory.resolve(Integer.toString(year)).resolve(jurisdiction.jsonFileName());
+    }
+
+    public EnumMap<Outcome, Integer> fetchAll(int[] years, Jurisdiction[] jurisdictions) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Outcome>> fetches = new ArrayList<Future<Outcome>>();
+
+        try {
+            for (int year : years) {
+                for (Jurisdiction jurisdiction : jurisdictions) {
+                    fetches.add(executor.submit(() -> fetch(year, jurisdiction)));
+                }
+            }
+
+            EnumMap<Outcome, Integer> outcomes = new EnumMap<Outcome, Integer>(Outcome.class);
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.put(outcome, 0);
+            }
+
+            for (Future<Outcome> fetch : fetches) {
+                Outcome outcome;
+                try {
+                    outcome = fetch.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    outcome = Outcome.FAILED;
+                }
+                catch (ExecutionException e) {
+                    outcome = Outcome.FAILED;
+                }
+                outcomes.put(outcome, outcomes.get(outcome) + 1);
+            }
+
+            return outcomes;
+        }
+
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public Outcome fetch(int year, Jurisdiction jurisdiction) {
+        Path cachedFile = cachedFile(year, jurisdiction);
+        boolean cached = Files.exists(cachedFile);
+
+        if (cached && isUpToDate(cachedFile)) {
+            return Outcome.UP_TO_DATE;
+        }
+
+        IOException lastError = null;
+        long backoffMillis = initialBackoffMillis;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            long started = Metrics.ENABLED ? System.nanoTime() : 0;
+            try {
+                install(year, jurisdiction, cachedFile);
+                if (Metrics.ENABLED) {
+                    Metrics.record(Metrics.Phase.DOWNLOAD, jurisdiction, started);
+                    Metrics.count(Metrics.Counter.DOWNLOADS, jurisdiction, 1);
+                }
+                if (!quiet) {
+                    System.out.println("Downloaded " + jurisdiction.jsonFileName() + " for " + year + " from " + source + ".");
+                }
+                return Outcome.DOWNLOADED;
+            }
+            catch (FileNotFoundException e) {
+                // Not there at the source; retrying will not help
+                lastError = e;
+                break;
+            }
+            catch (IOException e) {
+                lastError = e;
+            }
+
+            if (attempt < maxAttempts) {
+                try {
+                    Thread.sleep(backoffMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoffMillis *= 2;
+            }
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.count(Metrics.Counter.DOWNLOAD_FAILURES, jurisdiction, 1);
+        }
+        if (!quiet) {
+            System.out.println("Error occurred downloading " + jurisdiction.jsonFileName() + " for " + year + ": " + lastError);
+        }
+        return cached ? Outcome.STALE : Outcome.FAILED;
+    }
+
+    boolean isUpToDate(Path cachedFile) {
+        try {
+            FileTime modified = Files.getLastModifiedTime(cachedFile);
+            if (System.currentTimeMillis() - modified.toMillis() > maxAge.toMillis()) {
+                return false;
+            }
+
+            Path checksumFile = checksumFile(cachedFile);
+            String actualChecksum = sha256(Files.readAllBytes(cachedFile));
+
+            if (!Files.exists(checksumFile)) {
+                // A file placed in the cache by hand is adopted as-is
+                writeAtomically(checksumFile, actualChecksum.getBytes(StandardCharsets.US_ASCII));
+                return true;
+            }
+
+            return actualChecksum.equals(new String(Files.readAllBytes(checksumFile), StandardCharsets.US_ASCII).trim());
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    void install(int year, Jurisdiction jurisdiction, Path cachedFile) throws IOException {
+        byte[] contents;
+        InputStream in = source.open(year, jurisdiction.jsonFileName());
+        try {
+            contents = in.readAllBytes();
+        }
+        finally {
+            in.close();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.count(Metrics.Counter.DOWNLOAD_BYTES, jurisdiction, contents.length);
+        }
+
+        // Refuse to install anything the bracket parser cannot read
+        try {
+            new TaxeeJsonParser().parse(new InputStreamReader(new ByteArrayInputStream(contents), StandardCharsets.UTF_8), jurisdiction == Jurisdiction.FEDERAL);
+        }
+        catch (ParseException e) {
+            throw new IOException("Downloaded " + jurisdiction.jsonFileName() + " for " + year + " is not valid bracket data: " + e);
+        }
+
+        writeAtomically(cachedFile, contents);
+        writeAtomically(checksumFile(cachedFile), sha256(contents).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static void writeAtomically(Path target, byte[] contents) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temporaryFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        try {
+            Files.write(temporaryFile, contents);
+            Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    static Path checksumFile(Path cachedFile) {
+        return cachedFile.resolveSibling(cachedFile.getFileName() + ".sha256");
+    }
+
+    static String sha256(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte digestByte : digest) {
+                hex.append(Character.forDigit((digestByte >> 4) & 0xF, 16)).append(Character.forDigit(digestByte & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+	Preloaded bracket data for the federal government and all 51 state jurisdictions, for one or more tax years.
+	Schedules are kept in a [year][jurisdiction][filing status] array indexed by year offset and enum ordinals,
+	so a lookup never converts a filing status to a string or hashes anything.
+
+	Files are read from <data directory>/<year>/federal.json and <data directory>/<year>/<state>.json,
+	the same layout as taxee's src/statistics directory, after BracketDataFetcher has brought them up to date.
+*/
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.json.simple.parser.ParseException;
+
+public final class BracketRegistry implements TaxCalculator {
+    public static final String DEFAULT_DATA_DIRECTORY = "tax_data";
+
+    private final int firstYear;
+    private final int[] years;
+
+    // [year - firstYear][jurisdiction ordinal][filing status ordinal], null where a year or jurisdiction is not loaded
+    private final BracketSchedule[][][] schedules;
+
+    BracketRegistry(int firstYear, int[] years, BracketSchedule[][][] schedules) {
+        this.firstYear = firstYear;
+        this.years = years;
+        this.schedules = schedules;
+    }
+
+    public static BracketRegistry load(Path dataDirectory, int[] years) throws IOException, ParseException {
+        return load(dataDirectory, years, BracketSource.taxee());
+    }
+
+    public static BracketRegistry load(Path dataDirectory, int[] years, BracketSource source) throws IOException, ParseException {
+        // Bring the local cache up to date for every year and jurisdiction at once before parsing anything
+        BracketDataFetcher fetcher = new BracketDataFetcher(source, dataDirectory);
+        fetcher.fetchAll(years, Jurisdiction.values());
+        return loadCached(fetcher, years);
+    }
+
+    static BracketRegistry loadCached(BracketDataFetcher fetcher, int[] years) throws IOException {
+        // Parses whatever the fetcher's cache holds, without checking it against the source first
+        int[] sortedYears = years.clone();
+        Arrays.sort(sortedYears);
+        int firstYear = sortedYears[0];
+        int lastYear = sortedYears[sortedYears.length - 1];
+
+        BracketSchedule[][][] schedules = new BracketSchedule[lastYear - firstYear + 1][][];
+        TaxeeJsonParser parser = new TaxeeJsonParser();
+
+        for (int year : sortedYears) {
+            BracketSchedule[][] schedules_for_year = new BracketSchedule[Jurisdiction.values().length][];
+
+            for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+                Path jsonFile = fetcher.cachedFile(year, jurisdiction);
+
+                long started = Metrics.ENABLED ? System.nanoTime() : 0;
+                try {
+                    schedules_for_year[jurisdiction.ordinal()] = parser.parse(jsonFile, jurisdiction == Jurisdiction.FEDERAL);
+                    if (Metrics.ENABLED) {
+                        Metrics.record(Metrics.Phase.PARSE, jurisdiction, started);
+                    }
+                }
+                catch (FileNotFoundException e) {
+                    // Lookups for this jurisdiction report it as missing instead of failing the whole load
+                    System.out.println("No tax bracket data found for " + jurisdiction.fileName() + " (" + year + "), skipping it.");
+                }
+                catch (ParseException e) {
+                    // Same for a corrupt file: one bad jurisdiction should not stop a batch run for all the others
+                    System.out.println("Could not parse " + jsonFile + " (" + e + "), skipping it.");
+                }
+            }
+
+            schedules[year - firstYear] = schedules_for_year;
+        }
+
+        return new BracketRegistry(firstYear, distinct(sortedYears), schedules);
+    }
+
+    static int[] distinct(int[] sortedYears) {
+        return Arrays.stream(sortedYears).distinct().toArray();
+    }
+
+    public int[] years() {
+        return years.clone();
+    }
+
+    public boolean hasYear(int year) {
+        return year >= firstYear && year - firstYear < schedules.length && schedules[year - firstYear] != null;
+    }
+
+    public boolean has(int year, Jurisdiction jurisdiction) {
+        return hasYear(year) && schedules[year - firstYear][jurisdiction.ordinal()] != null;
+    }
+
+    public BracketRegistry withSchedules(int year, Jurisdiction jurisdiction, BracketSchedule[] schedulesByFilingStatus) {
+        // Copy-on-write: only the arrays on the way to the replaced jurisdiction are copied, every other schedule is shared
+        if (!hasYear(year) || schedulesByFilingStatus.length != FilingStatus.values().length) {
+            throw new IllegalArgumentException("Cannot replace " + jurisdiction.fileName() + " brackets for " + year);
+        }
+        BracketSchedule[][][] new_schedules = schedules.clone();
+        new_schedules[year - firstYear] = schedules[year - firstYear].clone();
+        new_schedules[year - firstYear][jurisdiction.ordinal()] = schedulesByFilingStatus.clone();
+        return new BracketRegistry(firstYear, years, new_schedules);
+    }
+
+    public BracketSchedule schedule(int year, Jurisdiction jurisdiction, FilingStatus filingStatus) {
+        return schedules[year - firstYear][jurisdiction.ordinal()][filingStatus.ordinal()];
+    }
+
+    public double calculateTax(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        if (Metrics.ENABLED) {
+            long started = System.nanoTime();
+            double tax = schedules[year - firstYear][jurisdiction.ordinal()][filingStatus.ordinal()].calculateTax(taxableIncome);
+            Metrics.record(Metrics.Phase.CALCULATE, jurisdiction, started);
+            return tax;
+        }
+        return schedules[year - firstYear][jurisdiction.ordinal()][filingStatus.ordinal()].calculateTax(taxableIncome);
+    }
+
+    public static Path defaultDataDirectory() {
+        return Paths.get(DEFAULT_DATA_DIRECTORY);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+	Compiled, immutable tax bracket schedule for one jurisdiction and filing status.
+	The brackets are stored in primitive arrays together with the tax owed at the start of
+	each bracket, so a lookup is a binary search over the bracket tops plus one multiply-add.
+	Instances never change after construction and can be shared between threads.
+
+	A schedule also carries the standard deduction and personal exemption taxee lists next to the
+	brackets. calculateTax ignores them; TaxPipeline subtracts them from gross income first.
+*/
+
+import java.util.Arrays;
+
+public final class BracketSchedule {
+    public static final BracketSchedule EMPTY = new BracketSchedule(new long[0], new long[0], new double[0]);
+
+    // bracketLow / bracketHigh follow the taxee layout used by TaxEstimator: the next bracket starts
+    // one dollar above the previous bracket's top, and the last bracket's high is 0 (no upper limit)
+    private final long[] bracketLows;
+    private final long[] bracketHighs;
+    private final double[] taxRates;
+    private final double[] rateFractions;
+    private final double[] cumulativeTax;
+    private final long standardDeduction;
+    private final long personalExemption;
+
+    public BracketSchedule(long[] bracketLows, long[] bracketHighs, double[] taxRates) {
+        this(bracketLows, bracketHighs, taxRates, 0, 0);
+    }
+
+    public BracketSchedule(long[] bracketLows, long[] bracketHighs, double[] taxRates, long standardDeduction, long personalExemption) {
+        if (bracketLows.length != bracketHighs.length || bracketLows.length != taxRates.length) {
+            throw new IllegalArgumentException("Bracket arrays must all be the same length");
+        }
+
+        this.bracketLows = bracketLows.clone();
+        this.bracketHighs = bracketHighs.clone();
+        this.taxRates = taxRates.clone();
+        this.rateFractions = new double[taxRates.length];
+        this.cumulativeTax = new double[taxRates.length];
+        this.standardDeduction = standardDeduction;
+        this.personalExemption = personalExemption;
+
+        // Accumulate in the same order and with the same operations as the original bracket walk,
+        // so the results are identical to it, not just close
+        double taxValue = 0.0;
+        for (int bracket_index = 0; bracket_index < taxRates.length; bracket_index++) {
+            rateFractions[bracket_index] = taxRates[bracket_index] / 100;
+            cumulativeTax[bracket_index] = taxValue;
+            taxValue = taxValue + rateFractions[bracket_index] * (this.bracketHighs[bracket_index] - this.bracketLows[bracket_index]);
+        }
+    }
+
+    public BracketSchedule withAllowances(long standardDeduction, long personalExemption) {
+        if (standardDeduction == this.standardDeduction && personalExemption == this.personalExemption) {
+            return this;
+        }
+        return new BracketSchedule(bracketLows, bracketHighs, taxRates, standardDeduction, personalExemption);
+    }
+
+    public long standardDeduction() {
+        return standardDeduction;
+    }
+
+    public long personalExemption() {
+        return personalExemption;
+    }
+
+    public int size() {
+        return taxRates.length;
+    }
+
+    public long bracketLow(int bracket_index) {
+        return bracketLows[bracket_index];
+    }
+
+    public long bracketHigh(int bracket_index) {
+        return bracketHighs[bracket_index];
+    }
+
+    public double taxRate(int bracket_index) {
+        return taxRates[bracket_index];
+    }
+
+    public double rateFraction(int bracket_index) {
+        return rateFractions[bracket_index];
+    }
+
+    public double cumulativeTaxAt(int bracket_index) {
+        return cumulativeTax[bracket_index];
+    }
+
+    public boolean isLastBracket(int bracket_index) {
+        return bracket_index == taxRates.length - 1;
+    }
+
+    public int bracketIndexFor(long taxableIncome) {
+        // First bracket whose top is at or above the income; anything past the last top falls in the last bracket
+        int low = 0;
+        int high = taxRates.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (taxableIncome <= bracketHighs[middle]) {
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    public double calculateTax(long taxableIncome) {
+        if (taxRates.length == 0) {
+            return 0.0;
+        }
+
+        int bracket_index = bracketIndexFor(taxableIncome);
+        return cumulativeTax[bracket_index] + rateFractions[bracket_index] * (taxableIncome - bracketLows[bracket_index]);
+    }
+
+    public double marginalRate(long taxableIncome) {
+        if (taxRates.length == 0) {
+            return 0.0;
+        }
+        return taxRates[bracketIndexFor(taxableIncome)];
+    }
+
+    public long firstChangedIncome(BracketSchedule other) {
+        // Lowest income whose tax can differ between the two schedules, or Long.MAX_VALUE when none can.
+        // Below it both walk the same brackets with the same cumulative taxes, so results are identical bit for bit.
+        int shared = Math.min(taxRates.length, other.taxRates.length);
+        if (taxRates.length == 0 || other.taxRates.length == 0) {
+            return shared == 0 && taxRates.length == other.taxRates.length ? Long.MAX_VALUE : 0;
+        }
+
+        for (int bracket_index = 0; bracket_index < shared; bracket_index++) {
+            if (bracketLows[bracket_index] != other.bracketLows[bracket_index] || taxRates[bracket_index] != other.taxRates[bracket_index]) {
+                // Every income past the previous (shared) top lands in this bracket, whose tax now differs
+                return bracket_index == 0 ? 0 : bracketHighs[bracket_index - 1] + 1;
+            }
+            long high = isLastBracket(bracket_index) ? Long.MAX_VALUE : bracketHighs[bracket_index];
+            long other_high = other.isLastBracket(bracket_index) ? Long.MAX_VALUE : other.bracketHighs[bracket_index];
+            if (high != other_high) {
+                // Only where the bracket ends moved: incomes up to the lower top still land in this same bracket
+                return Math.min(high, other_high) + 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof BracketSchedule)) {
+            return false;
+        }
+        BracketSchedule otherSchedule = (BracketSchedule) other;
+        return Arrays.equals(bracketLows, otherSchedule.bracketLows)
+                && Arrays.equals(bracketHighs, otherSchedule.bracketHighs)
+                && Arrays.equals(taxRates, otherSchedule.taxRates)
+                && standardDeduction == otherSchedule.standardDeduction
+                && personalExemption == otherSchedule.personalExemption;
+    }
+
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(bracketHighs) + Arrays.hashCode(taxRates)) + Long.hashCode(standardDeduction + 31 * personalExemption);
+    }
+
+    public String toString() {
+        StringBuilder description = new StringBuilder("BracketSchedule: [");
+        for (int bracket_index = 0; bracket_index < taxRates.length; bracket_index++) {
+            if (bracket_index > 0) {
+                description.append(", ");
+            }
+            description.append(String.format("{taxRate: %f, bracketLow: %d, bracketHigh: %d}", taxRates[bracket_index], bracketLows[bracket_index], bracketHighs[bracket_index]));
+        }
+        description.append("]");
+        if (standardDeduction != 0 || personalExemption != 0) {
+            description.append(String.format(", standardDeduction: %d, personalExemption: %d", standardDeduction, personalExemption));
+        }
+        return description.toString();
+    }
+}
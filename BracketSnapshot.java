@@ -0,0 +1,306 @@
+/*
+	Compact binary snapshot of a BracketRegistry.
+	The compiler parses the downloaded taxee JSON once and writes every schedule into one versioned file.
+	The loader memory-maps that file and rebuilds the registry straight from the mapped bytes, so
+	short-lived runs start without touching any JSON.
+	After compiling, the compiler reports how long a new JVM takes to start and load the same years from the JSON files
+	and from the snapshot, each measured in separate launches.
+
+	Layout (big-endian):
+	    int magic ("TXBS"), int version, int firstYear, int yearSlots, int jurisdictionCount, int filingStatusCount
+	    for every year slot:           byte present
+	      for every jurisdiction:      byte present
+	        for every filing status:   int bracketCount, then bracketCount x (long bracketLow, long bracketHigh, double taxRate),
+	                                   then long standardDeduction, long personalExemption (since version 2)
+
+	Usage: java TaxEstimator --compile-snapshot <snapshot file> <year>[,<year>...] [--data-dir <dir>] [--source <url|dir>]
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public final class BracketSnapshot {
+    static final int MAGIC = 0x54584253;
+    static final int VERSION = 2;
+    static final int TIMED_LAUNCHES = 3;
+
+    private BracketSnapshot() {
+    }
+
+    public static void write(BracketRegistry registry, Path snapshotFile) throws IOException {
+        // Written to a temporary file first and moved into place, so a reader never maps a half-written snapshot
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+
+        OutputStream out = Files.newOutputStream(temporaryFile);
+        try {
+            write(registry, out);
+        }
+        finally {
+            out.close();
+        }
+
+        Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void write(BracketRegistry registry, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+
+        int[] years = registry.years();
+        int firstYear = years[0];
+        int yearSlots = years[years.length - 1] - firstYear + 1;
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(firstYear);
+        data.writeInt(yearSlots);
+        data.writeInt(Jurisdiction.values().length);
+        data.writeInt(FilingStatus.values().length);
+
+        for (int year = firstYear; year < firstYear + yearSlots; year++) {
+            data.writeByte(registry.hasYear(year) ? 1 : 0);
+            if (!registry.hasYear(year)) {
+                continue;
+            }
+
+            for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+                data.writeByte(registry.has(year, jurisdiction) ? 1 : 0);
+                if (!registry.has(year, jurisdiction)) {
+                    continue;
+                }
+
+                for (FilingStatus filingStatus : FilingStatus.values()) {
+                    BracketSchedule schedule = registry.schedule(year, jurisdiction, filingStatus);
+                    data.writeInt(schedule.size());
+                    for (int bracket_index = 0; bracket_index < schedule.size(); bracket_index++) {
+                        data.writeLong(schedule.bracketLow(bracket_index));
+                        data.writeLong(schedule.bracketHigh(bracket_index));
+                        data.writeDouble(schedule.taxRate(bracket_index));
+                    }
+                    data.writeLong(schedule.standardDeduction());
+                    data.writeLong(schedule.personalExemption());
+                }
+            }
+        }
+
+        data.flush();
+    }
+
+    public static BracketRegistry load(Path snapshotFile) throws IOException {
+        FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(mapped);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public static BracketRegistry read(ByteBuffer buffer) throws IOException {
+        // A truncated or corrupt file runs out of bytes somewhere in the middle; that is reported like any unreadable file
+        try {
+            return readSchedules(buffer);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Bracket snapshot is truncated or corrupt: it ends at byte " + buffer.limit() + " in the middle of a schedule");
+        }
+    }
+
+    static BracketRegistry readSchedules(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 24 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a bracket snapshot");
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported bracket snapshot version " + version + " (expected " + VERSION + ")");
+        }
+
+        int firstYear = buffer.getInt();
+        int yearSlots = buffer.getInt();
+        int jurisdictionCount = buffer.getInt();
+        int filingStatusCount = buffer.getInt();
+
+        if (jurisdictionCount != Jurisdiction.values().length || filingStatusCount != FilingStatus.values().length) {
+            throw new IOException("Bracket snapshot was written for a different set of jurisdictions or filing statuses");
+        }
+        if (yearSlots < 0 || yearSlots > buffer.remaining()) {
+            throw new IOException("Bracket snapshot is corrupt: " + yearSlots + " year slots in " + buffer.limit() + " bytes");
+        }
+
+        BracketSchedule[][][] schedules = new BracketSchedule[yearSlots][][];
+        int loadedYears = 0;
+
+        for (int year_slot = 0; year_slot < yearSlots; year_slot++) {
+            if (buffer.get() == 0) {
+                continue;
+            }
+
+            schedules[year_slot] = new BracketSchedule[jurisdictionCount][];
+            loadedYears++;
+
+            for (int jurisdiction_index = 0; jurisdiction_index < jurisdictionCount; jurisdiction_index++) {
+                if (buffer.get() == 0) {
+                    continue;
+                }
+
+                BracketSchedule[] schedules_by_status = new BracketSchedule[filingStatusCount];
+                for (int status_index = 0; status_index < filingStatusCount; status_index++) {
+                    int bracketCount = buffer.getInt();
+                    // Every bracket takes 24 bytes, so a count the rest of the file cannot hold is a corrupt one
+                    if (bracketCount < 0 || bracketCount > buffer.remaining() / 24) {
+                        throw new IOException("Bracket snapshot is corrupt: " + bracketCount + " brackets at byte " + (buffer.position() - 4));
+                    }
+                    long[] bracketLows = new long[bracketCount];
+                    long[] bracketHighs = new long[bracketCount];
+                    double[] taxRates = new double[bracketCount];
+
+                    for (int bracket_index = 0; bracket_index < bracketCount; bracket_index++) {
+                        bracketLows[bracket_index] = buffer.getLong();
+                        bracketHighs[bracket_index] = buffer.getLong();
+                        taxRates[bracket_index] = buffer.getDouble();
+                    }
+
+                    long standardDeduction = buffer.getLong();
+                    long personalExemption = buffer.getLong();
+
+                    schedules_by_status[status_index] = (bracketCount == 0 ? BracketSchedule.EMPTY : new BracketSchedule(bracketLows, bracketHighs, taxRates))
+                            .withAllowances(standardDeduction, personalExemption);
+                }
+                schedules[year_slot][jurisdiction_index] = schedules_by_status;
+            }
+        }
+
+        int[] years = new int[loadedYears];
+        int year_index = 0;
+        for (int year_slot = 0; year_slot < yearSlots; year_slot++) {
+            if (schedules[year_slot] != null) {
+                years[year_index++] = firstYear + year_slot;
+            }
+        }
+
+        return new BracketRegistry(firstYear, years, schedules);
+    }
+
+    static ArrayList<String> loadOnlyCommand(String... load_args) {
+        // The same JVM, with the same options and class path, running only a load
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("BracketSnapshot");
+        command.add("--load-only");
+        command.addAll(Arrays.asList(load_args));
+        return command;
+    }
+
+    static long timeLaunch(ArrayList<String> command) throws IOException {
+        // Wall-clock time from launching the JVM until it exits, so startup and class loading are counted too
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("Timed load " + command.subList(command.indexOf("--load-only"), command.size()) + " exited with status " + process.exitValue());
+            }
+        }
+        catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while timing a load");
+        }
+        return System.nanoTime() - started;
+    }
+
+    static void loadOnly(String[] args, int first_arg) throws IOException {
+        // --load-only json <data dir> <years> | --load-only snapshot <file>: what a short-lived run does before its first estimate
+        if (args[first_arg + 1].equals("snapshot")) {
+            load(Paths.get(args[first_arg + 2]));
+            return;
+        }
+        String[] year_args = args[first_arg + 3].split(",");
+        int[] years = new int[year_args.length];
+        for (int year_index = 0; year_index < year_args.length; year_index++) {
+            years[year_index] = Integer.parseInt(year_args[year_index].trim());
+        }
+        BracketRegistry.loadCached(new BracketDataFetcher(BracketSource.taxee(), Paths.get(args[first_arg + 2])), years);
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--compile-snapshot" when called through TaxEstimator.main
+        int first_arg = (args.length > 0 && args[0].equals("--compile-snapshot")) ? 1 : 0;
+
+        if (args.length - first_arg >= 3 && args[first_arg].equals("--load-only")) {
+            try {
+                loadOnly(args, first_arg);
+            }
+            catch(IOException e) {
+                System.out.println("An IOException occurred: " + e);
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (args.length - first_arg < 2) {
+            System.out.println("Usage: java TaxEstimator --compile-snapshot <snapshot file> <year>[,<year>...] [--data-dir <dir>] [--source <url|dir>]");
+            System.exit(-1);
+        }
+
+        Path snapshotFile = Paths.get(args[first_arg]);
+        String[] year_args = args[first_arg + 1].split(",");
+        Path dataDirectory = BracketRegistry.defaultDataDirectory();
+        BracketSource source = BracketSource.taxee();
+        for (int arg_index = first_arg + 2; arg_index + 1 < args.length; arg_index += 2) {
+            if (args[arg_index].equals("--data-dir")) {
+                dataDirectory = Paths.get(args[arg_index + 1]);
+            }
+            else if (args[arg_index].equals("--source")) {
+                source = BracketSource.fromLocation(args[arg_index + 1]);
+            }
+        }
+
+        int[] years = new int[year_args.length];
+        for (int year_index = 0; year_index < year_args.length; year_index++) {
+            years[year_index] = Integer.parseInt(year_args[year_index].trim());
+        }
+
+        try {
+            BracketDataFetcher fetcher = new BracketDataFetcher(source, dataDirectory);
+            fetcher.fetchAll(years, Jurisdiction.values());
+            write(BracketRegistry.loadCached(fetcher, years), snapshotFile);
+            System.out.println("Wrote " + snapshotFile + " (" + Files.size(snapshotFile) + " bytes).");
+
+            // Every load runs in a JVM of its own, as a cron job or a fresh server would, so neither one warms up
+            // classes for the other; the fastest of a few launches keeps one slow start from skewing the comparison
+            ArrayList<String> json_command = loadOnlyCommand("json", dataDirectory.toString(), args[first_arg + 1]);
+            ArrayList<String> snapshot_command = loadOnlyCommand("snapshot", snapshotFile.toString());
+            long jsonNanos = Long.MAX_VALUE;
+            long snapshotNanos = Long.MAX_VALUE;
+            for (int launch = 0; launch < TIMED_LAUNCHES; launch++) {
+                jsonNanos = Math.min(jsonNanos, timeLaunch(json_command));
+                snapshotNanos = Math.min(snapshotNanos, timeLaunch(snapshot_command));
+            }
+
+            System.out.println(String.format("Startup time of a new JVM loading from JSON: %.2f ms, from snapshot: %.2f ms (fastest of %d launches)", jsonNanos / 1e6, snapshotNanos / 1e6, TIMED_LAUNCHES));
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+    }
+}
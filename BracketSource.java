@@ -0,0 +1,85 @@
+/*
+	Where BracketDataFetcher gets taxee bracket files from.
+	The default is taxee's GitHub repository over HTTPS. Any other base URL (for example a local HTTP
+	stand-in) or a local directory laid out as <year>/<file>.json can be used instead.
+*/
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public interface BracketSource {
+    // Opens one bracket file, e.g. (2019, "federal.json"). A file that does not exist at the source is
+    // reported as FileNotFoundException, which the fetcher does not retry
+    InputStream open(int year, String fileName) throws IOException;
+
+    static BracketSource taxee() {
+        return new Http(TaxEstimator.TAXEE_SOURCE_URL);
+    }
+
+    static BracketSource fromLocation(String location) {
+        // "http://..." / "https://..." is a base URL, anything else is a local directory
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            return new Http(location);
+        }
+        return new Directory(Paths.get(location));
+    }
+
+    final class Http implements BracketSource {
+        static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+        static final int READ_TIMEOUT_MILLIS = 30_000;
+
+        final String baseUrl;
+
+        public Http(String baseUrl) {
+            this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        }
+
+        public InputStream open(int year, String fileName) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + year + "/" + fileName).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                connection.disconnect();
+                throw new FileNotFoundException(baseUrl + year + "/" + fileName);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("HTTP " + responseCode + " for " + baseUrl + year + "/" + fileName);
+            }
+            return connection.getInputStream();
+        }
+
+        public String toString() {
+            return baseUrl;
+        }
+    }
+
+    final class Directory implements BracketSource {
+        final Path root;
+
+        public Directory(Path root) {
+            this.root = root;
+        }
+
+        public InputStream open(int year, String fileName) throws IOException {
+            Path file = root.resolve(Integer.toString(year)).resolve(fileName);
+            if (!Files.isRegularFile(file)) {
+                throw new FileNotFoundException(file.toString());
+            }
+            return new FileInputStream(file.toFile());
+        }
+
+        public String toString() {
+            return root.toString();
+        }
+    }
+}
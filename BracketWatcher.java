@@ -0,0 +1,215 @@
+/*
+	Hot reload of bracket data for long-running processes (server mode with --watch).
+	A background thread watches <data directory>/<year>/ for every loaded year with an NIO WatchService. When a
+	taxee file is created or changed, only that jurisdiction is parsed again. A new BracketRegistry is made with
+	withSchedules, which shares every other table with the old one. The calculator chain (fixed-point engine,
+	cache) is rebuilt from the new registry, and the result is published with one volatile write.
+
+	Readers take no lock. Each call reads the volatile generation once and uses the tables it finds there. The
+	old tables are never changed, so a calculation already running finishes on them. Callers that make several
+	calls for one answer (federal and state tax of one record) can pin a generation with current(). Every
+	generation has its own EstimateCache, so the cache can never hand out an answer from replaced tables.
+
+	Events are collected until the directory has been quiet for QUIET_PERIOD_MILLIS, so a file written in
+	several steps is parsed once. A file that does not parse keeps the old tables until it is fixed. A deleted
+	file also keeps its tables.
+*/
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.json.simple.parser.ParseException;
+
+public final class BracketWatcher implements TaxCalculator, Closeable {
+    static final long QUIET_PERIOD_MILLIS = 250;
+
+    // One published state: the registry and the calculator chain built from it, swapped together
+    static final class Generation {
+        final BracketRegistry registry;
+        final TaxCalculator calculator;
+        final long number;
+
+        Generation(BracketRegistry registry, TaxCalculator calculator, long number) {
+            this.registry = registry;
+            this.calculator = calculator;
+            this.number = number;
+        }
+    }
+
+    final Path dataDirectory;
+    final Function<BracketRegistry, TaxCalculator> calculatorFactory;
+    final WatchService watchService;
+    final HashMap<WatchKey, Integer> watched_years = new HashMap<WatchKey, Integer>();
+    final HashMap<String, Jurisdiction> jurisdictions_by_file_name = new HashMap<String, Jurisdiction>();
+    final TaxeeJsonParser parser = new TaxeeJsonParser();
+    final Thread watcherThread;
+
+    volatile Generation generation;
+
+    public BracketWatcher(Path dataDirectory, BracketRegistry registry, Function<BracketRegistry, TaxCalculator> calculatorFactory) throws IOException {
+        this.dataDirectory = dataDirectory;
+        this.calculatorFactory = calculatorFactory;
+        this.generation = new Generation(registry, calculatorFactory.apply(registry), 0);
+
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            jurisdictions_by_file_name.put(jurisdiction.jsonFileName(), jurisdiction);
+        }
+
+        watchService = dataDirectory.getFileSystem().newWatchService();
+        for (int year : registry.years()) {
+            Path yearDirectory = dataDirectory.resolve(Integer.toString(year));
+            WatchKey key = yearDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watched_years.put(key, year);
+        }
+
+        watcherThread = new Thread(this::watch, "bracket-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public static TaxCalculator current(TaxCalculator calculator) {
+        // The calculator to use for one whole request: the current generation's if this is a watcher
+        return calculator instanceof BracketWatcher ? ((BracketWatcher) calculator).generation.calculator : calculator;
+    }
+
+    public BracketRegistry registry() {
+        return generation.registry;
+    }
+
+    public long reloads() {
+        return generation.number;
+    }
+
+    public boolean has(int year, Jurisdiction jurisdiction) {
+        return generation.calculator.has(year, jurisdiction);
+    }
+
+    public double calculateTax(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        return generation.calculator.calculateTax(year, jurisdiction, filingStatus, taxableIncome);
+    }
+
+    public void close() throws IOException {
+        watcherThread.interrupt();
+        watchService.close();
+    }
+
+    void watch() {
+        try {
+            while (true) {
+                // Block for the first event, then keep collecting until the directory is quiet
+                TreeSet<String> changed_files = new TreeSet<String>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    collectEvents(key, changed_files);
+                    key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    reload(changed_files);
+                }
+                catch (RuntimeException e) {
+                    // Bad bracket data (e.g. a negative rate) must not end the watcher: keep serving the
+                    // current generation and pick up the next correction
+                    System.out.println("Could not reload " + changed_files + ", keeping the loaded brackets: " + e);
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // close() was called
+        }
+    }
+
+    void collectEvents(WatchKey key, TreeSet<String> changed_files) {
+        int year = watched_years.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so look at every jurisdiction of that year again
+                for (String file_name : jurisdictions_by_file_name.keySet()) {
+                    changed_files.add(year + "/" + file_name);
+                }
+                continue;
+            }
+
+            String file_name = ((Path) event.context()).getFileName().toString();
+            if (!jurisdictions_by_file_name.containsKey(file_name)) {
+                // Checksums, temporary .part files, anything else in the directory
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                System.out.println("Bracket file " + year + "/" + file_name + " was deleted; keeping the loaded brackets.");
+                continue;
+            }
+            changed_files.add(year + "/" + file_name);
+        }
+        key.reset();
+    }
+
+    void reload(TreeSet<String> changed_files) {
+        Generation current = generation;
+        BracketRegistry registry = current.registry;
+        StringBuilder reloaded = new StringBuilder();
+
+        for (String changed_file : changed_files) {
+            int year = Integer.parseInt(changed_file.substring(0, changed_file.indexOf('/')));
+            Jurisdiction jurisdiction = jurisdictions_by_file_name.get(changed_file.substring(changed_file.indexOf('/') + 1));
+
+            BracketSchedule[] schedules_by_status;
+            long started = Metrics.ENABLED ? System.nanoTime() : 0;
+            try {
+                schedules_by_status = parser.parse(dataDirectory.resolve(changed_file), jurisdiction == Jurisdiction.FEDERAL);
+                if (Metrics.ENABLED) {
+                    Metrics.record(Metrics.Phase.PARSE, jurisdiction, started);
+                }
+            }
+            catch (FileNotFoundException e) {
+                // Gone again before we got to it; a later event will bring it back
+                continue;
+            }
+            catch (IOException e) {
+                System.out.println("An IOException occurred: " + e);
+                continue;
+            }
+            catch (ParseException e) {
+                System.out.println("There was a JSON parsing error in " + changed_file + ", keeping the loaded brackets: " + e);
+                continue;
+            }
+
+            if (registry.has(year, jurisdiction) && sameSchedules(registry, year, jurisdiction, schedules_by_status)) {
+                continue;
+            }
+
+            registry = registry.withSchedules(year, jurisdiction, schedules_by_status);
+            if (Metrics.ENABLED) {
+                Metrics.count(Metrics.Counter.RELOADS, jurisdiction, 1);
+            }
+            reloaded.append(reloaded.length() == 0 ? "" : ", ").append(jurisdiction.name()).append(" (").append(year).append(")");
+        }
+
+        if (registry == current.registry) {
+            return;
+        }
+
+        // Only this thread writes the generation, so a plain volatile write publishes the whole swap
+        generation = new Generation(registry, calculatorFactory.apply(registry), current.number + 1);
+        System.out.println("Reloaded bracket data for " + reloaded + ".");
+    }
+
+    static boolean sameSchedules(BracketRegistry registry, int year, Jurisdiction jurisdiction, BracketSchedule[] schedules_by_status) {
+        for (FilingStatus filingStatus : FilingStatus.values()) {
+            if (!registry.schedule(year, jurisdiction, filingStatus).equals(schedules_by_status[filingStatus.ordinal()])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+	Columnar tax calculation over a BracketRegistry.
+	Incomes are gathered into double[] columns. Rows are grouped by (year, jurisdiction, filing status), and
+	each group is handed to the bracket kernel as one contiguous run, so a whole run of rows shares one
+	schedule.
+
+	On a JVM started with --add-modules jdk.incubator.vector, the kernel is VectorBracketKernel (SIMD).
+	Otherwise it is a plain loop over BracketSchedule.calculateTax. Both give bit-identical results.
+	Incomes must be whole dollars, as they are everywhere else in the estimator, and below 2^53 so the
+	double column holds them exactly.
+*/
+
+import java.util.Arrays;
+
+public final class ColumnarTaxCalculator {
+    static final boolean VECTORIZED = vectorApiAvailable();
+
+    final BracketRegistry registry;
+
+    public ColumnarTaxCalculator(BracketRegistry registry) {
+        this.registry = registry;
+    }
+
+    static boolean vectorApiAvailable() {
+        // VectorBracketKernel must not even be loaded unless the incubator module is there
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return false;
+        }
+        return VectorBracketKernel.lanes() > 1;
+    }
+
+    public static String kernelName() {
+        return VECTORIZED ? "Vector API, " + VectorBracketKernel.lanes() + " lanes" : "scalar";
+    }
+
+    public static void calculateColumn(BracketSchedule schedule, double[] incomes, double[] taxes, int from, int to) {
+        if (schedule.size() == 0) {
+            Arrays.fill(taxes, from, to, 0.0);
+        }
+        else if (VECTORIZED) {
+            VectorBracketKernel.calculateColumn(schedule, incomes, taxes, from, to);
+        }
+        else {
+            calculateColumnScalar(schedule, incomes, taxes, from, to);
+        }
+    }
+
+    public static void calculateColumnScalar(BracketSchedule schedule, double[] incomes, double[] taxes, int from, int to) {
+        for (int row = from; row < to; row++) {
+            taxes[row] = schedule.calculateTax((long) incomes[row]);
+        }
+    }
+
+    public void calculateRows(int[] years, Jurisdiction[] jurisdictions, FilingStatus[] filingStatuses, long[] incomes, int count, double[] taxes) {
+        // Every row must already be known to the registry (BracketRegistry.has)
+        if (count == 0) {
+            return;
+        }
+
+        int min_year = years[0];
+        int max_year = years[0];
+        for (int row = 1; row < count; row++) {
+            min_year = Math.min(min_year, years[row]);
+            max_year = Math.max(max_year, years[row]);
+        }
+
+        // Counting sort of the rows by (year, jurisdiction, filing status)
+        int statuses_per_jurisdiction = FilingStatus.values().length;
+        int groups_per_year = Jurisdiction.values().length * statuses_per_jurisdiction;
+        int[] group_starts = new int[(max_year - min_year + 1) * groups_per_year + 1];
+        int[] row_groups = new int[count];
+
+        for (int row = 0; row < count; row++) {
+            row_groups[row] = (years[row] - min_year) * groups_per_year + jurisdictions[row].ordinal() * statuses_per_jurisdiction + filingStatuses[row].ordinal();
+            group_starts[row_groups[row] + 1]++;
+        }
+        for (int group = 1; group < group_starts.length; group++) {
+            group_starts[group] += group_starts[group - 1];
+        }
+
+        int[] sorted_rows = new int[count];
+        int[] next_slot = Arrays.copyOf(group_starts, group_starts.length - 1);
+        for (int row = 0; row < count; row++) {
+            sorted_rows[next_slot[row_groups[row]]++] = row;
+        }
+
+        // Gather each group into a contiguous column, run the kernel over it, scatter the answers back
+        double[] income_column = new double[count];
+        double[] tax_column = new double[count];
+        for (int slot = 0; slot < count; slot++) {
+            income_column[slot] = incomes[sorted_rows[slot]];
+        }
+
+        for (int group = 0; group < group_starts.length - 1; group++) {
+            int from = group_starts[group];
+            int to = group_starts[group + 1];
+            if (from == to) {
+                continue;
+            }
+            int row = sorted_rows[from];
+            calculateColumn(registry.schedule(years[row], jurisdictions[row], filingStatuses[row]), income_column, tax_column, from, to);
+        }
+
+        for (int slot = 0; slot < count; slot++) {
+            taxes[sorted_rows[slot]] = tax_column[slot];
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+	Options shared by the non-interactive modes (batch, server, ...).
+	Recognized flags are consumed and everything else is kept, in order, as a positional argument.
+
+	    [year]                    default tax year (positional, after the mode's own positional arguments)
+	    --years <y1,y2,...>       extra years to preload
+	    --data-dir <dir>          local bracket cache, default tax_data
+	    --source <url|dir>        where the fetcher downloads bracket files from
+	    --snapshot <file>         load a compiled bracket snapshot instead of the JSON cache
+	    --threads <n>             worker threads
+	    --cache <entries>         put a bounded EstimateCache of this many entries in front of the calculators
+	    --exact                   calculate in integer cents with FixedPointTaxEngine
+	    --rounding <rules>        per-jurisdiction rounding for --exact, e.g. FEDERAL=dollar,CA=cent:HALF_EVEN
+	    --metrics                 record counters and latencies and publish them over JMX (see Metrics)
+	    --metrics-dump <file|->   also write them out periodically and at exit; implies --metrics
+	    --metrics-interval <s>    seconds between dumps, default 60
+*/
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.json.simple.parser.ParseException;
+
+public final class CommandLineOptions {
+    final ArrayList<String> positional_args = new ArrayList<String>();
+    final HashMap<String, String> extra_flags = new HashMap<String, String>();
+
+    int threads = 1;
+    int cacheEntries = 0;
+    boolean exact = false;
+    String rounding = "";
+    String metricsDump = null;
+    long metricsIntervalSeconds = 60;
+    String extra_years = "";
+    Path dataDirectory = BracketRegistry.defaultDataDirectory();
+    Path snapshotFile = null;
+    BracketSource source = BracketSource.taxee();
+
+    public static CommandLineOptions parse(String[] args, String mode_flag, String... mode_value_flags) {
+        CommandLineOptions options = new CommandLineOptions();
+
+        for (int arg_index = 0; arg_index < args.length; arg_index++) {
+            String arg = args[arg_index];
+            boolean has_value = arg_index + 1 < args.length;
+
+            if (arg.equals(mode_flag)) {
+                continue;
+            }
+
+            else if (arg.equals("--threads") && has_value) {
+                options.threads = Integer.parseInt(args[++arg_index]);
+            }
+
+            else if (arg.equals("--cache") && has_value) {
+                options.cacheEntries = Integer.parseInt(args[++arg_index]);
+            }
+
+            else if (arg.equals("--exact")) {
+                options.exact = true;
+            }
+
+            else if (arg.equals("--rounding") && has_value) {
+                options.rounding = args[++arg_index];
+            }
+
+            else if (arg.equals("--metrics")) {
+                // Must be set before anything touches the Metrics class, which reads it once into a static final
+                System.setProperty(Metrics.ENABLED_PROPERTY, "true");
+            }
+
+            else if (arg.equals("--metrics-dump") && has_value) {
+                System.setProperty(Metrics.ENABLED_PROPERTY, "true");
+                options.metricsDump = args[++arg_index];
+            }
+
+            else if (arg.equals("--metrics-interval") && has_value) {
+                options.metricsIntervalSeconds = Long.parseLong(args[++arg_index]);
+            }
+
+            else if (arg.equals("--years") && has_value) {
+                options.extra_years = args[++arg_index];
+            }
+
+            else if (arg.equals("--data-dir") && has_value) {
+                options.dataDirectory = Paths.get(args[++arg_index]);
+            }
+
+            else if (arg.equals("--snapshot") && has_value) {
+                options.snapshotFile = Paths.get(args[++arg_index]);
+            }
+
+            else if (arg.equals("--source") && has_value) {
+                options.source = BracketSource.fromLocation(args[++arg_index]);
+            }
+
+            else if (isModeValueFlag(arg, mode_value_flags) && has_value) {
+                options.extra_flags.put(arg, args[++arg_index]);
+            }
+
+            else if (arg.startsWith("--") && !isModeValueFlag(arg, mode_value_flags)) {
+                // Mode-specific switches without a value, e.g. --gzip
+                options.extra_flags.put(arg, "");
+            }
+
+            else {
+                options.positional_args.add(arg);
+            }
+        }
+
+        if (options.metricsDump != null) {
+            Metrics.startDump(options.metricsDump, options.metricsIntervalSeconds);
+        }
+
+        return options;
+    }
+
+    static boolean isModeValueFlag(String arg, String[] mode_value_flags) {
+        for (String mode_value_flag : mode_value_flags) {
+            if (mode_value_flag.equals(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int positionalCount() {
+        return positional_args.size();
+    }
+
+    public String positional(int index) {
+        return positional_args.get(index);
+    }
+
+    public int yearAt(int index) {
+        // The year is optional and defaults to the current one, like the interactive mode
+        return positional_args.size() > index ? Integer.parseInt(positional_args.get(index)) : LocalDate.now().getYear();
+    }
+
+    public boolean hasFlag(String flag) {
+        return extra_flags.containsKey(flag);
+    }
+
+    public String flag(String flag, String default_value) {
+        String value = extra_flags.get(flag);
+        return value == null ? default_value : value;
+    }
+
+    public int[] years(int defaultYear) {
+        // The default year is always loaded, plus any years listed as "2018,2019"
+        ArrayList<Integer> years = new ArrayList<Integer>();
+        years.add(defaultYear);
+        for (String extra_year : extra_years.split(",")) {
+            if (!extra_year.trim().isEmpty()) {
+                years.add(Integer.parseInt(extra_year.trim()));
+            }
+        }
+        return years.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public BracketRegistry loadRegistry(int defaultYear) throws IOException, ParseException {
+        // A compiled snapshot replaces the JSON files entirely when one is given
+        if (snapshotFile != null) {
+            return BracketSnapshot.load(snapshotFile);
+        }
+        return BracketRegistry.load(dataDirectory, years(defaultYear), source);
+    }
+
+    public TaxCalculator calculator(BracketRegistry registry) {
+        TaxCalculator calculator = exact ? new FixedPointTaxEngine(registry).rounding(rounding) : registry;
+        return cacheEntries > 0 ? new EstimateCache(calculator, cacheEntries) : calculator;
+    }
+}
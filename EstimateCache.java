@@ -0,0 +1,172 @@
+/*
+	Bounded memoization cache in front of a TaxCalculator.
+	Payroll batches repeat the same (year, jurisdiction, filing status, income) over and over, so
+	remembered answers skip the bracket lookup entirely.
+
+	Each lookup is packed into one long key. Entries live in primitive arrays organized as an
+	8-way set-associative table. When a set is full, its least recently used entry is evicted.
+	Sets are spread over independent lock stripes, so threads only contend when they touch the same
+	stripe, and there is no global lock. Lookups outside the packable range go straight to the
+	wrapped calculator.
+*/
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class EstimateCache implements TaxCalculator {
+    static final int WAYS = 8;
+    static final int STRIPES = 64;
+    static final long EMPTY_KEY = -1L;
+
+    // Packed key layout: | year - 1900 (12 bits) | jurisdiction (6 bits) | filing status (3 bits) | income (40 bits) |
+    static final int INCOME_BITS = 40;
+    static final long MAX_CACHED_INCOME = (1L << INCOME_BITS) - 1;
+
+    final TaxCalculator delegate;
+    final int setMask;
+
+    final long[] keys;
+    final double[] values;
+    final long[] lastUsed;
+    final long[] stripeClocks;
+    final Object[] stripeLocks;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder bypasses = new LongAdder();
+
+    public EstimateCache(TaxCalculator delegate, int maxEntries) {
+        this.delegate = delegate;
+
+        // Round the number of sets up to a power of two so a set is picked with a mask
+        int sets = Integer.highestOneBit(Math.max(STRIPES, (maxEntries + WAYS - 1) / WAYS) - 1) << 1;
+        this.setMask = sets - 1;
+
+        keys = new long[sets * WAYS];
+        values = new double[sets * WAYS];
+        lastUsed = new long[sets * WAYS];
+        Arrays.fill(keys, EMPTY_KEY);
+
+        stripeClocks = new long[STRIPES];
+        stripeLocks = new Object[STRIPES];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            stripeLocks[stripe] = new Object();
+        }
+    }
+
+    public boolean has(int year, Jurisdiction jurisdiction) {
+        return delegate.has(year, jurisdiction);
+    }
+
+    public double calculateTax(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        if (taxableIncome < 0 || taxableIncome > MAX_CACHED_INCOME || year < 1900 || year >= 1900 + 4096) {
+            bypasses.increment();
+            return delegate.calculateTax(year, jurisdiction, filingStatus, taxableIncome);
+        }
+
+        long key = packKey(year, jurisdiction, filingStatus, taxableIncome);
+        int set = (int) mix(key) & setMask;
+        int stripe = set & (STRIPES - 1);
+        int first = set * WAYS;
+
+        synchronized (stripeLocks[stripe]) {
+            for (int way = first; way < first + WAYS; way++) {
+                if (keys[way] == key) {
+                    lastUsed[way] = ++stripeClocks[stripe];
+                    hits.increment();
+                    if (Metrics.ENABLED) {
+                        Metrics.count(Metrics.Counter.CACHE_HITS, jurisdiction, 1);
+                    }
+                    return values[way];
+                }
+            }
+        }
+
+        // Computed outside the lock; two threads missing on the same key just both store the same answer
+        double tax = delegate.calculateTax(year, jurisdiction, filingStatus, taxableIncome);
+        misses.increment();
+        if (Metrics.ENABLED) {
+            Metrics.count(Metrics.Counter.CACHE_MISSES, jurisdiction, 1);
+        }
+
+        synchronized (stripeLocks[stripe]) {
+            int victim = first;
+            for (int way = first; way < first + WAYS; way++) {
+                if (keys[way] == key || keys[way] == EMPTY_KEY) {
+                    victim = way;
+                    break;
+                }
+                if (lastUsed[way] < lastUsed[victim]) {
+                    victim = way;
+                }
+            }
+
+            if (keys[victim] != EMPTY_KEY && keys[victim] != key) {
+                evictions.increment();
+                if (Metrics.ENABLED) {
+                    Metrics.count(Metrics.Counter.CACHE_EVICTIONS, jurisdiction, 1);
+                }
+            }
+            keys[victim] = key;
+            values[victim] = tax;
+            lastUsed[victim] = ++stripeClocks[stripe];
+        }
+
+        return tax;
+    }
+
+    static long packKey(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        return ((long) (year - 1900) << (INCOME_BITS + 9)) | ((long) jurisdiction.ordinal() << (INCOME_BITS + 3)) | ((long) filingStatus.ordinal() << INCOME_BITS) | taxableIncome;
+    }
+
+    static long mix(long key) {
+        // MurmurHash3 finalizer, so neighbouring incomes land in different sets
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    public void clear() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (stripeLocks[stripe]) {
+                for (int set = stripe; set <= setMask; set += STRIPES) {
+                    Arrays.fill(keys, set * WAYS, set * WAYS + WAYS, EMPTY_KEY);
+                }
+            }
+        }
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long bypasses() {
+        return bypasses.sum();
+    }
+
+    public String toString() {
+        long lookups = hits() + misses();
+        return String.format("EstimateCache: {capacity: %d, hits: %d, misses: %d, evictions: %d, bypasses: %d, hitRate: %.2f%%}",
+                capacity(), hits(), misses(), evictions(), bypasses(), lookups == 0 ? 0.0 : hits() * 100.0 / lookups);
+    }
+
+    public String toJson() {
+        return String.format("{\"capacity\":%d,\"hits\":%d,\"misses\":%d,\"evictions\":%d,\"bypasses\":%d}", capacity(), hits(), misses(), evictions(), bypasses());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+	Long-running HTTP server mode for the Tax Estimator
+	Bracket data for every jurisdiction is loaded once at startup and kept in memory for all requests.
+
+	    POST /estimate        {"filing_status": "single", "state": "CA", "taxable_income": 85000, "year": 2019}
+	    POST /estimate/bulk   [ {...}, {...}, ... ]
+	    GET  /health
+	    GET  /stats           cache hit/miss/eviction counters when --cache is on
+
+	With --watch, changes to the bracket files under --data-dir are picked up while the server runs (see BracketWatcher).
+	Each request is answered from one set of tables, even if a reload happens in the middle of it.
+
+	"year" is optional and defaults to the server's year. Responses use the same fields as the batch
+	JSONL output. A bulk entry that cannot be estimated becomes {"error": "..."} in its position.
+
+	Requests run on virtual threads when the JVM has them, and on a fixed pool of platform threads otherwise.
+	The server binds to 127.0.0.1 unless --bind says otherwise.
+
+	Usage: java TaxEstimator --serve [year] [--port <port>] [--bind <address>] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--watch]
+*/
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class EstimationServer {
+    static final int DEFAULT_PORT = 8080;
+    static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    final TaxCalculator calculator;
+    final int defaultYear;
+    HttpServer httpServer;
+    ExecutorService executor;
+
+    public EstimationServer(TaxCalculator calculator, int defaultYear) {
+        this.calculator = calculator;
+        this.defaultYear = defaultYear;
+    }
+
+    public void start(String bindAddress, int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(bindAddress, port), 1024);
+        executor = newRequestExecutor();
+
+        httpServer.createContext("/estimate", this::handleEstimate);
+        httpServer.createContext("/health", exchange -> respond(exchange, 200, "{\"status\":\"ok\"}"));
+        httpServer.createContext("/stats", this::handleStats);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    public int port() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdown();
+    }
+
+    static ExecutorService newRequestExecutor() {
+        // Virtual threads are only in the JDK from 21 on, so look them up instead of linking against them
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(32, Runtime.getRuntime().availableProcessors() * 8));
+        }
+    }
+
+    void handleStats(HttpExchange exchange) throws IOException {
+        TaxCalculator tables = BracketWatcher.current(calculator);
+        respond(exchange, 200, tables instanceof EstimateCache ? ((EstimateCache) tables).toJson() : "{}");
+    }
+
+    void handleEstimate(HttpExchange exchange) throws IOException {
+        long started = Metrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, errorJson("Use POST"));
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            Object request;
+            Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+
+            try {
+                // JSONParser keeps parse state, so every request gets its own
+                request = new JSONParser().parse(body);
+            }
+            catch (ParseException e) {
+                respond(exchange, 400, errorJson("There was a JSON parsing error: " + e));
+                return;
+            }
+
+            // Pin one generation of bracket tables for the whole request
+            TaxCalculator tables = BracketWatcher.current(calculator);
+
+            if (path.equals("/estimate") && request instanceof JSONObject) {
+                String result = estimate(tables, (JSONObject) request);
+                respond(exchange, result.startsWith("{\"error\"") ? 400 : 200, result);
+            }
+
+            else if (path.equals("/estimate/bulk") && request instanceof JSONArray) {
+                JSONArray requests = (JSONArray) request;
+                StringBuilder results = new StringBuilder(requests.size() * 192).append('[');
+                for (int request_index = 0; request_index < requests.size(); request_index++) {
+                    if (request_index > 0) {
+                        results.append(',');
+                    }
+                    Object entry = requests.get(request_index);
+                    results.append(entry instanceof JSONObject ? estimate(tables, (JSONObject) entry) : errorJson("Expected an object"));
+                }
+                respond(exchange, 200, results.append(']').toString());
+            }
+
+            else if (path.equals("/estimate") || path.equals("/estimate/bulk")) {
+                respond(exchange, 400, errorJson(path.equals("/estimate") ? "Expected a JSON object" : "Expected a JSON array"));
+            }
+
+            else {
+                respond(exchange, 404, errorJson("Unknown endpoint " + path));
+            }
+        }
+        finally {
+            exchange.close();
+            if (Metrics.ENABLED) {
+                Metrics.record(Metrics.Phase.REQUEST, null, started);
+                Metrics.count(Metrics.Counter.REQUESTS, null, 1);
+            }
+        }
+    }
+
+    String estimate(TaxCalculator tables, JSONObject request) {
+        Object filing_status_value = request.get("filing_status");
+        Object state_value = request.get("state");
+        Object taxable_income_value = request.get("taxable_income");
+        Object year_value = request.get("year");
+
+        if (filing_status_value == null || state_value == null || taxable_income_value == null) {
+            return errorJson("filing_status, state and taxable_income are required");
+        }
+
+        FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(filing_status_value.toString());
+        Jurisdiction state = Jurisdiction.fromAbbreviation(state_value.toString());
+        long taxableIncome = BatchEstimator.parseTaxableIncome(taxable_income_value.toString());
+        int year = year_value == null ? defaultYear : BatchEstimator.parseYear(year_value.toString());
+
+        if (filingStatus == null) {
+            return errorJson("Invalid filing status " + filing_status_value);
+        }
+        if (state == null) {
+            return errorJson("Invalid state abbreviation " + state_value);
+        }
+        if (taxableIncome < 0) {
+            return errorJson("taxable_income must be a non-negative whole number");
+        }
+        if (!tables.has(year, Jurisdiction.FEDERAL) || !tables.has(year, state)) {
+            return errorJson("No tax bracket data loaded for " + state.name() + " in " + year);
+        }
+
+        double federal_taxes = tables.calculateTax(year, Jurisdiction.FEDERAL, filingStatus, taxableIncome);
+        double state_taxes = tables.calculateTax(year, state, filingStatus, taxableIncome);
+
+        return BatchEstimator.formatResult(filingStatus, state.name(), taxableIncome, federal_taxes, state_taxes, true);
+    }
+
+    static String errorJson(String message) {
+        return "{\"error\":\"" + JSONValue.escape(message) + "\"}";
+    }
+
+    static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--serve" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--serve", "--port", "--bind");
+        int year = options.yearAt(0);
+
+        try {
+            BracketRegistry registry = options.loadRegistry(year);
+            TaxCalculator calculator;
+            if (options.hasFlag("--watch") && options.snapshotFile != null) {
+                System.out.println("--watch follows the JSON files in --data-dir and is ignored with --snapshot.");
+                calculator = options.calculator(registry);
+            }
+            else if (options.hasFlag("--watch")) {
+                calculator = new BracketWatcher(options.dataDirectory, registry, options::calculator);
+            }
+            else {
+                calculator = options.calculator(registry);
+            }
+
+            EstimationServer server = new EstimationServer(calculator, year);
+            server.start(options.flag("--bind", DEFAULT_BIND_ADDRESS), Integer.parseInt(options.flag("--port", Integer.toString(DEFAULT_PORT))));
+            System.out.println("Tax estimator server listening on " + options.flag("--bind", DEFAULT_BIND_ADDRESS) + ":" + server.port() + " (default year " + year + ").");
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+}
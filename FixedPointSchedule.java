@@ -0,0 +1,183 @@
+/*
+	Exact, integer-only version of a BracketSchedule.
+	Incomes and taxes are whole cents in a long. Rates are kept as millionths of a percent, so a rate of
+	6.09% is stored as 6,090,000. The tax owed is then an integer number of 1e-8 cents. That amount can
+	be larger than a long, so it is carried in 128 bits: a product comes from Math.multiplyHigh and the
+	low half of the multiply, and a sum adds with carry. The exact amount is rounded once, at the end,
+	to the requested unit and RoundingMode. Nothing is allocated per call.
+
+	The brackets follow the same taxee layout as BracketSchedule. Each bracket starts one dollar above
+	the previous top, and income in that gap is not taxed at the next rate yet.
+*/
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public final class FixedPointSchedule {
+    // Rates are percent * RATE_SCALE; (cents * rate) is then in units of 1 / (100 * RATE_SCALE) cents
+    static final long RATE_SCALE = 1_000_000L;
+    static final long EXACT_UNITS_PER_CENT = 100 * RATE_SCALE;
+
+    private final long[] bracketLowCents;
+    private final long[] bracketHighCents;
+    private final long[] scaledRates;
+
+    // Exact tax owed at the start of each bracket, as the high and low halves of a 128-bit number
+    private final long[] cumulativeTaxHigh;
+    private final long[] cumulativeTaxLow;
+
+    public FixedPointSchedule(BracketSchedule schedule) {
+        int bracket_count = schedule.size();
+        bracketLowCents = new long[bracket_count];
+        bracketHighCents = new long[bracket_count];
+        scaledRates = new long[bracket_count];
+        cumulativeTaxHigh = new long[bracket_count];
+        cumulativeTaxLow = new long[bracket_count];
+
+        long tax_high = 0;
+        long tax_low = 0;
+        for (int bracket_index = 0; bracket_index < bracket_count; bracket_index++) {
+            bracketLowCents[bracket_index] = Math.multiplyExact(schedule.bracketLow(bracket_index), 100L);
+            // The last bracket has no top (0 in the taxee data)
+            bracketHighCents[bracket_index] = schedule.isLastBracket(bracket_index) ? Long.MAX_VALUE : Math.multiplyExact(schedule.bracketHigh(bracket_index), 100L);
+            scaledRates[bracket_index] = scaleRate(schedule.taxRate(bracket_index));
+
+            cumulativeTaxHigh[bracket_index] = tax_high;
+            cumulativeTaxLow[bracket_index] = tax_low;
+
+            if (!schedule.isLastBracket(bracket_index)) {
+                long span = Math.max(0, bracketHighCents[bracket_index] - bracketLowCents[bracket_index]);
+                long product_low = span * scaledRates[bracket_index];
+                long product_high = Math.multiplyHigh(span, scaledRates[bracket_index]);
+                long sum_low = tax_low + product_low;
+                tax_high = tax_high + product_high + (Long.compareUnsigned(sum_low, tax_low) < 0 ? 1 : 0);
+                tax_low = sum_low;
+            }
+        }
+    }
+
+    static long scaleRate(double taxRate) {
+        // The taxee rates are short decimals (6.09, 4.95, ...); BigDecimal.valueOf reads back exactly those digits
+        if (taxRate < 0) {
+            throw new IllegalArgumentException("Negative tax rate " + taxRate);
+        }
+        return BigDecimal.valueOf(taxRate).movePointRight(6).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+
+    public int size() {
+        return scaledRates.length;
+    }
+
+    public long scaledRate(int bracket_index) {
+        return scaledRates[bracket_index];
+    }
+
+    public long bracketLowCents(int bracket_index) {
+        return bracketLowCents[bracket_index];
+    }
+
+    public long bracketHighCents(int bracket_index) {
+        return bracketHighCents[bracket_index];
+    }
+
+    public int bracketIndexFor(long incomeCents) {
+        int low = 0;
+        int high = scaledRates.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (incomeCents <= bracketHighCents[middle]) {
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    public long taxCents(long incomeCents, long roundingUnitCents, RoundingMode roundingMode) {
+        if (incomeCents < 0) {
+            throw new IllegalArgumentException("Negative income " + incomeCents);
+        }
+        if (scaledRates.length == 0) {
+            return 0;
+        }
+
+        int bracket_index = bracketIndexFor(incomeCents);
+        long span = Math.max(0, incomeCents - bracketLowCents[bracket_index]);
+
+        long product_low = span * scaledRates[bracket_index];
+        long product_high = Math.multiplyHigh(span, scaledRates[bracket_index]);
+        long tax_low = cumulativeTaxLow[bracket_index] + product_low;
+        long tax_high = cumulativeTaxHigh[bracket_index] + product_high + (Long.compareUnsigned(tax_low, product_low) < 0 ? 1 : 0);
+
+        return round(tax_high, tax_low, roundingUnitCents, roundingMode);
+    }
+
+    static long round(long exact_high, long exact_low, long roundingUnitCents, RoundingMode roundingMode) {
+        long remainder = 0;
+        long quotient_low = 0;
+
+        if (exact_high == 0 && exact_low >= 0) {
+            // Taxes under about $900 million fit in 63 bits, which is one ordinary division
+            quotient_low = exact_low / EXACT_UNITS_PER_CENT;
+            remainder = exact_low % EXACT_UNITS_PER_CENT;
+        }
+        else {
+            // Long division of the unsigned 128-bit amount by EXACT_UNITS_PER_CENT, 32 bits at a time.
+            // Every partial remainder is below 2^27, so (remainder << 32 | digit) never overflows
+            long quotient_high = 0;
+            for (int digit_index = 3; digit_index >= 0; digit_index--) {
+                long word = digit_index >= 2 ? exact_high : exact_low;
+                long digit = (digit_index & 1) == 1 ? word >>> 32 : word & 0xFFFFFFFFL;
+                long dividend = (remainder << 32) | digit;
+                long quotient_digit = dividend / EXACT_UNITS_PER_CENT;
+                remainder = dividend % EXACT_UNITS_PER_CENT;
+
+                if (digit_index >= 2) {
+                    quotient_high = (quotient_high << 32) | quotient_digit;
+                }
+                else {
+                    quotient_low = (quotient_low << 32) | quotient_digit;
+                }
+            }
+            if (quotient_high != 0 || quotient_low < 0) {
+                throw new ArithmeticException("Tax does not fit in a long number of cents");
+            }
+        }
+
+        // Then down to the rounding unit; the full remainder is (cents_remainder * EXACT_UNITS_PER_CENT + remainder)
+        long units = quotient_low / roundingUnitCents;
+        long cents_remainder = quotient_low % roundingUnitCents;
+        if (cents_remainder == 0 && remainder == 0) {
+            return units * roundingUnitCents;
+        }
+
+        // Compare the remainder with half a unit without dividing: 2 * remainder vs one unit
+        long half_comparison = Long.compare(cents_remainder * 2 * EXACT_UNITS_PER_CENT + remainder * 2, roundingUnitCents * EXACT_UNITS_PER_CENT);
+        boolean round_up;
+        switch (roundingMode) {
+            case UP:
+            case CEILING:
+                round_up = true;
+                break;
+            case DOWN:
+            case FLOOR:
+                round_up = false;
+                break;
+            case HALF_UP:
+                round_up = half_comparison >= 0;
+                break;
+            case HALF_DOWN:
+                round_up = half_comparison > 0;
+                break;
+            case HALF_EVEN:
+                round_up = half_comparison > 0 || (half_comparison == 0 && (units & 1) == 1);
+                break;
+            default:
+                throw new ArithmeticException("Rounding needed for an inexact tax amount");
+        }
+
+        return (round_up ? units + 1 : units) * roundingUnitCents;
+    }
+}
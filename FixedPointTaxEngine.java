@@ -0,0 +1,122 @@
+/*
+	Exact tax calculation over a BracketRegistry, using FixedPointSchedule's integer cent arithmetic.
+	Each jurisdiction has its own rounding rule. The default is to the nearest cent, with half a cent
+	rounding up. A rule can be changed per jurisdiction, e.g. "FEDERAL=dollar,CA=cent:HALF_EVEN".
+
+	calculateTax returns the rounded cents as a double number of dollars, so this engine can take the
+	place of the registry anywhere a TaxCalculator is used (--exact in batch and server mode).
+	Incomes are whole cents in a long too, so the engine takes incomes up to MAX_TAXABLE_INCOME dollars (about
+	92 quadrillion) and throws an ArithmeticException for larger ones; batch runs reject those records as invalid_income.
+*/
+
+import java.math.RoundingMode;
+
+public final class FixedPointTaxEngine implements TaxCalculator {
+    static final long CENT = 1;
+    static final long DOLLAR = 100;
+    static final long MAX_TAXABLE_INCOME = Long.MAX_VALUE / DOLLAR;
+
+    final BracketRegistry registry;
+    final int firstYear;
+    final FixedPointSchedule[][][] schedules;
+
+    final long[] roundingUnitCents = new long[Jurisdiction.values().length];
+    final RoundingMode[] roundingModes = new RoundingMode[Jurisdiction.values().length];
+
+    public FixedPointTaxEngine(BracketRegistry registry) {
+        this.registry = registry;
+
+        int[] years = registry.years();
+        int first_year = years[0];
+        int last_year = years[0];
+        for (int year : years) {
+            first_year = Math.min(first_year, year);
+            last_year = Math.max(last_year, year);
+        }
+        this.firstYear = first_year;
+
+        // Compile every schedule up front so the hot path never builds anything
+        schedules = new FixedPointSchedule[last_year - first_year + 1][][];
+        for (int year : years) {
+            FixedPointSchedule[][] schedules_for_year = new FixedPointSchedule[Jurisdiction.values().length][];
+            for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+                if (!registry.has(year, jurisdiction)) {
+                    continue;
+                }
+                schedules_for_year[jurisdiction.ordinal()] = new FixedPointSchedule[FilingStatus.values().length];
+                for (FilingStatus filingStatus : FilingStatus.values()) {
+                    schedules_for_year[jurisdiction.ordinal()][filingStatus.ordinal()] = new FixedPointSchedule(registry.schedule(year, jurisdiction, filingStatus));
+                }
+            }
+            schedules[year - first_year] = schedules_for_year;
+        }
+
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            rounding(jurisdiction, CENT, RoundingMode.HALF_UP);
+        }
+    }
+
+    public FixedPointTaxEngine rounding(Jurisdiction jurisdiction, long unitCents, RoundingMode roundingMode) {
+        if (unitCents < 1 || unitCents > 1_000_000) {
+            throw new IllegalArgumentException("Rounding unit must be between 1 cent and $10,000, not " + unitCents + " cents");
+        }
+        roundingUnitCents[jurisdiction.ordinal()] = unitCents;
+        roundingModes[jurisdiction.ordinal()] = roundingMode;
+        return this;
+    }
+
+    public FixedPointTaxEngine rounding(String rules) {
+        // "FEDERAL=dollar,CA=cent:HALF_EVEN": a unit of cent or dollar, then an optional java.math.RoundingMode
+        for (String rule : rules.split(",")) {
+            if (rule.trim().isEmpty()) {
+                continue;
+            }
+
+            String[] jurisdiction_and_rounding = rule.trim().split("=");
+            Jurisdiction jurisdiction = jurisdiction_and_rounding[0].equalsIgnoreCase("federal") ? Jurisdiction.FEDERAL : Jurisdiction.fromAbbreviation(jurisdiction_and_rounding[0]);
+            if (jurisdiction == null || jurisdiction_and_rounding.length != 2) {
+                throw new IllegalArgumentException("Invalid rounding rule " + rule);
+            }
+
+            String[] unit_and_mode = jurisdiction_and_rounding[1].split(":");
+            long unit_cents;
+            if (unit_and_mode[0].equalsIgnoreCase("cent")) {
+                unit_cents = CENT;
+            }
+            else if (unit_and_mode[0].equalsIgnoreCase("dollar")) {
+                unit_cents = DOLLAR;
+            }
+            else {
+                throw new IllegalArgumentException("Invalid rounding unit in " + rule + " (use cent or dollar)");
+            }
+
+            rounding(jurisdiction, unit_cents, unit_and_mode.length > 1 ? RoundingMode.valueOf(unit_and_mode[1].toUpperCase()) : RoundingMode.HALF_UP);
+        }
+        return this;
+    }
+
+    public boolean has(int year, Jurisdiction jurisdiction) {
+        return registry.has(year, jurisdiction);
+    }
+
+    public FixedPointSchedule schedule(int year, Jurisdiction jurisdiction, FilingStatus filingStatus) {
+        return schedules[year - firstYear][jurisdiction.ordinal()][filingStatus.ordinal()];
+    }
+
+    public long taxCents(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long incomeCents) {
+        return schedule(year, jurisdiction, filingStatus).taxCents(incomeCents, roundingUnitCents[jurisdiction.ordinal()], roundingModes[jurisdiction.ordinal()]);
+    }
+
+    public double calculateTax(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        if (taxableIncome > MAX_TAXABLE_INCOME) {
+            throw new ArithmeticException("Taxable income " + taxableIncome + " is above the " + MAX_TAXABLE_INCOME + " dollars exact cents can hold");
+        }
+        if (Metrics.ENABLED) {
+            long started = System.nanoTime();
+            double tax = taxCents(year, jurisdiction, filingStatus, Math.multiplyExact(taxableIncome, 100L)) / 100.0;
+            Metrics.record(Metrics.Phase.CALCULATE, jurisdiction, started);
+            return tax;
+        }
+        return taxCents(year, jurisdiction, filingStatus, Math.multiplyExact(taxableIncome, 100L)) / 100.0;
+    }
+}
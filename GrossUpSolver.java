@@ -0,0 +1,305 @@
+/*
+	Gross-up solver: the taxable income at which income minus federal tax minus state tax reaches a target.
+	Incomes are whole dollars, as they are everywhere else in the estimator, so the answer is the smallest
+	whole-dollar income whose net is at or above the target.
+
+	For each (year, state, filing status), the solver merges the federal and state bracket starts into one
+	sorted list of breakpoints. Between two breakpoints both schedules are linear, so the net income is
+	too: net(start) + slope * (income - start), where slope = 1 - federal rate - state rate. A query
+	binary-searches the breakpoints for the segment that holds the target, then solves that segment's line.
+	The net function is then checked at the candidate income, which usually moves the answer by at most a dollar
+	to undo rounding in the division; the correction gallops and bisects, so it stays logarithmic even for
+	incomes too large for a double to hold every dollar. The result is exact against BracketSchedule.calculateTax.
+	A target that only an income above Long.MAX_VALUE reaches is reported as unreachable.
+
+	With a base income, the solver instead finds the extra gross pay (a bonus, a relocation payment) that adds
+	the target to the net of the base income.
+
+	Usage: java TaxEstimator --gross-up <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>]
+	Input records are filing_status,state,target_net[,base_income[,year]]; the state may be FEDERAL for federal tax only.
+*/
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public final class GrossUpSolver {
+    static final String CSV_HEADER = "filing_status,state,target_net,base_income,gross_up,federal_tax,state_tax,net";
+
+    final BracketRegistry registry;
+    final int firstYear;
+
+    // [year][state ordinal][filing status]; the FEDERAL slot is federal tax with no state tax
+    final NetIncomeSchedule[][][] schedules;
+
+    public static final class NetIncomeSchedule {
+        final BracketSchedule federal;
+        final BracketSchedule state;
+
+        // Segment i covers the incomes segmentStarts[i] .. segmentStarts[i + 1] - 1
+        final long[] segmentStarts;
+        final double[] netAtStart;
+        final double[] slopes;
+
+        public NetIncomeSchedule(BracketSchedule federal, BracketSchedule state) {
+            this.federal = federal;
+            this.state = state;
+
+            long[] starts = new long[federal.size() + state.size() + 1];
+            int start_count = 0;
+            starts[start_count++] = 0;
+            for (int bracket_index = 0; bracket_index < federal.size(); bracket_index++) {
+                starts[start_count++] = federal.bracketLow(bracket_index);
+            }
+            for (int bracket_index = 0; bracket_index < state.size(); bracket_index++) {
+                starts[start_count++] = state.bracketLow(bracket_index);
+            }
+            segmentStarts = Arrays.stream(starts, 0, start_count).sorted().distinct().toArray();
+
+            netAtStart = new double[segmentStarts.length];
+            slopes = new double[segmentStarts.length];
+            for (int segment = 0; segment < segmentStarts.length; segment++) {
+                long start = segmentStarts[segment];
+                netAtStart[segment] = net(start);
+                slopes[segment] = 1 - rateFractionAt(federal, start) - rateFractionAt(state, start);
+            }
+        }
+
+        static double rateFractionAt(BracketSchedule schedule, long income) {
+            return schedule.size() == 0 ? 0.0 : schedule.rateFraction(schedule.bracketIndexFor(income));
+        }
+
+        public double net(long income) {
+            return income - federal.calculateTax(income) - state.calculateTax(income);
+        }
+
+        public long incomeFor(double targetNet) {
+            if (!(targetNet >= 0) || Double.isInfinite(targetNet)) {
+                throw new IllegalArgumentException("Invalid target net income " + targetNet);
+            }
+            if (targetNet == 0) {
+                return 0;
+            }
+
+            // Last segment whose net at the start is at or below the target
+            int low = 0;
+            int high = segmentStarts.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (netAtStart[middle] <= targetNet) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+
+            int segment = low;
+            boolean last_segment = segment == segmentStarts.length - 1;
+            long start = segmentStarts[segment];
+            long income;
+            if (slopes[segment] <= 0) {
+                // Combined rates of 100% or more: the net stops growing inside this segment
+                if (last_segment) {
+                    throw new ArithmeticException("No income reaches a net of " + targetNet);
+                }
+                income = segmentStarts[segment + 1];
+            }
+            else {
+                // The offset is clamped to the segment; on the last one, an income past Long.MAX_VALUE is no answer at all
+                double offset = Math.ceil((targetNet - netAtStart[segment]) / slopes[segment]);
+                long segment_length = last_segment ? Long.MAX_VALUE - start : segmentStarts[segment + 1] - start;
+                if (offset < (double) segment_length) {
+                    income = Math.addExact(start, (long) offset);
+                }
+                else if (last_segment) {
+                    throw new ArithmeticException("No income up to " + Long.MAX_VALUE + " reaches a net of " + targetNet);
+                }
+                else {
+                    income = segmentStarts[segment + 1];
+                }
+            }
+
+            return settle(income, targetNet);
+        }
+
+        long settle(long income, double targetNet) {
+            // The division can be a dollar off either way (more where doubles no longer hold every dollar); settle it on
+            // the real schedules by galloping away from the candidate and then bisecting, so it takes O(log distance) steps
+            long below;
+            long above;
+            if (income > 0 && net(income - 1) >= targetNet) {
+                above = income - 1;
+                below = above - 1;
+                for (long step = 2; below >= 0 && net(below) >= targetNet; step <<= 1) {
+                    above = below;
+                    below = step < above ? above - step : -1;
+                }
+            }
+            else if (net(income) < targetNet) {
+                below = income;
+                above = Math.addExact(below, 1);
+                for (long step = 2; net(above) < targetNet; step <<= 1) {
+                    below = above;
+                    above = Math.addExact(below, step);
+                }
+            }
+            else {
+                return income;
+            }
+
+            // net(below) < targetNet <= net(above), with below == -1 standing for "below zero"
+            while (above - below > 1) {
+                long middle = below + (above - below) / 2;
+                if (net(middle) >= targetNet) {
+                    above = middle;
+                }
+                else {
+                    below = middle;
+                }
+            }
+            return above;
+        }
+
+        public long grossUp(long baseIncome, double targetNet) {
+            // Extra gross pay on top of baseIncome that adds targetNet to the net
+            return incomeFor(net(baseIncome) + targetNet) - baseIncome;
+        }
+    }
+
+    public GrossUpSolver(BracketRegistry registry) {
+        this.registry = registry;
+
+        int[] years = registry.years();
+        int first_year = years[0];
+        int last_year = years[0];
+        for (int year : years) {
+            first_year = Math.min(first_year, year);
+            last_year = Math.max(last_year, year);
+        }
+        this.firstYear = first_year;
+
+        // Compile every (state, filing status) pair up front; a query then only searches
+        schedules = new NetIncomeSchedule[last_year - first_year + 1][][];
+        for (int year : years) {
+            if (!registry.has(year, Jurisdiction.FEDERAL)) {
+                continue;
+            }
+            NetIncomeSchedule[][] schedules_for_year = new NetIncomeSchedule[Jurisdiction.values().length][];
+            for (Jurisdiction state : Jurisdiction.values()) {
+                if (!registry.has(year, state)) {
+                    continue;
+                }
+                schedules_for_year[state.ordinal()] = new NetIncomeSchedule[FilingStatus.values().length];
+                for (FilingStatus filingStatus : FilingStatus.values()) {
+                    BracketSchedule federal = registry.schedule(year, Jurisdiction.FEDERAL, filingStatus);
+                    BracketSchedule state_schedule = state == Jurisdiction.FEDERAL ? BracketSchedule.EMPTY : registry.schedule(year, state, filingStatus);
+                    schedules_for_year[state.ordinal()][filingStatus.ordinal()] = new NetIncomeSchedule(federal, state_schedule);
+                }
+            }
+            schedules[year - first_year] = schedules_for_year;
+        }
+    }
+
+    public boolean has(int year, Jurisdiction state) {
+        return year >= firstYear && year - firstYear < schedules.length && schedules[year - firstYear] != null && schedules[year - firstYear][state.ordinal()] != null;
+    }
+
+    public NetIncomeSchedule schedule(int year, Jurisdiction state, FilingStatus filingStatus) {
+        return schedules[year - firstYear][state.ordinal()][filingStatus.ordinal()];
+    }
+
+    public long incomeFor(int year, Jurisdiction state, FilingStatus filingStatus, double targetNet) {
+        return schedule(year, state, filingStatus).incomeFor(targetNet);
+    }
+
+    public long grossUp(int year, Jurisdiction state, FilingStatus filingStatus, long baseIncome, double targetNet) {
+        return schedule(year, state, filingStatus).grossUp(baseIncome, targetNet);
+    }
+
+    public void grossUpRows(int[] years, Jurisdiction[] states, FilingStatus[] filingStatuses, long[] baseIncomes, double[] targetNets, int count, long[] grossUps) {
+        // Every row must already be known to the solver (has)
+        for (int row = 0; row < count; row++) {
+            grossUps[row] = schedule(years[row], states[row], filingStatuses[row]).grossUp(baseIncomes[row], targetNets[row]);
+        }
+    }
+
+    static Jurisdiction parseState(String field) {
+        String state = field.trim();
+        return state.equalsIgnoreCase("federal") ? Jurisdiction.FEDERAL : Jurisdiction.fromAbbreviation(state.toUpperCase());
+    }
+
+    static double parseTargetNet(String field) {
+        // Returns -1 for anything that is not a non-negative amount
+        try {
+            double target_net = Double.parseDouble(field.trim());
+            return target_net >= 0 && !Double.isInfinite(target_net) ? target_net : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // JSONL field names, in the order of the CSV columns; the first three are required
+    static final String[] FIELD_NAMES = { "filing_status", "state", "target_net", "base_income", "year" };
+
+    boolean solveRecord(String[] fields, ResultWriter.Encoder encoder, int defaultYear, boolean jsonOutput) {
+        FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+        Jurisdiction state = parseState(fields[1]);
+        double target_net = parseTargetNet(fields[2]);
+        long base_income = fields.length > 3 && !fields[3].trim().isEmpty() ? BatchEstimator.parseTaxableIncome(fields[3]) : 0;
+        int year = fields.length > 4 && !fields[4].trim().isEmpty() ? BatchEstimator.parseYear(fields[4]) : defaultYear;
+
+        if (filingStatus == null || state == null || target_net < 0 || base_income < 0 || year < 0 || !has(year, state)) {
+            return false;
+        }
+
+        // An unreachable target throws an ArithmeticException, which skips the record
+        NetIncomeSchedule schedule = schedule(year, state, filingStatus);
+        long gross_up = schedule.grossUp(base_income, target_net);
+        long total_income = Math.addExact(base_income, gross_up);
+
+        // Taxes on the gross-up alone: the tax at base + gross-up minus the tax at the base
+        double federal_tax = schedule.federal.calculateTax(total_income) - schedule.federal.calculateTax(base_income);
+        double state_tax = schedule.state.calculateTax(total_income) - schedule.state.calculateTax(base_income);
+        double net = gross_up - federal_tax - state_tax;
+        String filing_status_key = TaxEstimator.filingStatusToKey(filingStatus);
+
+        if (jsonOutput) {
+            encoder.append(String.format("{\"filing_status\":\"%s\",\"state\":\"%s\",\"target_net\":%.2f,\"base_income\":%d,\"gross_up\":%d,\"federal_tax\":%.2f,\"state_tax\":%.2f,\"net\":%.2f}",
+                    filing_status_key, state.name(), target_net, base_income, gross_up, federal_tax, state_tax, net));
+        }
+        else {
+            encoder.append(String.format("%s,%s,%.2f,%d,%d,%.2f,%.2f,%.2f",
+                    filing_status_key, state.name(), target_net, base_income, gross_up, federal_tax, state_tax, net));
+        }
+        encoder.append('\n');
+        return true;
+    }
+
+    public void run(String inputFile, String outputFile, int defaultYear) throws IOException {
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        long startTime = System.nanoTime();
+
+        long[] counts = BatchEstimator.forEachRecord(inputFile, outputFile, false, CSV_HEADER, FIELD_NAMES, 3, (fields, encoder) -> solveRecord(fields, encoder, defaultYear, jsonOutput));
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Solved " + counts[0] + " gross-ups (" + counts[1] + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--gross-up" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--gross-up");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --gross-up <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>]");
+            System.exit(-1);
+        }
+
+        int year = options.yearAt(2);
+
+        BatchEstimator.runOrExit(() -> {
+            GrossUpSolver solver = new GrossUpSolver(options.loadRegistry(year));
+            solver.run(options.positional(0), options.positional(1), year);
+        });
+    }
+}
@@ -0,0 +1,194 @@
+/*
+	Comparison mode: every household under every filing status open to it, in every loaded year, in one pass.
+	All years share one BracketRegistry (or calculator chain), so each table is loaded once and reused by
+	every comparison.
+
+	A household is one or two people in one state:
+	    unmarried (no spouse income)    Single, plus Head_of_Household when the household qualifies
+	    married (spouse income given)   Married_Joint on the combined income, or Married_Separate as two
+	                                    returns on each spouse's own income
+
+	For each household and year, the output lists the total (federal + state) tax under each status, the
+	status with the lowest total, and how much that best total changed from the previous year in the list.
+
+	Usage: java TaxEstimator --compare <input.csv|input.jsonl> <output.csv|output.jsonl> [year] --years <y1,y2,...> [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]
+	Input records are household,state,taxable_income[,spouse_taxable_income[,head_of_household]], or JSONL with those names.
+*/
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public final class HouseholdComparison {
+    static final String CSV_HEADER = "household,year,state,single,married_joint,married_separate,head_of_household,best_filing_status,best_total_tax,change_from_previous_year";
+
+    // Column names for the totals, in FilingStatus order
+    static final String[] STATUS_COLUMNS = { "single", "married_joint", "married_separate", "head_of_household" };
+
+    final TaxCalculator calculator;
+    final int[] years;
+
+    // Per year and filing status: the household's total tax, or NaN when the status does not apply
+    final double[][] totals;
+
+    public HouseholdComparison(TaxCalculator calculator, int[] years) {
+        this.calculator = calculator;
+        this.years = Arrays.stream(years).distinct().sorted().toArray();
+        this.totals = new double[this.years.length][FilingStatus.values().length];
+    }
+
+    public boolean canCompare(Jurisdiction state) {
+        for (int year : years) {
+            if (!calculator.has(year, Jurisdiction.FEDERAL) || !calculator.has(year, state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    double totalTax(int year, Jurisdiction state, FilingStatus filingStatus, long taxableIncome) {
+        return calculator.calculateTax(year, Jurisdiction.FEDERAL, filingStatus, taxableIncome) + calculator.calculateTax(year, state, filingStatus, taxableIncome);
+    }
+
+    public void compare(Jurisdiction state, long taxableIncome, long spouseTaxableIncome, boolean headOfHousehold) {
+        // spouseTaxableIncome < 0 means an unmarried household; the results are left in totals
+        for (int year_index = 0; year_index < years.length; year_index++) {
+            int year = years[year_index];
+            double[] totals_for_year = totals[year_index];
+            Arrays.fill(totals_for_year, Double.NaN);
+
+            if (spouseTaxableIncome < 0) {
+                totals_for_year[FilingStatus.Single.ordinal()] = totalTax(year, state, FilingStatus.Single, taxableIncome);
+                if (headOfHousehold) {
+                    totals_for_year[FilingStatus.Head_of_Household.ordinal()] = totalTax(year, state, FilingStatus.Head_of_Household, taxableIncome);
+                }
+            }
+            else {
+                totals_for_year[FilingStatus.Married_Joint.ordinal()] = totalTax(year, state, FilingStatus.Married_Joint, Math.addExact(taxableIncome, spouseTaxableIncome));
+                totals_for_year[FilingStatus.Married_Separate.ordinal()] = totalTax(year, state, FilingStatus.Married_Separate, taxableIncome)
+                        + totalTax(year, state, FilingStatus.Married_Separate, spouseTaxableIncome);
+            }
+        }
+    }
+
+    public FilingStatus bestFilingStatus(int year_index) {
+        // Lowest total; on a tie the status listed first in FilingStatus wins
+        FilingStatus best = null;
+        for (FilingStatus filingStatus : FilingStatus.values()) {
+            double total = totals[year_index][filingStatus.ordinal()];
+            if (!Double.isNaN(total) && (best == null || total < totals[year_index][best.ordinal()])) {
+                best = filingStatus;
+            }
+        }
+        return best;
+    }
+
+    public double total(int year_index, FilingStatus filingStatus) {
+        return totals[year_index][filingStatus.ordinal()];
+    }
+
+    void encode(ResultWriter.Encoder encoder, String household, Jurisdiction state, boolean jsonOutput) {
+        double previous_best = Double.NaN;
+        for (int year_index = 0; year_index < years.length; year_index++) {
+            FilingStatus best = bestFilingStatus(year_index);
+            double best_total = total(year_index, best);
+
+            if (jsonOutput) {
+                encoder.append("{\"household\":").append(jsonString(household));
+                encoder.append(",\"year\":").append(years[year_index]);
+                encoder.append(",\"state\":\"").append(state.name()).append('"');
+                for (FilingStatus filingStatus : FilingStatus.values()) {
+                    encoder.append(",\"").append(STATUS_COLUMNS[filingStatus.ordinal()]).append("\":");
+                    appendTotal(encoder, total(year_index, filingStatus), "null");
+                }
+                encoder.append(",\"best_filing_status\":\"").appendFilingStatus(best);
+                encoder.append("\",\"best_total_tax\":").appendCents(best_total);
+                encoder.append(",\"change_from_previous_year\":");
+                appendTotal(encoder, best_total - previous_best, "null");
+                encoder.append("}\n");
+            }
+            else {
+                encoder.append(household).append(',').append(years[year_index]).append(',').append(state.name());
+                for (FilingStatus filingStatus : FilingStatus.values()) {
+                    encoder.append(',');
+                    appendTotal(encoder, total(year_index, filingStatus), "");
+                }
+                encoder.append(',').appendFilingStatus(best);
+                encoder.append(',').appendCents(best_total);
+                encoder.append(',');
+                appendTotal(encoder, best_total - previous_best, "");
+                encoder.append('\n');
+            }
+
+            previous_best = best_total;
+        }
+    }
+
+    static void appendTotal(ResultWriter.Encoder encoder, double value, String missing) {
+        if (Double.isNaN(value)) {
+            encoder.append(missing);
+        }
+        else {
+            encoder.appendCents(value);
+        }
+    }
+
+    static String jsonString(String value) {
+        return "\"" + org.json.simple.JSONValue.escape(value) + "\"";
+    }
+
+    static boolean parseFlag(String field) {
+        String value = field.trim().toLowerCase();
+        return value.equals("true") || value.equals("yes") || value.equals("1");
+    }
+
+    // JSONL field names, in the order of the CSV columns; the first three are required
+    static final String[] FIELD_NAMES = { "household", "state", "taxable_income", "spouse_taxable_income", "head_of_household" };
+
+    boolean compareRecord(String[] fields, ResultWriter.Encoder encoder, boolean jsonOutput) {
+        String household = fields[0].trim();
+        Jurisdiction state = Jurisdiction.fromAbbreviation(fields[1].trim().toUpperCase());
+        long taxable_income = BatchEstimator.parseTaxableIncome(fields[2]);
+        boolean married = fields.length > 3 && !fields[3].trim().isEmpty();
+        long spouse_taxable_income = married ? BatchEstimator.parseTaxableIncome(fields[3]) : -1;
+        boolean head_of_household = fields.length > 4 && parseFlag(fields[4]);
+
+        if (state == null || taxable_income < 0 || (married && spouse_taxable_income < 0) || household.indexOf(',') >= 0 || !canCompare(state)) {
+            return false;
+        }
+
+        // Combined incomes past a long (or past what --exact can hold) throw, which skips the household as invalid
+        compare(state, taxable_income, spouse_taxable_income, head_of_household);
+        encode(encoder, household, state, jsonOutput);
+        return true;
+    }
+
+    public void run(String inputFile, String outputFile, boolean gzip) throws IOException {
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        long startTime = System.nanoTime();
+
+        long[] counts = BatchEstimator.forEachRecord(inputFile, outputFile, gzip, CSV_HEADER, FIELD_NAMES, 3, (fields, encoder) -> compareRecord(fields, encoder, jsonOutput));
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Compared " + counts[0] + " households (" + counts[1] + " skipped) across " + years.length + " years in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--compare" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--compare");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --compare <input.csv|input.jsonl> <output.csv|output.jsonl> [year] --years <y1,y2,...> [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]");
+            System.exit(-1);
+        }
+
+        int year = options.yearAt(2);
+
+        BatchEstimator.runOrExit(() -> {
+            BracketRegistry registry = options.loadRegistry(year);
+            // Without --years a snapshot is compared across all the years it carries
+            int[] years = options.snapshotFile != null && options.extra_years.isEmpty() ? registry.years() : options.years(year);
+            HouseholdComparison comparison = new HouseholdComparison(options.calculator(registry), years);
+            comparison.run(options.positional(0), options.positional(1), options.hasFlag("--gzip"));
+        });
+    }
+}
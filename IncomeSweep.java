@@ -0,0 +1,237 @@
+/*
+	What-if sweep over a range of incomes.
+	A sweep calculates the tax at every income from..to in fixed steps, for every jurisdiction and filing
+	status in the registry, and keeps the results as curves: tax, marginal rate, effective rate and
+	take-home pay at each point.
+
+	The points are visited in increasing order, so the bracket index only ever moves forward. The next
+	point starts from the previous point's bracket and moves up one bracket at a time until its top is
+	at or above the income. The tax is then the bracket's precomputed cumulative tax plus one
+	multiply-add, the same expression BracketSchedule.calculateTax uses. Each point therefore costs
+	constant time and matches calculateTax bit for bit.
+
+	Take-home for a state curve is the income minus the federal tax and that state's tax. For the federal
+	curve it is the income minus the federal tax only.
+
+	Usage: java TaxEstimator --sweep <output.csv|output.jsonl> [year] [--from <income>] [--to <income>] [--step <dollars>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--gzip]
+*/
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.json.simple.parser.ParseException;
+
+public final class IncomeSweep {
+    static final String CSV_HEADER = "jurisdiction,filing_status,taxable_income,tax,marginal_rate,effective_tax_rate,take_home";
+
+    static final long DEFAULT_FROM = 0;
+    static final long DEFAULT_TO = 1_000_000;
+    static final long DEFAULT_STEP = 100;
+
+    final int year;
+    final long fromIncome;
+    final long step;
+    final int points;
+
+    // [jurisdiction][filing status]; null for a jurisdiction the registry has no data for
+    final Curve[][] curves = new Curve[Jurisdiction.values().length][];
+
+    public static final class Curve {
+        final double[] taxes;
+        final double[] marginalRates;
+
+        Curve(int points) {
+            taxes = new double[points];
+            marginalRates = new double[points];
+        }
+
+        public double tax(int point) {
+            return taxes[point];
+        }
+
+        public double marginalRate(int point) {
+            return marginalRates[point];
+        }
+    }
+
+    IncomeSweep(int year, long fromIncome, long step, int points) {
+        this.year = year;
+        this.fromIncome = fromIncome;
+        this.step = step;
+        this.points = points;
+    }
+
+    public static IncomeSweep run(BracketRegistry registry, int year, long fromIncome, long toIncome, long step) {
+        if (fromIncome < 0 || toIncome < fromIncome || step < 1) {
+            throw new IllegalArgumentException("Invalid sweep range " + fromIncome + ".." + toIncome + " in steps of " + step);
+        }
+        long point_count = (toIncome - fromIncome) / step + 1;
+        if (point_count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many sweep points (" + point_count + "), use a larger step");
+        }
+
+        IncomeSweep sweep = new IncomeSweep(year, fromIncome, step, (int) point_count);
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            if (!registry.has(year, jurisdiction)) {
+                continue;
+            }
+            sweep.curves[jurisdiction.ordinal()] = new Curve[FilingStatus.values().length];
+            for (FilingStatus filingStatus : FilingStatus.values()) {
+                Curve curve = new Curve(sweep.points);
+                sweepSchedule(registry.schedule(year, jurisdiction, filingStatus), fromIncome, step, sweep.points, curve.taxes, curve.marginalRates);
+                sweep.curves[jurisdiction.ordinal()][filingStatus.ordinal()] = curve;
+            }
+        }
+        return sweep;
+    }
+
+    public static void sweepSchedule(BracketSchedule schedule, long fromIncome, long step, int points, double[] taxes, double[] marginalRates) {
+        if (schedule.size() == 0) {
+            Arrays.fill(taxes, 0, points, 0.0);
+            Arrays.fill(marginalRates, 0, points, 0.0);
+            return;
+        }
+
+        // One binary search for the first point; after that the bracket index only moves forward
+        int bracket_index = schedule.bracketIndexFor(fromIncome);
+        double cumulative_tax = schedule.cumulativeTaxAt(bracket_index);
+        double rate_fraction = schedule.rateFraction(bracket_index);
+        long bracket_low = schedule.bracketLow(bracket_index);
+        long bracket_high = schedule.isLastBracket(bracket_index) ? Long.MAX_VALUE : schedule.bracketHigh(bracket_index);
+
+        long income = fromIncome;
+        for (int point = 0; point < points; point++, income += step) {
+            while (income > bracket_high) {
+                bracket_index++;
+                cumulative_tax = schedule.cumulativeTaxAt(bracket_index);
+                rate_fraction = schedule.rateFraction(bracket_index);
+                bracket_low = schedule.bracketLow(bracket_index);
+                bracket_high = schedule.isLastBracket(bracket_index) ? Long.MAX_VALUE : schedule.bracketHigh(bracket_index);
+            }
+            taxes[point] = cumulative_tax + rate_fraction * (income - bracket_low);
+            marginalRates[point] = schedule.taxRate(bracket_index);
+        }
+    }
+
+    public int points() {
+        return points;
+    }
+
+    public long income(int point) {
+        return fromIncome + point * step;
+    }
+
+    public boolean has(Jurisdiction jurisdiction) {
+        return curves[jurisdiction.ordinal()] != null;
+    }
+
+    public Curve curve(Jurisdiction jurisdiction, FilingStatus filingStatus) {
+        return curves[jurisdiction.ordinal()][filingStatus.ordinal()];
+    }
+
+    public double effectiveRate(Jurisdiction jurisdiction, FilingStatus filingStatus, int point) {
+        // In percent, like the batch output
+        long income = income(point);
+        return income == 0 ? 0.0 : (curve(jurisdiction, filingStatus).tax(point) / income) * 100;
+    }
+
+    public double takeHome(Jurisdiction jurisdiction, FilingStatus filingStatus, int point) {
+        double take_home = income(point) - curve(Jurisdiction.FEDERAL, filingStatus).tax(point);
+        return jurisdiction == Jurisdiction.FEDERAL ? take_home : take_home - curve(jurisdiction, filingStatus).tax(point);
+    }
+
+    public void write(ResultWriter writer, boolean jsonOutput) throws IOException {
+        if (!has(Jurisdiction.FEDERAL)) {
+            throw new IllegalStateException("Take-home pay needs the federal brackets for " + year);
+        }
+        if (!jsonOutput) {
+            writer.writeLine(CSV_HEADER);
+        }
+
+        ResultWriter.Encoder encoder = new ResultWriter.Encoder();
+
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            if (!has(jurisdiction)) {
+                continue;
+            }
+            for (FilingStatus filingStatus : FilingStatus.values()) {
+                Curve curve = curve(jurisdiction, filingStatus);
+
+                for (int point = 0; point < points; point++) {
+                    if (jsonOutput) {
+                        encoder.append("{\"jurisdiction\":\"").append(jurisdiction.name());
+                        encoder.append("\",\"filing_status\":\"").appendFilingStatus(filingStatus);
+                        encoder.append("\",\"taxable_income\":").append(income(point));
+                        encoder.append(",\"tax\":").appendCents(curve.tax(point));
+                        encoder.append(",\"marginal_rate\":").appendCents(curve.marginalRate(point));
+                        encoder.append(",\"effective_tax_rate\":").appendCents(effectiveRate(jurisdiction, filingStatus, point));
+                        encoder.append(",\"take_home\":").appendCents(takeHome(jurisdiction, filingStatus, point)).append("}\n");
+                    }
+                    else {
+                        encoder.append(jurisdiction.name()).append(',').appendFilingStatus(filingStatus).append(',').append(income(point));
+                        encoder.append(',').appendCents(curve.tax(point));
+                        encoder.append(',').appendCents(curve.marginalRate(point));
+                        encoder.append(',').appendCents(effectiveRate(jurisdiction, filingStatus, point));
+                        encoder.append(',').appendCents(takeHome(jurisdiction, filingStatus, point)).append('\n');
+                    }
+
+                    if (encoder.length() >= 1 << 16) {
+                        writer.write(encoder);
+                        encoder.reset();
+                    }
+                }
+            }
+        }
+        writer.write(encoder);
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--sweep" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--sweep", "--from", "--to", "--step");
+
+        if (options.positionalCount() < 1) {
+            System.out.println("Usage: java TaxEstimator --sweep <output.csv|output.jsonl> [year] [--from <income>] [--to <income>] [--step <dollars>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--gzip]");
+            System.exit(-1);
+        }
+
+        String outputFile = options.positional(0);
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        int year = options.yearAt(1);
+        long from_income = Long.parseLong(options.flag("--from", Long.toString(DEFAULT_FROM)));
+        long to_income = Long.parseLong(options.flag("--to", Long.toString(DEFAULT_TO)));
+        long step = Long.parseLong(options.flag("--step", Long.toString(DEFAULT_STEP)));
+
+        try {
+            BracketRegistry registry = options.loadRegistry(year);
+
+            long startTime = System.nanoTime();
+            IncomeSweep sweep = IncomeSweep.run(registry, year, from_income, to_income, step);
+            double sweep_seconds = (System.nanoTime() - startTime) / 1e9;
+
+            int curve_count = 0;
+            for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+                curve_count += sweep.has(jurisdiction) ? FilingStatus.values().length : 0;
+            }
+            System.out.println("Swept " + curve_count + " curves of " + sweep.points() + " points in " + String.format("%.3f", sweep_seconds) + " seconds.");
+
+            ResultWriter writer = ResultWriter.open(outputFile, options.hasFlag("--gzip"));
+            try {
+                sweep.write(writer, jsonOutput);
+            }
+            finally {
+                writer.close();
+            }
+            System.out.println("Wrote " + outputFile + " in " + String.format("%.3f", (System.nanoTime() - startTime) / 1e9 - sweep_seconds) + " seconds.");
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+	Every jurisdiction the estimator has bracket data for: the federal government plus the
+	50 states and DC. The enum ordinal is used to index the BracketRegistry arrays.
+*/
+
+public enum Jurisdiction {
+    FEDERAL("federal"),
+    AL("alabama"),
+    AK("alaska"),
+    AZ("arizona"),
+    AR("arkansas"),
+    CA("california"),
+    CO("colorado"),
+    CT("connecticut"),
+    DE("delaware"),
+    DC("district_of_columbia"),
+    FL("florida"),
+    GA("georgia"),
+    HI("hawaii"),
+    ID("idaho"),
+    IL("illinois"),
+    IN("indiana"),
+    IA("iowa"),
+    KS("kansas"),
+    KY("kentucky"),
+    LA("louisiana"),
+    ME("maine"),
+    MD("maryland"),
+    MA("massachusetts"),
+    MI("michigan"),
+    MN("minnesota"),
+    MS("mississippi"),
+    MO("missouri"),
+    MT("montana"),
+    NE("nebraska"),
+    NV("nevada"),
+    NH("new_hampshire"),
+    NJ("new_jersey"),
+    NM("new_mexico"),
+    NY("new_york"),
+    NC("north_carolina"),
+    ND("north_dakota"),
+    OH("ohio"),
+    OK("oklahoma"),
+    OR("oregon"),
+    PA("pennsylvania"),
+    RI("rhode_island"),
+    SC("south_carolina"),
+    SD("south_dakota"),
+    TN("tennessee"),
+    TX("texas"),
+    UT("utah"),
+    VT("vermont"),
+    VA("virginia"),
+    WA("washington"),
+    WV("west_virginia"),
+    WI("wisconsin"),
+    WY("wyoming");
+
+    // Lookup table indexed by the two letters of the abbreviation, so parsing a state needs no string hashing
+    private static final Jurisdiction[] BY_ABBREVIATION = new Jurisdiction[26 * 26];
+    public static final int STATE_COUNT = values().length - 1;
+
+    static {
+        for (Jurisdiction jurisdiction : values()) {
+            if (jurisdiction != FEDERAL) {
+                BY_ABBREVIATION[(jurisdiction.name().charAt(0) - 'A') * 26 + (jurisdiction.name().charAt(1) - 'A')] = jurisdiction;
+            }
+        }
+    }
+
+    final String fileName;
+
+    Jurisdiction(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    public String jsonFileName() {
+        return fileName + ".json";
+    }
+
+    public boolean isState() {
+        return this != FEDERAL;
+    }
+
+    public static Jurisdiction fromAbbreviation(CharSequence abbreviation) {
+        // Returns null for anything that is not a two-letter state abbreviation (case-insensitive, surrounding spaces allowed)
+        int start = 0;
+        int end = abbreviation.length();
+        while (start < end && abbreviation.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && abbreviation.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end - start != 2) {
+            return null;
+        }
+
+        int first = Character.toUpperCase(abbreviation.charAt(start)) - 'A';
+        int second = Character.toUpperCase(abbreviation.charAt(start + 1)) - 'A';
+        if (first < 0 || first >= 26 || second < 0 || second >= 26) {
+            return null;
+        }
+        return BY_ABBREVIATION[first * 26 + second];
+    }
+}
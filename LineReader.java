@@ -0,0 +1,97 @@
+/*
+	Reads a file one line at a time as raw bytes and keeps the byte offset of the end of every line.
+	Checkpointed batch runs journal how far into the input they got as a byte offset and resume reading
+	there; ResultIndex copies the result rows it does not change as bytes, without decoding them.
+	text() decodes the current line as UTF-8 without its line ending ("\n" or "\r\n").
+*/
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public final class LineReader implements Closeable {
+    final FileInputStream in;
+    final byte[] buffer = new byte[1 << 16];
+    int buffered;
+    int position;
+    long offset;
+
+    // The current line, including its '\n' if the file has one, so copying it reproduces the file exactly
+    byte[] line = new byte[256];
+    int length;
+
+    public LineReader(Path file) throws IOException {
+        this(file, 0);
+    }
+
+    public LineReader(Path file, long startOffset) throws IOException {
+        in = new FileInputStream(file.toFile());
+        in.getChannel().position(startOffset);
+        offset = startOffset;
+    }
+
+    public boolean next() throws IOException {
+        length = 0;
+        while (true) {
+            if (position == buffered) {
+                buffered = Math.max(0, in.read(buffer, 0, buffer.length));
+                position = 0;
+                if (buffered == 0) {
+                    return length > 0;
+                }
+            }
+
+            int start = position;
+            while (position < buffered && buffer[position] != '\n') {
+                position++;
+            }
+            boolean end_of_line = position < buffered;
+            if (end_of_line) {
+                position++;
+            }
+
+            int part = position - start;
+            if (length + part > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + part));
+            }
+            System.arraycopy(buffer, start, line, length, part);
+            length += part;
+            offset += part;
+
+            if (end_of_line) {
+                return true;
+            }
+        }
+    }
+
+    public long offset() {
+        // Byte offset just past the current line
+        return offset;
+    }
+
+    public byte[] bytes() {
+        return line;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public String text() {
+        int end = length;
+        if (end > 0 && line[end - 1] == '\n') {
+            end--;
+        }
+        if (end > 0 && line[end - 1] == '\r') {
+            end--;
+        }
+        return new String(line, 0, end, StandardCharsets.UTF_8);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
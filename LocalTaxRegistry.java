@@ -0,0 +1,136 @@
+/*
+	Local (city, county, school district) income tax schedules, compiled once and shared like the state ones.
+	taxee has no local data, so these files are kept by hand under <data directory>/<year>/local/<ST>/<name>.json,
+	in the same layout as a state file (a flat local tax is a single bracket starting at 0). BracketDataFetcher
+	never touches them.
+
+	A locality is named "<ST>/<name>", e.g. NY/new_york_city, and lies in state ST. Every name found in any loaded
+	year gets a small integer index when the registry is loaded, so a lookup is the same array walk as in
+	BracketRegistry: [year - firstYear][local index][filing status].
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import org.json.simple.parser.ParseException;
+
+public final class LocalTaxRegistry {
+    public static final String LOCAL_DIRECTORY = "local";
+    public static final LocalTaxRegistry EMPTY = new LocalTaxRegistry(0, new String[0], new BracketSchedule[0][][]);
+
+    private final int firstYear;
+    private final String[] names;
+    private final Jurisdiction[] states;
+    private final HashMap<String, Integer> indexes_by_name = new HashMap<String, Integer>();
+
+    // [year - firstYear][local index][filing status ordinal], null where a year has no file for that locality
+    private final BracketSchedule[][][] schedules;
+
+    LocalTaxRegistry(int firstYear, String[] names, BracketSchedule[][][] schedules) {
+        this.firstYear = firstYear;
+        this.names = names;
+        this.states = new Jurisdiction[names.length];
+        this.schedules = schedules;
+
+        for (int local_index = 0; local_index < names.length; local_index++) {
+            states[local_index] = Jurisdiction.fromAbbreviation(names[local_index].substring(0, names[local_index].indexOf('/')));
+            indexes_by_name.put(names[local_index], local_index);
+        }
+    }
+
+    public static LocalTaxRegistry load(Path dataDirectory, int[] years) throws IOException, ParseException {
+        int[] sortedYears = years.clone();
+        Arrays.sort(sortedYears);
+        int firstYear = sortedYears[0];
+
+        // First collect every locality across all years, so each one has the same index in every year
+        TreeSet<String> name_set = new TreeSet<String>();
+        HashMap<String, Path> files_by_year_and_name = new HashMap<String, Path>();
+        for (int year : sortedYears) {
+            File[] state_directories = dataDirectory.resolve(Integer.toString(year)).resolve(LOCAL_DIRECTORY).toFile().listFiles(File::isDirectory);
+            if (state_directories == null) {
+                continue;
+            }
+            for (File state_directory : state_directories) {
+                Jurisdiction state = Jurisdiction.fromAbbreviation(state_directory.getName());
+                File[] local_files = state_directory.listFiles((directory, file_name) -> file_name.endsWith(".json"));
+                if (state == null || local_files == null) {
+                    continue;
+                }
+                for (File local_file : local_files) {
+                    String file_name = local_file.getName();
+                    String local_name = localName(state, file_name.substring(0, file_name.length() - ".json".length()));
+                    name_set.add(local_name);
+                    files_by_year_and_name.put(year + ":" + local_name, local_file.toPath());
+                }
+            }
+        }
+
+        if (name_set.isEmpty()) {
+            return EMPTY;
+        }
+
+        String[] names = name_set.toArray(new String[0]);
+        BracketSchedule[][][] schedules = new BracketSchedule[sortedYears[sortedYears.length - 1] - firstYear + 1][][];
+        TaxeeJsonParser parser = new TaxeeJsonParser();
+
+        for (int year : sortedYears) {
+            BracketSchedule[][] schedules_for_year = new BracketSchedule[names.length][];
+            for (int local_index = 0; local_index < names.length; local_index++) {
+                Path jsonFile = files_by_year_and_name.get(year + ":" + names[local_index]);
+                if (jsonFile == null) {
+                    continue;
+                }
+
+                long started = Metrics.ENABLED ? System.nanoTime() : 0;
+                schedules_for_year[local_index] = parser.parse(jsonFile, false);
+                if (Metrics.ENABLED) {
+                    Metrics.record(Metrics.Phase.PARSE, Jurisdiction.fromAbbreviation(names[local_index].substring(0, 2)), started);
+                }
+            }
+            schedules[year - firstYear] = schedules_for_year;
+        }
+
+        return new LocalTaxRegistry(firstYear, names, schedules);
+    }
+
+    static String localName(Jurisdiction state, String name) {
+        return state.name() + "/" + name.toLowerCase();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int indexOf(String localName) {
+        // -1 for a locality no loaded year has a file for; the state part may be any case
+        int slash = localName.indexOf('/');
+        if (slash != 2) {
+            return -1;
+        }
+        Jurisdiction state = Jurisdiction.fromAbbreviation(localName.substring(0, slash));
+        Integer local_index = state == null ? null : indexes_by_name.get(localName(state, localName.substring(slash + 1).trim()));
+        return local_index == null ? -1 : local_index;
+    }
+
+    public String name(int local_index) {
+        return names[local_index];
+    }
+
+    public Jurisdiction state(int local_index) {
+        return states[local_index];
+    }
+
+    public boolean has(int year, int local_index) {
+        return year >= firstYear && year - firstYear < schedules.length && schedules[year - firstYear] != null
+                && schedules[year - firstYear][local_index] != null;
+    }
+
+    public double calculateTax(int year, int local_index, FilingStatus filingStatus, long taxableIncome) {
+        return schedules[year - firstYear][local_index][filingStatus.ordinal()].calculateTax(taxableIncome);
+    }
+}
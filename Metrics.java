@@ -0,0 +1,356 @@
+/*
+	Counters and latency histograms for the download, parse, calculation, batch and request phases, per jurisdiction.
+	Metrics are off unless the JVM starts with -Dtaxestimator.metrics=true, or a mode is given --metrics. ENABLED is
+	a static final, so every instrumentation site is guarded by "if (Metrics.ENABLED)". When metrics are off the JIT
+	drops those branches entirely, and the instrumentation costs nothing on the calculation path.
+
+	When enabled, the numbers are published over JMX as taxestimator:type=Metrics (see MetricsMXBean). With
+	--metrics-dump <file|-> they are also written out every --metrics-interval seconds and once more at exit. A
+	file name ending in .json gets JSON, anything else gets a text table, and - is standard output.
+
+	A latency histogram has 8 linear sub-buckets per power of two, so a percentile is reported within 12.5%
+	of the true value. Recording one value is a few atomic adds and takes no lock.
+*/
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class Metrics implements MetricsMXBean {
+    public static final String ENABLED_PROPERTY = "taxestimator.metrics";
+    public static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+    public static final String OBJECT_NAME = "taxestimator:type=Metrics";
+
+    public enum Phase {
+        DOWNLOAD,
+        PARSE,
+        CALCULATE,
+        BATCH,
+        REQUEST
+    }
+
+    public enum Counter {
+        DOWNLOADS,
+        DOWNLOAD_BYTES,
+        DOWNLOAD_FAILURES,
+        RECORDS_PROCESSED,
+        RECORDS_SKIPPED,
+        CACHE_HITS,
+        CACHE_MISSES,
+        CACHE_EVICTIONS,
+        REQUESTS,
+        RELOADS
+    }
+
+    // The last slot of every per-jurisdiction array is for events that belong to no single jurisdiction
+    static final int NO_JURISDICTION = Jurisdiction.values().length;
+    static final int SLOTS = NO_JURISDICTION + 1;
+
+    static final LatencyHistogram[][] latencies = new LatencyHistogram[ENABLED ? Phase.values().length : 0][SLOTS];
+    static final LongAdder[][] counters = new LongAdder[ENABLED ? Counter.values().length : 0][SLOTS];
+    static final Metrics INSTANCE = new Metrics();
+
+    static {
+        for (int phase = 0; phase < latencies.length; phase++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                latencies[phase][slot] = new LatencyHistogram();
+            }
+        }
+        for (int counter = 0; counter < counters.length; counter++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                counters[counter][slot] = new LongAdder();
+            }
+        }
+
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException e) {
+                System.out.println("Could not register the metrics MBean: " + e);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static int slot(Jurisdiction jurisdiction) {
+        return jurisdiction == null ? NO_JURISDICTION : jurisdiction.ordinal();
+    }
+
+    public static void record(Phase phase, Jurisdiction jurisdiction, long startNanos) {
+        if (ENABLED) {
+            latencies[phase.ordinal()][slot(jurisdiction)].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public static void count(Counter counter, Jurisdiction jurisdiction, long amount) {
+        if (ENABLED) {
+            counters[counter.ordinal()][slot(jurisdiction)].add(amount);
+        }
+    }
+
+    public static Jurisdiction jurisdictionOfFile(String file_name) {
+        // Bracket files are named after their jurisdiction, e.g. tax_data/2019/new_york.json
+        String base_name = Paths.get(file_name).getFileName().toString();
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            if (jurisdiction.jsonFileName().equals(base_name)) {
+                return jurisdiction;
+            }
+        }
+        return null;
+    }
+
+    static final class LatencyHistogram {
+        static final int SUB_BUCKET_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        static int bucketFor(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) Math.max(0, nanos);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub_bucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+        }
+
+        static long bucketTop(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+        }
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucketFor(nanos));
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        void reset() {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                buckets.set(bucket, 0);
+            }
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+
+    // A merged, point-in-time copy of one or more histograms
+    static final class LatencySummary {
+        final long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        void add(LatencyHistogram histogram) {
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                long bucket_count = histogram.buckets.get(bucket);
+                buckets[bucket] += bucket_count;
+                count += bucket_count;
+            }
+            totalNanos += histogram.totalNanos.sum();
+            maxNanos = Math.max(maxNanos, histogram.maxNanos.get());
+        }
+
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(LatencyHistogram.bucketTop(bucket), maxNanos);
+                }
+            }
+            return 0;
+        }
+
+        long mean() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+    }
+
+    static String jurisdictionSuffix(int slot) {
+        return slot == NO_JURISDICTION ? "" : "." + Jurisdiction.values()[slot].name();
+    }
+
+    static LinkedHashMap<String, Long> counterValues() {
+        // NAME is the total over all jurisdictions, NAME.<jurisdiction> the part for one jurisdiction
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Counter counter : Counter.values()) {
+            if (!ENABLED) {
+                break;
+            }
+            long total = 0;
+            LinkedHashMap<String, Long> by_jurisdiction = new LinkedHashMap<String, Long>();
+            for (int slot = 0; slot < SLOTS; slot++) {
+                long value = counters[counter.ordinal()][slot].sum();
+                total += value;
+                if (value != 0 && slot != NO_JURISDICTION) {
+                    by_jurisdiction.put(counter.name() + jurisdictionSuffix(slot), value);
+                }
+            }
+            if (total != 0) {
+                values.put(counter.name(), total);
+                values.putAll(by_jurisdiction);
+            }
+        }
+        return values;
+    }
+
+    static LinkedHashMap<String, LatencySummary> latencySummaries() {
+        LinkedHashMap<String, LatencySummary> summaries = new LinkedHashMap<String, LatencySummary>();
+        for (Phase phase : Phase.values()) {
+            if (!ENABLED) {
+                break;
+            }
+            LatencySummary total = new LatencySummary();
+            LinkedHashMap<String, LatencySummary> by_jurisdiction = new LinkedHashMap<String, LatencySummary>();
+            for (int slot = 0; slot < SLOTS; slot++) {
+                LatencyHistogram histogram = latencies[phase.ordinal()][slot];
+                total.add(histogram);
+                if (slot != NO_JURISDICTION) {
+                    LatencySummary summary = new LatencySummary();
+                    summary.add(histogram);
+                    if (summary.count > 0) {
+                        by_jurisdiction.put(phase.name() + jurisdictionSuffix(slot), summary);
+                    }
+                }
+            }
+            if (total.count > 0) {
+                summaries.put(phase.name(), total);
+                summaries.putAll(by_jurisdiction);
+            }
+        }
+        return summaries;
+    }
+
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counterValues();
+    }
+
+    public Map<String, Long> getLatencies() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, LatencySummary> entry : latencySummaries().entrySet()) {
+            LatencySummary summary = entry.getValue();
+            values.put(entry.getKey() + ".count", summary.count);
+            values.put(entry.getKey() + ".mean_ns", summary.mean());
+            values.put(entry.getKey() + ".p50_ns", summary.percentile(0.50));
+            values.put(entry.getKey() + ".p90_ns", summary.percentile(0.90));
+            values.put(entry.getKey() + ".p99_ns", summary.percentile(0.99));
+            values.put(entry.getKey() + ".max_ns", summary.maxNanos);
+        }
+        return values;
+    }
+
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-32s %15s%n", "counter", "value"));
+        for (Map.Entry<String, Long> entry : counterValues().entrySet()) {
+            text.append(String.format("%-32s %15d%n", entry.getKey(), entry.getValue()));
+        }
+
+        text.append(String.format("%n%-32s %10s %12s %12s %12s %12s %12s%n", "latency (ns)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencySummary> entry : latencySummaries().entrySet()) {
+            LatencySummary summary = entry.getValue();
+            text.append(String.format("%-32s %10d %12d %12d %12d %12d %12d%n", entry.getKey(), summary.count, summary.mean(),
+                    summary.percentile(0.50), summary.percentile(0.90), summary.percentile(0.99), summary.maxNanos));
+        }
+        return text.toString();
+    }
+
+    public String getJson() {
+        StringBuilder json = new StringBuilder("{\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : counterValues().entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            first = false;
+        }
+
+        json.append("},\"latencies\":{");
+        first = true;
+        for (Map.Entry<String, LatencySummary> entry : latencySummaries().entrySet()) {
+            LatencySummary summary = entry.getValue();
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":{")
+                    .append("\"count\":").append(summary.count)
+                    .append(",\"mean_ns\":").append(summary.mean())
+                    .append(",\"p50_ns\":").append(summary.percentile(0.50))
+                    .append(",\"p90_ns\":").append(summary.percentile(0.90))
+                    .append(",\"p99_ns\":").append(summary.percentile(0.99))
+                    .append(",\"max_ns\":").append(summary.maxNanos).append('}');
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+
+    public void reset() {
+        for (LatencyHistogram[] histograms : latencies) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+        for (LongAdder[] counters_by_slot : counters) {
+            for (LongAdder counter : counters_by_slot) {
+                counter.reset();
+            }
+        }
+    }
+
+    public static void startDump(String target, long intervalSeconds) {
+        if (!ENABLED) {
+            return;
+        }
+
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(target), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        // One last dump at exit, so a short batch run still reports everything
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(target), "metrics-final-dump"));
+    }
+
+    static void dump(String target) {
+        String report = target.endsWith(".json") ? INSTANCE.getJson() + "\n" : INSTANCE.getText();
+        if (target.equals("-")) {
+            System.out.print(report);
+            System.out.flush();
+            return;
+        }
+
+        try {
+            BracketDataFetcher.writeAtomically(Paths.get(target).toAbsolutePath(), report.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            System.out.println("An IOException occurred: " + e);
+        }
+    }
+}
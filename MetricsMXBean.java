@@ -0,0 +1,21 @@
+/*
+	JMX view of Metrics, registered as taxestimator:type=Metrics when metrics are enabled.
+	Counters are keyed NAME or NAME.<jurisdiction>. Latencies are keyed PHASE[.<jurisdiction>].<statistic>,
+	with the statistics count, mean_ns, p50_ns, p90_ns, p99_ns and max_ns.
+*/
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    boolean isEnabled();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getLatencies();
+
+    String getText();
+
+    String getJson();
+
+    void reset();
+}
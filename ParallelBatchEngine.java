@@ -0,0 +1,444 @@
+/*
+	Multi-core batch engine for the Tax Estimator
+	The input is read in chunks of lines. Each chunk is split recursively on a ForkJoinPool
+	(so idle workers steal the remaining halves), and finished chunks are written out in the
+	same order they were read. All threads share one thread-safe TaxCalculator.
+	Each leaf task encodes its own output rows to bytes (ResultWriter.Encoder), so the writing thread only
+	copies finished blocks into the ResultWriter.
+	With --columnar, each leaf task hands its records to a ColumnarTaxCalculator as income columns grouped by
+	(year, jurisdiction, filing status) instead of calculating them one at a time.
+
+	With --checkpoint <file>, the engine journals its progress after every chunk it writes (see BatchJournal).
+	Running the same command again after the job died picks up after the last finished chunk and appends to
+	the output it already has.
+	With --rejects <file>, input lines that cannot be estimated are written there with the reason instead of
+	being reported on the console: line_number,reason,record.
+
+	Usage: java TaxEstimator --batch <input> <output> [year] --threads <n> [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--columnar] [--exact [--rounding <rules>]] [--gzip] [--checkpoint <file>] [--rejects <file>]
+	Records may carry a fourth "year" field; records without one use the default year.
+*/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.json.simple.parser.JSONParser;
+
+public class ParallelBatchEngine {
+    static final int CHUNK_SIZE = 16384;
+    static final int SPLIT_THRESHOLD = 1024;
+    static final String REJECTS_HEADER = "line_number,reason,record";
+
+    final TaxCalculator calculator;
+    final int defaultYear;
+    final ForkJoinPool pool;
+    ColumnarTaxCalculator columnarCalculator;
+    boolean gzip;
+    Path checkpointFile;
+    String rejectsFile;
+
+    long records_processed;
+    long records_skipped;
+
+    // JSONParser keeps parse state, so every worker thread gets its own; the same goes for the output encoder
+    static final ThreadLocal<JSONParser> jsonLineParsers = ThreadLocal.withInitial(JSONParser::new);
+    static final ThreadLocal<ResultWriter.Encoder> encoders = ThreadLocal.withInitial(ResultWriter.Encoder::new);
+
+    public ParallelBatchEngine(TaxCalculator calculator, int defaultYear, int threads) {
+        this.calculator = calculator;
+        this.defaultYear = defaultYear;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public ParallelBatchEngine columnar(ColumnarTaxCalculator columnarCalculator) {
+        this.columnarCalculator = columnarCalculator;
+        return this;
+    }
+
+    public ParallelBatchEngine gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public ParallelBatchEngine checkpoint(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    public ParallelBatchEngine rejects(String rejectsFile) {
+        this.rejectsFile = rejectsFile;
+        return this;
+    }
+
+    class Chunk {
+        final String[] lines;
+        final byte[] line_outcomes;
+        // The encoded rows of each leaf task, stored at the index of the task's first line
+        final byte[][] encoded_ranges;
+        final long first_line_number;
+        // Line numbers relative to first_line_number when the lines are not consecutive (a ShardWorker shard
+        // holding only some jurisdictions); null otherwise
+        final int[] line_offsets;
+        // Input byte offset just past the chunk's last line, where a resumed run starts reading
+        final long end_offset;
+        ForkJoinTask<Void> task;
+
+        Chunk(ArrayList<String> lines, long first_line_number, long end_offset) {
+            this(lines.toArray(new String[0]), first_line_number, null, end_offset);
+        }
+
+        Chunk(String[] lines, long first_line_number, int[] line_offsets, long end_offset) {
+            this.lines = lines;
+            this.line_outcomes = new byte[lines.length];
+            this.encoded_ranges = new byte[lines.length][];
+            this.first_line_number = first_line_number;
+            this.line_offsets = line_offsets;
+            this.end_offset = end_offset;
+        }
+
+        long lineNumber(int line_index) {
+            return first_line_number + (line_offsets == null ? line_index : line_offsets[line_index]);
+        }
+    }
+
+    class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Chunk chunk;
+        final int low;
+        final int high;
+        final boolean jsonInput;
+        final boolean jsonOutput;
+
+        ChunkTask(Chunk chunk, int low, int high, boolean jsonInput, boolean jsonOutput) {
+            this.chunk = chunk;
+            this.low = low;
+            this.high = high;
+            this.jsonInput = jsonInput;
+            this.jsonOutput = jsonOutput;
+        }
+
+        protected void compute() {
+            if (high - low <= SPLIT_THRESHOLD) {
+                estimateRange(chunk, low, high, jsonInput, jsonOutput);
+                return;
+            }
+
+            int middle = (low + high) >>> 1;
+            invokeAll(new ChunkTask(chunk, low, middle, jsonInput, jsonOutput), new ChunkTask(chunk, middle, high, jsonInput, jsonOutput));
+        }
+    }
+
+    // What became of each input line; everything from MALFORMED_RECORD on is a rejected record
+    static final byte ROW_WRITTEN = 0;
+    static final byte NO_OUTPUT_LINE = 1;
+    static final byte MALFORMED_RECORD = 2;
+    static final byte INVALID_FILING_STATUS = 3;
+    static final byte UNKNOWN_STATE = 4;
+    static final byte INVALID_INCOME = 5;
+    static final byte INVALID_YEAR = 6;
+    static final byte MISSING_JURISDICTION = 7;
+
+    // The reason column of the reject file, by line outcome
+    static final String[] REJECT_REASONS = { null, null, "malformed_record", "invalid_filing_status", "unknown_state", "invalid_income", "invalid_year", "missing_jurisdiction" };
+
+    void estimateRange(Chunk chunk, int low, int high, boolean jsonInput, boolean jsonOutput) {
+        // Parse the whole range into columns first, then calculate every record, then format
+        long started = Metrics.ENABLED ? System.nanoTime() : 0;
+        int count = high - low;
+        int[] line_indexes = new int[count];
+        int[] years = new int[count];
+        Jurisdiction[] states = new Jurisdiction[count];
+        FilingStatus[] filingStatuses = new FilingStatus[count];
+        long[] taxable_incomes = new long[count];
+        int records = 0;
+
+        for (int line_index = low; line_index < high; line_index++) {
+            String line = chunk.lines[line_index];
+            long line_number = chunk.lineNumber(line_index);
+
+            if (line.trim().isEmpty()) {
+                chunk.line_outcomes[line_index] = NO_OUTPUT_LINE;
+                continue;
+            }
+
+            String[] fields = jsonInput ? BatchEstimator.splitJsonRecord(jsonLineParsers.get(), line) : BatchEstimator.splitCsvRecord(line);
+            if (fields == null) {
+                chunk.line_outcomes[line_index] = MALFORMED_RECORD;
+                continue;
+            }
+
+            FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+
+            // Skip a CSV header row if there is one
+            if (!jsonInput && line_number == 1 && filingStatus == null) {
+                chunk.line_outcomes[line_index] = NO_OUTPUT_LINE;
+                continue;
+            }
+
+            Jurisdiction state = Jurisdiction.fromAbbreviation(fields[1]);
+            long taxableIncome = BatchEstimator.parseTaxableIncome(fields[2]);
+            int year = fields.length > 3 ? BatchEstimator.parseYear(fields[3]) : defaultYear;
+
+            byte outcome = filingStatus == null ? INVALID_FILING_STATUS
+                    : state == null ? UNKNOWN_STATE
+                    : taxableIncome < 0 ? INVALID_INCOME
+                    : year < 0 ? INVALID_YEAR
+                    : !calculator.has(year, Jurisdiction.FEDERAL) || !calculator.has(year, state) ? MISSING_JURISDICTION
+                    : ROW_WRITTEN;
+            if (outcome != ROW_WRITTEN) {
+                chunk.line_outcomes[line_index] = outcome;
+                continue;
+            }
+
+            line_indexes[records] = line_index;
+            years[records] = year;
+            states[records] = state;
+            filingStatuses[records] = filingStatus;
+            taxable_incomes[records] = taxableIncome;
+            records++;
+        }
+
+        double[] federal_taxes = new double[records];
+        double[] state_taxes = new double[records];
+
+        if (columnarCalculator != null) {
+            Jurisdiction[] federal = new Jurisdiction[records];
+            Arrays.fill(federal, Jurisdiction.FEDERAL);
+            columnarCalculator.calculateRows(years, federal, filingStatuses, taxable_incomes, records, federal_taxes);
+            columnarCalculator.calculateRows(years, states, filingStatuses, taxable_incomes, records, state_taxes);
+        }
+        else {
+            for (int record = 0; record < records; record++) {
+                // An income too large for the calculator (--exact works in long cents) rejects that record, not the run
+                try {
+                    federal_taxes[record] = calculator.calculateTax(years[record], Jurisdiction.FEDERAL, filingStatuses[record], taxable_incomes[record]);
+                    state_taxes[record] = calculator.calculateTax(years[record], states[record], filingStatuses[record], taxable_incomes[record]);
+                }
+                catch (ArithmeticException e) {
+                    chunk.line_outcomes[line_indexes[record]] = INVALID_INCOME;
+                }
+            }
+        }
+
+        ResultWriter.Encoder encoder = encoders.get();
+        encoder.reset();
+        for (int record = 0; record < records; record++) {
+            if (chunk.line_outcomes[line_indexes[record]] == ROW_WRITTEN) {
+                encoder.appendResult(filingStatuses[record], states[record].name(), taxable_incomes[record], federal_taxes[record], state_taxes[record], jsonOutput);
+            }
+        }
+        chunk.encoded_ranges[low] = encoder.toByteArray();
+
+        if (Metrics.ENABLED) {
+            for (int record = 0; record < records; record++) {
+                if (chunk.line_outcomes[line_indexes[record]] == ROW_WRITTEN) {
+                    Metrics.count(Metrics.Counter.RECORDS_PROCESSED, states[record], 1);
+                }
+            }
+            Metrics.record(Metrics.Phase.BATCH, null, started);
+        }
+    }
+
+    public void run(String inputFile, String outputFile) throws IOException {
+        boolean jsonInput = inputFile.endsWith(".jsonl") || inputFile.endsWith(".json");
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+
+        long startTime = System.nanoTime();
+
+        // Only a bounded number of chunks are in flight at once, so memory use stays flat for any input size
+        int max_chunks_in_flight = pool.getParallelism() * 2;
+        ArrayDeque<Chunk> chunks_in_flight = new ArrayDeque<Chunk>();
+
+        BatchJournal journal = checkpointFile == null ? null : BatchJournal.open(checkpointFile, Paths.get(inputFile));
+        BatchJournal.Checkpoint resume_from = journal == null ? null : journal.resumeFrom();
+        long records_resumed = 0;
+
+        LineReader reader = null;
+        ResultWriter writer = null;
+        ResultWriter rejects = null;
+        boolean completed = false;
+
+        try {
+            long line_number = 1;
+
+            if (resume_from != null) {
+                reader = new LineReader(Paths.get(inputFile), resume_from.inputOffset);
+                writer = ResultWriter.resume(outputFile, resume_from.outputPosition);
+                if (rejectsFile != null) {
+                    rejects = ResultWriter.resume(rejectsFile, resume_from.rejectsPosition);
+                    if (resume_from.rejectsPosition == 0) {
+                        rejects.writeLine(REJECTS_HEADER);
+                    }
+                }
+                line_number = resume_from.nextLineNumber;
+                records_processed = resume_from.recordsProcessed;
+                records_skipped = resume_from.recordsSkipped;
+                records_resumed = records_processed;
+                System.out.println("Resuming " + inputFile + " at line " + line_number + " (" + records_processed + " records already processed).");
+            }
+
+            else {
+                reader = new LineReader(Paths.get(inputFile));
+                writer = ResultWriter.open(outputFile, gzip);
+                if (!jsonOutput) {
+                    writer.writeLine(BatchEstimator.CSV_HEADER);
+                }
+                if (rejectsFile != null) {
+                    rejects = ResultWriter.open(rejectsFile, false);
+                    rejects.writeLine(REJECTS_HEADER);
+                }
+            }
+
+            ArrayList<String> lines = new ArrayList<String>(CHUNK_SIZE);
+
+            while (reader.next()) {
+                lines.add(reader.text());
+
+                if (lines.size() == CHUNK_SIZE) {
+                    submitChunk(new Chunk(lines, line_number, reader.offset()), chunks_in_flight, jsonInput, jsonOutput);
+                    line_number += lines.size();
+                    lines.clear();
+
+                    if (chunks_in_flight.size() >= max_chunks_in_flight) {
+                        writeChunk(chunks_in_flight.poll(), writer, rejects, journal);
+                    }
+                }
+            }
+
+            if (!lines.isEmpty()) {
+                submitChunk(new Chunk(lines, line_number, reader.offset()), chunks_in_flight, jsonInput, jsonOutput);
+            }
+
+            while (!chunks_in_flight.isEmpty()) {
+                writeChunk(chunks_in_flight.poll(), writer, rejects, journal);
+            }
+            completed = true;
+        }
+
+        finally {
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+            if (rejects != null) {
+                rejects.close();
+            }
+            pool.shutdown();
+            if (journal != null) {
+                // An unfinished job keeps its journal so the next run can resume it
+                if (completed) {
+                    journal.complete();
+                }
+                else {
+                    journal.close();
+                }
+            }
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.count(Metrics.Counter.RECORDS_SKIPPED, null, records_skipped);
+        }
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Processed " + records_processed + " records (" + records_skipped + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds on " + pool.getParallelism() + " threads.");
+        System.out.println("Throughput: " + String.format("%.0f", (records_processed - records_resumed) / Math.max(elapsed_seconds, 1e-9)) + " records/second");
+        if (calculator instanceof EstimateCache) {
+            System.out.println(calculator);
+        }
+        if (columnarCalculator != null) {
+            System.out.println("Columnar kernel: " + ColumnarTaxCalculator.kernelName());
+        }
+    }
+
+    void submitChunk(Chunk chunk, ArrayDeque<Chunk> chunks_in_flight, boolean jsonInput, boolean jsonOutput) {
+        chunk.task = pool.submit(new ChunkTask(chunk, 0, chunk.lines.length, jsonInput, jsonOutput));
+        chunks_in_flight.add(chunk);
+    }
+
+    Chunk estimate(String[] lines, long first_line_number, int[] line_offsets, boolean jsonInput, boolean jsonOutput) throws IOException {
+        // Estimates one shard for a ShardWorker; the caller reads the outcomes and encoded rows off the chunk
+        Chunk chunk = new Chunk(lines, first_line_number, line_offsets, -1);
+        chunk.task = pool.submit(new ChunkTask(chunk, 0, lines.length, jsonInput, jsonOutput));
+        awaitChunk(chunk);
+        return chunk;
+    }
+
+    static void awaitChunk(Chunk chunk) throws IOException {
+        try {
+            chunk.task.get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Batch chunk starting at line " + chunk.first_line_number + " failed", e);
+        }
+    }
+
+    void writeChunk(Chunk chunk, ResultWriter writer, ResultWriter rejects, BatchJournal journal) throws IOException {
+        awaitChunk(chunk);
+
+        for (int line_index = 0; line_index < chunk.lines.length; line_index++) {
+            byte outcome = chunk.line_outcomes[line_index];
+            if (outcome == ROW_WRITTEN) {
+                records_processed++;
+            }
+            else if (outcome != NO_OUTPUT_LINE) {
+                long line_number = chunk.first_line_number + line_index;
+                if (rejects != null) {
+                    byte[] reject = (line_number + "," + REJECT_REASONS[outcome] + "," + quoteCsvField(chunk.lines[line_index]) + "\n").getBytes(StandardCharsets.UTF_8);
+                    rejects.write(reject, 0, reject.length);
+                }
+                else {
+                    System.out.println("Skipping invalid record on line " + line_number + ": " + chunk.lines[line_index]);
+                }
+                records_skipped++;
+            }
+        }
+
+        // The leaf ranges are disjoint and in line order, so writing them by index keeps the input order
+        for (byte[] encoded_range : chunk.encoded_ranges) {
+            if (encoded_range != null) {
+                writer.write(encoded_range, 0, encoded_range.length);
+            }
+        }
+
+        if (journal != null) {
+            // The checkpoint must never point past what reached the files: write the buffers out (and every few
+            // seconds force them to disk) before recording it
+            boolean sync = journal.syncDue();
+            if (sync) {
+                writer.sync();
+                if (rejects != null) {
+                    rejects.sync();
+                }
+            }
+            else {
+                writer.flush();
+                if (rejects != null) {
+                    rejects.flush();
+                }
+            }
+            journal.record(chunk.end_offset, chunk.first_line_number + chunk.lines.length, writer.position(), rejects == null ? 0 : rejects.position(),
+                    records_processed, records_skipped);
+            if (sync) {
+                journal.sync();
+            }
+        }
+    }
+
+    static String quoteCsvField(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+            return field;
+        }
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,456 @@
+/*
+	Persisted, income-sorted index over a batch results file, for re-estimating only what a bracket correction changes.
+	The index lists, for every (jurisdiction, filing status) of one tax year, the taxable incomes of the result rows
+	in that group in increasing order, each with its row number. Every row is in its state's group and in the
+	FEDERAL group of its filing status. The index also embeds a snapshot of the brackets the results were computed
+	with.
+
+	To re-estimate, each group's old schedule is compared with the current one (BracketSchedule.firstChangedIncome).
+	Taxes below the first changed income are identical bit for bit, so a binary search in the group's incomes finds
+	the only rows that need new numbers. The results file is then copied with just those rows recomputed, and the
+	index gets the new brackets. When one state's file is corrected, only that state's rows above the change are
+	calculated again; every other row is copied as bytes.
+
+	Layout (big-endian):
+	    int magic ("TXRI"), int version, int year, int rowCount, byte jsonResults
+	    int snapshotLength, then a BracketSnapshot of the brackets used
+	    for every jurisdiction:        for every filing status: int count, count x long taxableIncome (sorted), count x int row
+	The income arrays are binary-searched in the memory-mapped file; nothing else is read unless a group changed.
+
+	Build the index right after the batch run, from the same bracket data. Results files hold no year column, so
+	the whole file is indexed under one tax year.
+
+	Usage: java TaxEstimator --index-results <results.csv|results.jsonl> <index file> [year] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>]
+	       java TaxEstimator --reestimate <results.csv|results.jsonl> <index file> [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]]
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public final class ResultIndex {
+    static final int MAGIC = 0x54585249;
+    static final int VERSION = 1;
+    static final int GROUP_COUNT = Jurisdiction.values().length * FilingStatus.values().length;
+
+    final int year;
+    final int rowCount;
+    final boolean jsonResults;
+    final BracketRegistry registry;
+    final ByteBuffer snapshotBytes;
+
+    // Per group (jurisdiction ordinal * filing status count + filing status ordinal): where its arrays start in the buffer
+    final ByteBuffer groups;
+    final int[] groupCounts = new int[GROUP_COUNT];
+    final int[] groupIncomeOffsets = new int[GROUP_COUNT];
+    final int[] groupRowOffsets = new int[GROUP_COUNT];
+
+    ResultIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 21 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a result index");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported result index version " + version + " (expected " + VERSION + ")");
+        }
+
+        year = buffer.getInt();
+        rowCount = buffer.getInt();
+        jsonResults = buffer.get() != 0;
+
+        int snapshot_length = buffer.getInt();
+        ByteBuffer snapshot = buffer.slice();
+        snapshot.limit(snapshot_length);
+        snapshotBytes = snapshot.asReadOnlyBuffer();
+        registry = BracketSnapshot.read(snapshot);
+        buffer.position(buffer.position() + snapshot_length);
+
+        groups = buffer.slice();
+        int offset = 0;
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            int count = groups.getInt(offset);
+            groupCounts[group] = count;
+            groupIncomeOffsets[group] = offset + 4;
+            groupRowOffsets[group] = offset + 4 + count * 8;
+            offset += 4 + count * 12;
+        }
+    }
+
+    static int group(Jurisdiction jurisdiction, FilingStatus filingStatus) {
+        return jurisdiction.ordinal() * FilingStatus.values().length + filingStatus.ordinal();
+    }
+
+    public static ResultIndex load(Path indexFile) throws IOException {
+        FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ResultIndex(mapped);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public int firstRowAtOrAbove(Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome) {
+        // Position in the group's sorted incomes of the first one >= taxableIncome
+        int group = group(jurisdiction, filingStatus);
+        int low = 0;
+        int high = groupCounts[group];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (groups.getLong(groupIncomeOffsets[group] + middle * 8) < taxableIncome) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long changedRows(BracketRegistry current, long[] changed_rows) {
+        // Sets a bit in changed_rows for every row whose federal or state tax can differ under the current brackets
+        long changed = 0;
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            for (FilingStatus filingStatus : FilingStatus.values()) {
+                int group = group(jurisdiction, filingStatus);
+                if (groupCounts[group] == 0) {
+                    continue;
+                }
+                if (!current.has(year, jurisdiction)) {
+                    System.out.println("No current tax bracket data for " + jurisdiction.fileName() + " (" + year + "), keeping its results.");
+                    continue;
+                }
+
+                // Rows whose jurisdiction had no brackets when they were calculated are all redone
+                long threshold = !registry.has(year, jurisdiction) ? 0
+                        : registry.schedule(year, jurisdiction, filingStatus).firstChangedIncome(current.schedule(year, jurisdiction, filingStatus));
+                if (threshold == Long.MAX_VALUE) {
+                    continue;
+                }
+
+                for (int position = firstRowAtOrAbove(jurisdiction, filingStatus, threshold); position < groupCounts[group]; position++) {
+                    int row = groups.getInt(groupRowOffsets[group] + position * 4);
+                    if ((changed_rows[row >>> 6] & (1L << row)) == 0) {
+                        changed_rows[row >>> 6] |= 1L << row;
+                        changed++;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    static byte[] snapshotOf(BracketRegistry registry) throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        BracketSnapshot.write(registry, snapshot);
+        return snapshot.toByteArray();
+    }
+
+    static void writeIndex(Path indexFile, int year, int rowCount, boolean jsonResults, byte[] snapshot, ByteBuffer groupSection, int[][] group_rows, long[][] group_incomes) throws IOException {
+        // Either copies an existing group section or writes freshly sorted groups; always through a temporary file
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        OutputStream out = Files.newOutputStream(temporaryFile);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(year);
+            data.writeInt(rowCount);
+            data.writeByte(jsonResults ? 1 : 0);
+            data.writeInt(snapshot.length);
+            data.write(snapshot);
+
+            if (groupSection != null) {
+                byte[] chunk = new byte[1 << 16];
+                ByteBuffer section = groupSection.duplicate();
+                section.position(0);
+                while (section.hasRemaining()) {
+                    int length = Math.min(chunk.length, section.remaining());
+                    section.get(chunk, 0, length);
+                    data.write(chunk, 0, length);
+                }
+            }
+            else {
+                for (int group = 0; group < GROUP_COUNT; group++) {
+                    int count = group_rows[group] == null ? 0 : group_rows[group].length;
+                    data.writeInt(count);
+                    for (int position = 0; position < count; position++) {
+                        data.writeLong(group_incomes[group][position]);
+                    }
+                    for (int position = 0; position < count; position++) {
+                        data.writeInt(group_rows[group][position]);
+                    }
+                }
+            }
+            data.flush();
+        }
+        finally {
+            out.close();
+        }
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ---- Results file rows ----
+
+    // One results line reduced to what the index needs: filing status, state as written, taxable income
+    static final class ResultRow {
+        FilingStatus filingStatus;
+        String stateAbbr;
+        Jurisdiction state;
+        long taxableIncome;
+    }
+
+    static boolean parseRow(String line, boolean jsonResults, JSONParser jsonLineParser, ResultRow row) {
+        String[] fields;
+        if (jsonResults) {
+            try {
+                JSONObject record = (JSONObject) jsonLineParser.parse(line);
+                Object filingStatus = record.get("filing_status");
+                Object state = record.get("state");
+                Object taxableIncome = record.get("taxable_income");
+                if (filingStatus == null || state == null || taxableIncome == null) {
+                    return false;
+                }
+                fields = new String[] { filingStatus.toString(), state.toString(), taxableIncome.toString() };
+            }
+            catch (ParseException | ClassCastException e) {
+                return false;
+            }
+        }
+        else {
+            fields = BatchEstimator.splitCsvRecord(line);
+            if (fields == null) {
+                return false;
+            }
+        }
+
+        row.filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+        row.stateAbbr = fields[1];
+        row.state = Jurisdiction.fromAbbreviation(fields[1]);
+        row.taxableIncome = BatchEstimator.parseTaxableIncome(fields[2]);
+        return row.filingStatus != null && row.state != null && row.taxableIncome >= 0;
+    }
+
+    public static void build(Path resultsFile, Path indexFile, int year, BracketRegistry registry) throws IOException {
+        if (!registry.hasYear(year)) {
+            throw new IOException("No tax bracket data loaded for " + year);
+        }
+        boolean jsonResults = ResultWriter.isJsonOutput(resultsFile.toString());
+        JSONParser jsonLineParser = new JSONParser();
+        ResultRow row = new ResultRow();
+
+        // Two passes: count the rows of every group, then fill the arrays in place
+        int[] counts = new int[GROUP_COUNT];
+        int row_count = 0;
+        LineReader reader = new LineReader(resultsFile);
+        try {
+            boolean first = true;
+            while (reader.next()) {
+                if (first && !jsonResults && reader.text().equals(BatchEstimator.CSV_HEADER)) {
+                    first = false;
+                    continue;
+                }
+                first = false;
+                if (!parseRow(reader.text(), jsonResults, jsonLineParser, row)) {
+                    throw new IOException("Unreadable result row " + (row_count + 1) + ": " + reader.text());
+                }
+                counts[group(row.state, row.filingStatus)]++;
+                counts[group(Jurisdiction.FEDERAL, row.filingStatus)]++;
+                row_count++;
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        long[][] group_incomes = new long[GROUP_COUNT][];
+        int[][] group_rows = new int[GROUP_COUNT][];
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            group_incomes[group] = new long[counts[group]];
+            group_rows[group] = new int[counts[group]];
+        }
+
+        int[] filled = new int[GROUP_COUNT];
+        int row_number = 0;
+        reader = new LineReader(resultsFile);
+        try {
+            boolean first = true;
+            while (reader.next()) {
+                if (first && !jsonResults && reader.text().equals(BatchEstimator.CSV_HEADER)) {
+                    first = false;
+                    continue;
+                }
+                first = false;
+                parseRow(reader.text(), jsonResults, jsonLineParser, row);
+
+                int state_group = group(row.state, row.filingStatus);
+                group_incomes[state_group][filled[state_group]] = row.taxableIncome;
+                group_rows[state_group][filled[state_group]++] = row_number;
+
+                int federal_group = group(Jurisdiction.FEDERAL, row.filingStatus);
+                group_incomes[federal_group][filled[federal_group]] = row.taxableIncome;
+                group_rows[federal_group][filled[federal_group]++] = row_number;
+
+                row_number++;
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            sortByIncome(group_incomes[group], group_rows[group]);
+        }
+
+        writeIndex(indexFile, year, row_count, jsonResults, snapshotOf(registry), null, group_rows, group_incomes);
+        System.out.println("Indexed " + row_count + " result rows for " + year + " in " + indexFile + ".");
+    }
+
+    static void sortByIncome(long[] incomes, int[] rows) {
+        // Stable merge sort of the two parallel arrays by income, so rows with equal incomes stay in file order
+        if (incomes.length < 2) {
+            return;
+        }
+        long[] income_scratch = new long[incomes.length];
+        int[] row_scratch = new int[rows.length];
+        for (int width = 1; width < incomes.length; width *= 2) {
+            for (int start = 0; start < incomes.length; start += 2 * width) {
+                int middle = Math.min(start + width, incomes.length);
+                int end = Math.min(start + 2 * width, incomes.length);
+                int left = start;
+                int right = middle;
+                for (int target = start; target < end; target++) {
+                    if (left < middle && (right >= end || incomes[left] <= incomes[right])) {
+                        income_scratch[target] = incomes[left];
+                        row_scratch[target] = rows[left++];
+                    }
+                    else {
+                        income_scratch[target] = incomes[right];
+                        row_scratch[target] = rows[right++];
+                    }
+                }
+            }
+            System.arraycopy(income_scratch, 0, incomes, 0, incomes.length);
+            System.arraycopy(row_scratch, 0, rows, 0, rows.length);
+        }
+    }
+
+    public void reestimate(Path resultsFile, Path indexFile, BracketRegistry current, TaxCalculator calculator) throws IOException {
+        long startTime = System.nanoTime();
+
+        long[] changed_rows = new long[(rowCount >>> 6) + 1];
+        long changed = changedRows(current, changed_rows);
+        byte[] new_snapshot = snapshotOf(current);
+
+        if (changed > 0) {
+            rewriteResults(resultsFile, calculator, changed_rows);
+        }
+        if (!snapshotBytes.equals(ByteBuffer.wrap(new_snapshot))) {
+            writeIndex(indexFile, year, rowCount, jsonResults, new_snapshot, groups, null, null);
+        }
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Re-estimated " + changed + " of " + rowCount + " result rows in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+    }
+
+    void rewriteResults(Path resultsFile, TaxCalculator calculator, long[] changed_rows) throws IOException {
+        JSONParser jsonLineParser = new JSONParser();
+        ResultRow row = new ResultRow();
+        ResultWriter.Encoder encoder = new ResultWriter.Encoder();
+        Path temporaryFile = resultsFile.resolveSibling(resultsFile.getFileName() + ".tmp");
+
+        LineReader reader = new LineReader(resultsFile);
+        ResultWriter writer = ResultWriter.open(temporaryFile.toString(), false);
+        try {
+            int row_number = 0;
+            boolean first = true;
+            while (reader.next()) {
+                boolean header = first && !jsonResults && reader.text().equals(BatchEstimator.CSV_HEADER);
+                first = false;
+                if (header || row_number >= rowCount || (changed_rows[row_number >>> 6] & (1L << row_number)) == 0) {
+                    writer.write(reader.bytes(), 0, reader.length());
+                    row_number += header ? 0 : 1;
+                    continue;
+                }
+
+                if (!parseRow(reader.text(), jsonResults, jsonLineParser, row)) {
+                    throw new IOException("Unreadable result row " + (row_number + 1) + ": " + reader.text());
+                }
+                if (!calculator.has(year, row.state)) {
+                    writer.write(reader.bytes(), 0, reader.length());
+                    row_number++;
+                    continue;
+                }
+                double federal_taxes = calculator.calculateTax(year, Jurisdiction.FEDERAL, row.filingStatus, row.taxableIncome);
+                double state_taxes = calculator.calculateTax(year, row.state, row.filingStatus, row.taxableIncome);
+                encoder.reset();
+                writer.write(encoder.appendResult(row.filingStatus, row.stateAbbr, row.taxableIncome, federal_taxes, state_taxes, jsonResults));
+                row_number++;
+            }
+            if (row_number != rowCount) {
+                throw new IOException(resultsFile + " has " + row_number + " rows but the index was built for " + rowCount + "; build the index again");
+            }
+        }
+        finally {
+            reader.close();
+            writer.close();
+        }
+        Files.move(temporaryFile, resultsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--index-results" or "--reestimate" when called through TaxEstimator.main
+        boolean reestimate = args.length > 0 && args[0].equals("--reestimate");
+        CommandLineOptions options = CommandLineOptions.parse(args, reestimate ? "--reestimate" : "--index-results");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --index-results <results.csv|results.jsonl> <index file> [year] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>]");
+            System.out.println("       java TaxEstimator --reestimate <results.csv|results.jsonl> <index file> [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]]");
+            System.exit(-1);
+        }
+
+        Path resultsFile = Paths.get(options.positional(0));
+        Path indexFile = Paths.get(options.positional(1));
+
+        try {
+            if (reestimate) {
+                ResultIndex index = ResultIndex.load(indexFile);
+                BracketRegistry current = options.loadRegistry(index.year);
+                if (!current.hasYear(index.year)) {
+                    System.out.println("No tax bracket data loaded for " + index.year + ".");
+                    System.exit(-1);
+                }
+                index.reestimate(resultsFile, indexFile, current, options.calculator(current));
+            }
+            else {
+                int year = options.yearAt(2);
+                build(resultsFile, indexFile, year, options.loadRegistry(year));
+            }
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+}
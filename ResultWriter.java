@@ -0,0 +1,270 @@
+/*
+	Output file for result rows, written through a FileChannel, with optional gzip.
+	Rows are not built as Strings. An Encoder appends the fields as ASCII bytes to a reusable byte array,
+	and the writer copies finished blocks of rows into one buffer that is flushed to the channel. Every
+	ParallelBatchEngine worker encodes its own rows, so only the copy and the flush happen on the writing
+	thread.
+
+	Amounts are written with two decimals, the same text String.format("%.2f") gives: the shortest decimal
+	form of the double, rounded half up. The fast path rounds value * 100 directly. When that product falls
+	within rounding error of a half cent, where the two roundings could disagree, the encoder falls back to
+	String.format. This happens only for a tiny fraction of values. The decimal point is always '.', whatever
+	the default locale.
+
+	An output file ending in .gz (or any file with --gzip) is gzip-compressed; the format is picked from the
+	name without the .gz.
+
+	A checkpointed batch run reopens its output with resume(), which cuts the file back to the last journaled
+	position and appends from there. That only works uncompressed: a gzip stream cannot be continued midway.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public final class ResultWriter implements Closeable {
+    static final int BUFFER_SIZE = 1 << 18;
+
+    final FileChannel channel;
+    final OutputStream gzipStream;
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public ResultWriter(String outputFile, boolean gzip) throws IOException {
+        channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        gzipStream = gzip ? fastGzipStream(Channels.newOutputStream(channel)) : null;
+    }
+
+    ResultWriter(FileChannel channel) {
+        this.channel = channel;
+        this.gzipStream = null;
+    }
+
+    static GZIPOutputStream fastGzipStream(OutputStream out) throws IOException {
+        // The default level compresses CSV only a little better, at several times the cost
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+
+    public static ResultWriter open(String outputFile, boolean gzip) throws IOException {
+        return new ResultWriter(outputFile, gzip || outputFile.endsWith(".gz"));
+    }
+
+    public static ResultWriter resume(String outputFile, long position) throws IOException {
+        // Anything past position was written after the last checkpoint and is written again
+        FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() < position) {
+            channel.close();
+            throw new IOException(outputFile + " is shorter than its checkpoint (" + position + " bytes); start the job over");
+        }
+        channel.truncate(position);
+        channel.position(position);
+        return new ResultWriter(channel);
+    }
+
+    public static boolean isJsonOutput(String outputFile) {
+        String name = outputFile.endsWith(".gz") ? outputFile.substring(0, outputFile.length() - 3) : outputFile;
+        return name.endsWith(".jsonl") || name.endsWith(".json");
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int part = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, part);
+            offset += part;
+            length -= part;
+        }
+    }
+
+    public void write(Encoder encoder) throws IOException {
+        write(encoder.bytes, 0, encoder.length);
+    }
+
+    public void writeLine(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+        write(bytes, 0, bytes.length);
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        if (gzipStream != null) {
+            gzipStream.write(buffer.array(), 0, buffer.limit());
+        }
+        else {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        buffer.clear();
+    }
+
+    public long position() throws IOException {
+        // Bytes written so far, including what is still buffered; uncompressed output only
+        if (gzipStream != null) {
+            throw new IllegalStateException("The position of gzip output is not known");
+        }
+        return channel.position() + buffer.position();
+    }
+
+    public void sync() throws IOException {
+        // Flushes and forces everything written so far to the storage device
+        flush();
+        if (gzipStream != null) {
+            gzipStream.flush();
+        }
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+            if (gzipStream != null) {
+                // Closing the gzip stream writes its trailer and closes the channel
+                gzipStream.close();
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public static final class Encoder {
+        static final byte[][] FILING_STATUS_KEYS = new byte[FilingStatus.values().length][];
+
+        static {
+            for (FilingStatus filingStatus : FilingStatus.values()) {
+                FILING_STATUS_KEYS[filingStatus.ordinal()] = TaxEstimator.filingStatusToKey(filingStatus).getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+
+        byte[] bytes = new byte[1 << 12];
+        int length;
+
+        public int length() {
+            return length;
+        }
+
+        public void reset() {
+            length = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        public Encoder append(char ascii) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) ascii;
+            return this;
+        }
+
+        public Encoder append(byte[] ascii) {
+            ensureCapacity(ascii.length);
+            System.arraycopy(ascii, 0, bytes, length, ascii.length);
+            length += ascii.length;
+            return this;
+        }
+
+        public Encoder append(String ascii) {
+            ensureCapacity(ascii.length());
+            for (int index = 0; index < ascii.length(); index++) {
+                bytes[length++] = (byte) ascii.charAt(index);
+            }
+            return this;
+        }
+
+        public Encoder append(long value) {
+            if (value == Long.MIN_VALUE) {
+                return append(Long.toString(value));
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+
+            // Digits are produced backwards, so write them right to left from the end
+            int digits = 1;
+            for (long rest = value / 10; rest != 0; rest /= 10) {
+                digits++;
+            }
+            for (int position = length + digits - 1; position >= length; position--) {
+                bytes[position] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        public Encoder appendCents(double value) {
+            // %.2f semantics; the sign bit test also sends -0.0 (printed as "-0.00") to String.format
+            double scaled = value * 100;
+            if (!(scaled < 1e15) || Double.doubleToRawLongBits(value) < 0) {
+                return append(String.format(Locale.ROOT, "%.2f", value));
+            }
+
+            long whole = (long) scaled;
+            double fraction = scaled - whole;
+            if (Math.abs(fraction - 0.5) < Math.max(1e-6, 16 * Math.ulp(scaled))) {
+                return append(String.format(Locale.ROOT, "%.2f", value));
+            }
+
+            long cents = fraction > 0.5 ? whole + 1 : whole;
+            append(cents / 100);
+            ensureCapacity(3);
+            bytes[length++] = '.';
+            bytes[length++] = (byte) ('0' + (cents % 100) / 10);
+            bytes[length++] = (byte) ('0' + cents % 10);
+            return this;
+        }
+
+        public Encoder appendFilingStatus(FilingStatus filingStatus) {
+            return append(FILING_STATUS_KEYS[filingStatus.ordinal()]);
+        }
+
+        public Encoder appendResult(FilingStatus filingStatus, String stateAbbr, long taxableIncome, double federal_taxes, double state_taxes, boolean jsonOutput) {
+            // Byte for byte what BatchEstimator.formatResult returns, plus the newline
+            double total_taxes = federal_taxes + state_taxes;
+            double effective_tax_rate = taxableIncome == 0 ? 0.0 : (total_taxes / taxableIncome) * 100;
+
+            if (jsonOutput) {
+                append("{\"filing_status\":\"").appendFilingStatus(filingStatus);
+                append("\",\"state\":\"").append(stateAbbr);
+                append("\",\"taxable_income\":").append(taxableIncome);
+                append(",\"federal_tax\":").appendCents(federal_taxes);
+                append(",\"state_tax\":").appendCents(state_taxes);
+                append(",\"total_tax\":").appendCents(total_taxes);
+                append(",\"effective_tax_rate\":").appendCents(effective_tax_rate);
+                return append("}\n");
+            }
+
+            appendFilingStatus(filingStatus).append(',').append(stateAbbr).append(',').append(taxableIncome);
+            append(',').appendCents(federal_taxes);
+            append(',').appendCents(state_taxes);
+            append(',').appendCents(total_taxes);
+            append(',').appendCents(effective_tax_rate);
+            return append('\n');
+        }
+    }
+}
@@ -0,0 +1,842 @@
+/*
+	Sharded batch mode for the Tax Estimator
+	Splits one batch input across several worker JVMs (ShardWorker) and merges their results into one output file, in
+	input order and with the same bytes a single ParallelBatchEngine run writes.
+
+	The input is read in windows of --shard-size megabytes, cut at line boundaries. With --partition bytes (the default)
+	every window is one shard, and shards go to whichever worker is free. With --partition jurisdiction the lines of a
+	window are split into one shard per worker by state, and each state always goes to the same worker, so a worker
+	sees only its own states (and its --cache only their incomes). The states are balanced across the workers by
+	their counts in the first window.
+
+	Workers are local JVMs started by the coordinator (--workers <n>, speaking the protocol over stdin/stdout) and/or
+	remote ones already listening with --worker (--hosts <host:port,...>). The coordinator loads the brackets once and
+	sends each worker the compiled tables when it connects, so workers never read bracket files.
+	A shard that fails, or whose worker dies, goes on the shared queue to be retried by any worker, up to --retries
+	times. A local worker that died is started again; a worker that keeps failing is dropped and its shards are shared out.
+	A worker that does not answer within --worker-timeout seconds (default 300, per shard) counts as lost, so a hung
+	host or process is handled like a crashed one.
+	A bounded number of windows are in flight, so memory use stays flat for any input size.
+
+	Usage: java TaxEstimator --shard <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--workers <n>] [--hosts <host:port,...>] [--partition bytes|jurisdiction] [--shard-size <MB>] [--retries <n>] [--worker-timeout <seconds>] [--threads <per worker>] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--columnar] [--exact [--rounding <rules>]] [--gzip] [--rejects <file>]
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class ShardCoordinator {
+    static final int DEFAULT_SHARD_MEGABYTES = 8;
+    static final int DEFAULT_RETRIES = 2;
+    static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    static final int DEFAULT_WORKER_TIMEOUT_SECONDS = 300;
+
+    final int defaultYear;
+    final byte[] snapshot;
+    final String[] calculationOptions;
+    final ArrayList<WorkerLink> links = new ArrayList<WorkerLink>();
+    // Shards any worker can take: byte ranges, retries, and the shards of a worker that stopped
+    final LinkedBlockingQueue<Shard> shard_queue = new LinkedBlockingQueue<Shard>();
+    final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread watchdog_thread = new Thread(task, "shard-watchdog");
+        watchdog_thread.setDaemon(true);
+        return watchdog_thread;
+    });
+    boolean partitionByJurisdiction;
+    int shardBytes = DEFAULT_SHARD_MEGABYTES << 20;
+    int retries = DEFAULT_RETRIES;
+    int workerTimeoutMillis = DEFAULT_WORKER_TIMEOUT_SECONDS * 1000;
+    boolean gzip;
+    String rejectsFile;
+
+    boolean jsonInput;
+    boolean jsonOutput;
+    int live_links;
+    int next_shard_id;
+    // Jurisdiction ordinal -> shard group with --partition jurisdiction, filled from the first window
+    int[] jurisdiction_groups;
+    final JSONParser jsonLineParser = new JSONParser();
+
+    long records_processed;
+    long records_skipped;
+
+    // Marks the end of the queue for one worker connection
+    static final Shard NO_MORE_SHARDS = new Shard(null, 0, -1, null, null, 0, 0);
+
+    public ShardCoordinator(BracketRegistry registry, int defaultYear, String[] calculationOptions) throws IOException {
+        this.defaultYear = defaultYear;
+        this.calculationOptions = calculationOptions;
+        // The tables are compiled once here and sent to every worker as they are
+        ByteArrayOutputStream snapshot_bytes = new ByteArrayOutputStream();
+        BracketSnapshot.write(registry, snapshot_bytes);
+        this.snapshot = snapshot_bytes.toByteArray();
+    }
+
+    public ShardCoordinator localWorkers(int count) {
+        for (int worker = 0; worker < count; worker++) {
+            links.add(new WorkerLink(links.size() + 1, null, 0));
+        }
+        return this;
+    }
+
+    public ShardCoordinator remoteWorker(String host, int port) {
+        links.add(new WorkerLink(links.size() + 1, host, port));
+        return this;
+    }
+
+    public ShardCoordinator partitionByJurisdiction(boolean partitionByJurisdiction) {
+        this.partitionByJurisdiction = partitionByJurisdiction;
+        return this;
+    }
+
+    public ShardCoordinator shardMegabytes(int megabytes) {
+        this.shardBytes = megabytes << 20;
+        return this;
+    }
+
+    public ShardCoordinator retries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    public ShardCoordinator workerTimeout(int seconds) {
+        this.workerTimeoutMillis = seconds * 1000;
+        return this;
+    }
+
+    public ShardCoordinator gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public ShardCoordinator rejects(String rejectsFile) {
+        this.rejectsFile = rejectsFile;
+        return this;
+    }
+
+    // A window of consecutive input lines, kept until its shards are merged into the output
+    static final class Window {
+        final long first_line_number;
+        byte[] data = new byte[1 << 16];
+        int length;
+        int[] line_ends = new int[1024];
+        int line_count;
+        // The shard group of each line with --partition jurisdiction, null otherwise, and the shard of each group
+        byte[] line_groups;
+        int[] group_shards;
+        Shard[] shards;
+
+        Window(long first_line_number) {
+            this.first_line_number = first_line_number;
+        }
+
+        void add(byte[] line, int line_length) {
+            // Every line is stored '\n'-terminated, including a last line without one
+            boolean terminated = line_length > 0 && line[line_length - 1] == '\n';
+            if (length + line_length + 1 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + line_length + 1));
+            }
+            System.arraycopy(line, 0, data, length, line_length);
+            length += line_length;
+            if (!terminated) {
+                data[length++] = '\n';
+            }
+            if (line_count == line_ends.length) {
+                line_ends = Arrays.copyOf(line_ends, line_count * 2);
+            }
+            line_ends[line_count++] = length;
+        }
+
+        int lineStart(int line_index) {
+            return line_index == 0 ? 0 : line_ends[line_index - 1];
+        }
+
+        String text(int line_index) {
+            int start = lineStart(line_index);
+            int end = line_ends[line_index] - 1;
+            if (end > start && data[end - 1] == '\r') {
+                end--;
+            }
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+
+    static final class Shard {
+        final Window window;
+        final int id;
+        // The worker whose states the shard holds with --partition jurisdiction, -1 for any worker
+        final int group;
+        // Offsets of the shard's lines from the window's first line, null when it holds the whole window
+        final int[] line_offsets;
+        final byte[] payload;
+        final int payload_length;
+        final int line_count;
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        int attempts;
+
+        // Filled in by the worker connection that estimated the shard
+        byte[] outcomes;
+        byte[] rows;
+        long elapsed_nanos;
+        WorkerLink estimated_by;
+
+        Shard(Window window, int id, int group, int[] line_offsets, byte[] payload, int payload_length, int line_count) {
+            this.window = window;
+            this.id = id;
+            this.group = group;
+            this.line_offsets = line_offsets;
+            this.payload = payload;
+            this.payload_length = payload_length;
+            this.line_count = line_count;
+        }
+    }
+
+    class WorkerLink implements Runnable {
+        final int number;
+        // null for a worker JVM started by the coordinator
+        final String host;
+        final int port;
+        // Shards of this worker's states
+        final LinkedBlockingQueue<Shard> own_queue = new LinkedBlockingQueue<Shard>();
+        boolean stopped;
+
+        Process process;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+
+        int shards_estimated;
+        long lines_estimated;
+        long busy_nanos;
+        int failures;
+        volatile boolean timed_out;
+
+        WorkerLink(int number, String host, int port) {
+            this.number = number;
+            this.host = host;
+            this.port = port;
+        }
+
+        String describe() {
+            return "worker " + number + (host == null ? " (local)" : " (" + host + ":" + port + ")");
+        }
+
+        void open() throws IOException {
+            InputStream raw_in;
+            OutputStream raw_out;
+            if (host == null) {
+                process = new ProcessBuilder(localWorkerCommand()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                raw_in = process.getInputStream();
+                raw_out = process.getOutputStream();
+            }
+            else {
+                // A read that times out throws SocketTimeoutException, which run() treats as a lost worker
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(workerTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                raw_in = socket.getInputStream();
+                raw_out = socket.getOutputStream();
+            }
+            in = new DataInputStream(new BufferedInputStream(raw_in, 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(raw_out, 1 << 16));
+
+            ScheduledFuture<?> deadline = startDeadline();
+            try {
+                ShardWorker.writeJobHeader(out, defaultYear, jsonInput, jsonOutput, calculationOptions, snapshot);
+                out.flush();
+                if (in.readByte() != ShardWorker.READY) {
+                    throw new IOException(describe() + " could not start: " + in.readUTF());
+                }
+            }
+            catch (IOException e) {
+                throw timeoutOr(e);
+            }
+            finally {
+                deadline.cancel(false);
+            }
+        }
+
+        ScheduledFuture<?> startDeadline() {
+            // The socket's read timeout cannot wake a write blocked on a worker that stopped reading; closing the
+            // connection (or ending the local process) can, so the watchdog does that once the time is up
+            Socket watched_socket = socket;
+            Process watched_process = process;
+            timed_out = false;
+            return watchdog.schedule(() -> {
+                timed_out = true;
+                try {
+                    if (watched_socket != null) {
+                        watched_socket.close();
+                    }
+                }
+                catch (IOException e) {
+                    // Closed already
+                }
+                if (watched_process != null) {
+                    watched_process.destroyForcibly();
+                }
+            }, workerTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        IOException timeoutOr(IOException e) {
+            return timed_out ? new SocketTimeoutException(describe() + " did not answer within " + workerTimeoutMillis / 1000 + " seconds") : e;
+        }
+
+        void close(boolean orderly) {
+            try {
+                if (orderly && out != null) {
+                    out.writeByte(ShardWorker.CLOSE);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                // The worker is gone already
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            catch (IOException e) {
+                // Nothing left to release
+            }
+            if (process != null) {
+                if (!orderly) {
+                    process.destroyForcibly();
+                }
+                try {
+                    process.waitFor();
+                }
+                catch (InterruptedException e) {
+                    process.destroyForcibly();
+                }
+            }
+            process = null;
+            socket = null;
+            in = null;
+            out = null;
+        }
+
+        void estimate(Shard shard) throws IOException {
+            ScheduledFuture<?> deadline = startDeadline();
+            try {
+                exchange(shard);
+            }
+            catch (IOException e) {
+                throw timeoutOr(e);
+            }
+            finally {
+                deadline.cancel(false);
+            }
+        }
+
+        void exchange(Shard shard) throws IOException {
+            out.writeByte(ShardWorker.SHARD);
+            out.writeInt(shard.id);
+            out.writeLong(shard.window.first_line_number);
+            out.writeInt(shard.line_count);
+            out.writeBoolean(shard.line_offsets != null);
+            if (shard.line_offsets != null) {
+                for (int line_offset : shard.line_offsets) {
+                    out.writeInt(line_offset);
+                }
+            }
+            out.writeInt(shard.payload_length);
+            out.write(shard.payload, 0, shard.payload_length);
+            out.flush();
+
+            byte reply = in.readByte();
+            int shard_id = in.readInt();
+            if (shard_id != shard.id) {
+                throw new IOException(describe() + " answered shard " + shard_id + " instead of " + shard.id);
+            }
+            if (reply == ShardWorker.FAILED) {
+                throw new ShardFailure(in.readUTF());
+            }
+            if (reply != ShardWorker.RESULT) {
+                throw new IOException(describe() + " sent unexpected reply " + reply);
+            }
+            shard.elapsed_nanos = in.readLong();
+            shard.outcomes = new byte[shard.line_count];
+            in.readFully(shard.outcomes);
+            shard.rows = new byte[in.readInt()];
+            in.readFully(shard.rows);
+            shard.estimated_by = this;
+        }
+
+        Shard nextShard() throws InterruptedException {
+            // Its own shards first; the shared queue is checked every few milliseconds while there are none
+            while (true) {
+                Shard shard = own_queue.poll();
+                if (shard == null) {
+                    shard = shard_queue.poll(10, TimeUnit.MILLISECONDS);
+                }
+                if (shard != null) {
+                    return shard;
+                }
+            }
+        }
+
+        public void run() {
+            boolean open = false;
+            try {
+                while (true) {
+                    Shard shard = nextShard();
+                    if (shard == NO_MORE_SHARDS) {
+                        break;
+                    }
+
+                    if (!open) {
+                        try {
+                            open();
+                            open = true;
+                        }
+                        catch (IOException e) {
+                            // The shard never reached a worker, so this does not count as one of its attempts
+                            failures++;
+                            System.out.println("Could not start " + describe() + ": " + e);
+                            close(false);
+                            shard_queue.add(shard);
+                            if (failures > retries) {
+                                System.out.println("Giving up on " + describe() + " after " + failures + " failures.");
+                                break;
+                            }
+                            continue;
+                        }
+                    }
+
+                    try {
+                        estimate(shard);
+                        shards_estimated++;
+                        lines_estimated += shard.line_count;
+                        busy_nanos += shard.elapsed_nanos;
+                        shard.done.complete(null);
+                    }
+                    catch (IOException e) {
+                        failures++;
+                        shardFailed(shard, e);
+                        if (!(e instanceof ShardFailure)) {
+                            // The connection is in an unknown state: drop it, and start or reach the worker again for the next shard
+                            System.out.println("Lost " + describe() + ": " + e);
+                            close(false);
+                            open = false;
+                            if (failures > retries) {
+                                System.out.println("Giving up on " + describe() + " after " + failures + " failures.");
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                close(open);
+                linkStopped(this);
+            }
+        }
+    }
+
+    // A shard the worker reported it could not estimate; the connection itself is fine
+    static final class ShardFailure extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ShardFailure(String message) {
+            super(message);
+        }
+    }
+
+    static ArrayList<String> localWorkerCommand() {
+        // The same JVM, with the same options and class path, as the coordinator
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("TaxEstimator");
+        command.add("--worker");
+        command.add("--stdio");
+        return command;
+    }
+
+    synchronized void shardFailed(Shard shard, IOException e) {
+        shard.attempts++;
+        if (shard.attempts > retries || live_links == 0) {
+            shard.done.completeExceptionally(new IOException("Shard " + shard.id + " (lines from " + shard.window.first_line_number + ") failed after " + shard.attempts + " attempts: " + e.getMessage(), e));
+            return;
+        }
+        System.out.println("Retrying shard " + shard.id + " (lines from " + shard.window.first_line_number + "): " + e.getMessage());
+        shard_queue.add(shard);
+    }
+
+    synchronized void enqueue(Shard shard) {
+        if (live_links == 0) {
+            shard.done.completeExceptionally(new IOException("No shard workers are left"));
+            return;
+        }
+        if (shard.group >= 0 && !links.get(shard.group).stopped) {
+            links.get(shard.group).own_queue.add(shard);
+        }
+        else {
+            shard_queue.add(shard);
+        }
+    }
+
+    synchronized void linkStopped(WorkerLink link) {
+        link.stopped = true;
+        live_links--;
+        Shard orphan;
+        while ((orphan = link.own_queue.poll()) != null) {
+            if (orphan != NO_MORE_SHARDS) {
+                shard_queue.add(orphan);
+            }
+        }
+        if (live_links == 0) {
+            // Nobody is left to take the queued shards
+            Shard shard;
+            while ((shard = shard_queue.poll()) != null) {
+                if (shard != NO_MORE_SHARDS) {
+                    shard.done.completeExceptionally(new IOException("No shard workers are left"));
+                }
+            }
+        }
+    }
+
+    Jurisdiction stateOf(String line) {
+        String[] fields = jsonInput ? BatchEstimator.splitJsonRecord(jsonLineParser, line) : BatchEstimator.splitCsvRecord(line);
+        return fields == null ? null : Jurisdiction.fromAbbreviation(fields[1]);
+    }
+
+    void assignJurisdictionGroups(Window window, Jurisdiction[] states) {
+        // Largest state first onto the group with the fewest lines so far; states the first window does not have
+        // are spread round-robin
+        int groups = links.size();
+        long[] state_lines = new long[Jurisdiction.values().length];
+        for (int line_index = 0; line_index < window.line_count; line_index++) {
+            if (states[line_index] != null) {
+                state_lines[states[line_index].ordinal()]++;
+            }
+        }
+        Integer[] by_size = new Integer[state_lines.length];
+        for (int ordinal = 0; ordinal < by_size.length; ordinal++) {
+            by_size[ordinal] = ordinal;
+        }
+        Arrays.sort(by_size, (first, second) -> Long.compare(state_lines[second], state_lines[first]));
+
+        jurisdiction_groups = new int[state_lines.length];
+        long[] group_lines = new long[groups];
+        int next_group = 0;
+        for (int ordinal : by_size) {
+            int group = 0;
+            if (state_lines[ordinal] == 0) {
+                group = next_group++ % groups;
+            }
+            else {
+                for (int candidate = 1; candidate < groups; candidate++) {
+                    if (group_lines[candidate] < group_lines[group]) {
+                        group = candidate;
+                    }
+                }
+            }
+            jurisdiction_groups[ordinal] = group;
+            group_lines[group] += state_lines[ordinal];
+        }
+    }
+
+    void dispatch(Window window) {
+        if (!partitionByJurisdiction || links.size() == 1) {
+            window.shards = new Shard[] { new Shard(window, next_shard_id++, -1, null, window.data, window.length, window.line_count) };
+            enqueue(window.shards[0]);
+            return;
+        }
+
+        Jurisdiction[] states = new Jurisdiction[window.line_count];
+        for (int line_index = 0; line_index < window.line_count; line_index++) {
+            states[line_index] = stateOf(window.text(line_index));
+        }
+        if (jurisdiction_groups == null) {
+            assignJurisdictionGroups(window, states);
+        }
+
+        // Lines without a recognizable state (headers, bad records) go to the first group, which rejects them
+        int groups = links.size();
+        window.line_groups = new byte[window.line_count];
+        int[] group_line_counts = new int[groups];
+        int[] group_bytes = new int[groups];
+        for (int line_index = 0; line_index < window.line_count; line_index++) {
+            int group = states[line_index] == null ? 0 : jurisdiction_groups[states[line_index].ordinal()];
+            window.line_groups[line_index] = (byte) group;
+            group_line_counts[group]++;
+            group_bytes[group] += window.line_ends[line_index] - window.lineStart(line_index);
+        }
+
+        ArrayList<Shard> shards = new ArrayList<Shard>();
+        window.group_shards = new int[groups];
+        for (int group = 0; group < groups; group++) {
+            if (group_line_counts[group] == 0) {
+                continue;
+            }
+            window.group_shards[group] = shards.size();
+            int[] line_offsets = new int[group_line_counts[group]];
+            byte[] payload = new byte[group_bytes[group]];
+            int line_count = 0;
+            int payload_length = 0;
+            for (int line_index = 0; line_index < window.line_count; line_index++) {
+                if (window.line_groups[line_index] == group) {
+                    int start = window.lineStart(line_index);
+                    int length = window.line_ends[line_index] - start;
+                    System.arraycopy(window.data, start, payload, payload_length, length);
+                    payload_length += length;
+                    line_offsets[line_count++] = line_index;
+                }
+            }
+            shards.add(new Shard(window, next_shard_id++, group, line_offsets, payload, payload_length, line_count));
+        }
+        window.shards = shards.toArray(new Shard[0]);
+        for (Shard shard : window.shards) {
+            enqueue(shard);
+        }
+    }
+
+    void writeWindow(Window window, ResultWriter writer, ResultWriter rejects) throws IOException {
+        for (Shard shard : window.shards) {
+            try {
+                shard.done.get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Shard " + shard.id + " failed", e.getCause());
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for shard " + shard.id, e);
+            }
+        }
+
+        // Walk the window's lines in order, taking each line's outcome and row from the shard that estimated it
+        int[] next_line = new int[window.shards.length];
+        int[] next_row = new int[window.shards.length];
+        for (int line_index = 0; line_index < window.line_count; line_index++) {
+            int shard_index = window.line_groups == null ? 0 : window.group_shards[window.line_groups[line_index]];
+            Shard shard = window.shards[shard_index];
+            byte outcome = shard.outcomes[next_line[shard_index]++];
+
+            if (outcome == ParallelBatchEngine.ROW_WRITTEN) {
+                int row_start = next_row[shard_index];
+                int row_end = row_start;
+                while (shard.rows[row_end] != '\n') {
+                    row_end++;
+                }
+                writer.write(shard.rows, row_start, row_end + 1 - row_start);
+                next_row[shard_index] = row_end + 1;
+                records_processed++;
+            }
+            else if (outcome != ParallelBatchEngine.NO_OUTPUT_LINE) {
+                long line_number = window.first_line_number + line_index;
+                if (rejects != null) {
+                    byte[] reject = (line_number + "," + ParallelBatchEngine.REJECT_REASONS[outcome] + "," + ParallelBatchEngine.quoteCsvField(window.text(line_index)) + "\n").getBytes(StandardCharsets.UTF_8);
+                    rejects.write(reject, 0, reject.length);
+                }
+                else {
+                    System.out.println("Skipping invalid record on line " + line_number + ": " + window.text(line_index));
+                }
+                records_skipped++;
+            }
+        }
+
+        for (Shard shard : window.shards) {
+            System.out.println("Shard " + shard.id + ": lines " + window.first_line_number + "-" + (window.first_line_number + window.line_count - 1)
+                    + (shard.line_offsets == null ? "" : " (" + shard.line_count + " of them)")
+                    + " on " + shard.estimated_by.describe() + " in " + String.format("%.3f", shard.elapsed_nanos / 1e9) + " seconds, "
+                    + String.format("%.0f", shard.line_count / Math.max(shard.elapsed_nanos / 1e9, 1e-9)) + " lines/second"
+                    + (shard.attempts > 0 ? " after " + (shard.attempts + 1) + " attempts" : ""));
+        }
+    }
+
+    public void run(String inputFile, String outputFile) throws IOException {
+        jsonInput = inputFile.endsWith(".jsonl") || inputFile.endsWith(".json");
+        jsonOutput = ResultWriter.isJsonOutput(outputFile);
+
+        long startTime = System.nanoTime();
+
+        // Enough windows in flight to keep every worker busy while the oldest one is merged
+        int max_windows_in_flight = links.size() * 2;
+        ArrayDeque<Window> windows_in_flight = new ArrayDeque<Window>();
+
+        live_links = links.size();
+        ArrayList<Thread> link_threads = new ArrayList<Thread>();
+        for (WorkerLink link : links) {
+            Thread link_thread = new Thread(link, "shard-" + link.describe());
+            link_thread.setDaemon(true);
+            link_thread.start();
+            link_threads.add(link_thread);
+        }
+
+        LineReader reader = new LineReader(Paths.get(inputFile));
+        ResultWriter writer = ResultWriter.open(outputFile, gzip);
+        ResultWriter rejects = rejectsFile == null ? null : ResultWriter.open(rejectsFile, false);
+
+        try {
+            if (!jsonOutput) {
+                writer.writeLine(BatchEstimator.CSV_HEADER);
+            }
+            if (rejects != null) {
+                rejects.writeLine(ParallelBatchEngine.REJECTS_HEADER);
+            }
+
+            long line_number = 1;
+            Window window = new Window(line_number);
+
+            while (reader.next()) {
+                window.add(reader.bytes(), reader.length());
+
+                if (window.length >= shardBytes) {
+                    dispatch(window);
+                    windows_in_flight.add(window);
+                    line_number += window.line_count;
+                    window = new Window(line_number);
+
+                    if (windows_in_flight.size() >= max_windows_in_flight) {
+                        writeWindow(windows_in_flight.poll(), writer, rejects);
+                    }
+                }
+            }
+
+            if (window.line_count > 0) {
+                dispatch(window);
+                windows_in_flight.add(window);
+            }
+
+            while (!windows_in_flight.isEmpty()) {
+                writeWindow(windows_in_flight.poll(), writer, rejects);
+            }
+        }
+
+        finally {
+            reader.close();
+            writer.close();
+            if (rejects != null) {
+                rejects.close();
+            }
+            // Workers close their connections once they reach the end of the queue
+            for (WorkerLink link : links) {
+                link.own_queue.add(NO_MORE_SHARDS);
+            }
+            for (Thread link_thread : link_threads) {
+                try {
+                    link_thread.join(10000);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Processed " + records_processed + " records (" + records_skipped + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds on " + links.size() + " workers.");
+        System.out.println("Throughput: " + String.format("%.0f", records_processed / Math.max(elapsed_seconds, 1e-9)) + " records/second");
+        for (WorkerLink link : links) {
+            System.out.println(link.describe() + ": " + link.shards_estimated + " shards, " + link.lines_estimated + " lines, "
+                    + String.format("%.0f", link.lines_estimated / Math.max(link.busy_nanos / 1e9, 1e-9)) + " lines/second while busy"
+                    + (link.failures > 0 ? ", " + link.failures + " failures" : ""));
+        }
+    }
+
+    static String[] calculationOptions(CommandLineOptions options, int threadsPerWorker) {
+        // The options that change how a worker calculates; everything about reading brackets stays with the coordinator
+        ArrayList<String> calculation_options = new ArrayList<String>();
+        calculation_options.add("--threads");
+        calculation_options.add(Integer.toString(threadsPerWorker));
+        if (options.exact) {
+            calculation_options.add("--exact");
+            if (!options.rounding.isEmpty()) {
+                calculation_options.add("--rounding");
+                calculation_options.add(options.rounding);
+            }
+        }
+        if (options.cacheEntries > 0) {
+            calculation_options.add("--cache");
+            calculation_options.add(Integer.toString(options.cacheEntries));
+        }
+        if (options.hasFlag("--columnar")) {
+            calculation_options.add("--columnar");
+        }
+        return calculation_options.toArray(new String[0]);
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--shard" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--shard", "--workers", "--hosts", "--partition", "--shard-size", "--retries", "--worker-timeout", "--rejects");
+
+        String partition = options.flag("--partition", "bytes");
+        if (options.positionalCount() < 2 || !(partition.equals("bytes") || partition.equals("jurisdiction"))) {
+            System.out.println("Usage: java TaxEstimator --shard <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--workers <n>] [--hosts <host:port,...>] [--partition bytes|jurisdiction] [--shard-size <MB>] [--retries <n>] [--worker-timeout <seconds>] [--threads <per worker>] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--columnar] [--exact [--rounding <rules>]] [--gzip] [--rejects <file>]");
+            System.exit(-1);
+        }
+
+        String inputFile = options.positional(0);
+        String outputFile = options.positional(1);
+        int year = options.yearAt(2);
+        String hosts = options.flag("--hosts", "");
+        // Local workers default to two, unless remote hosts are given; together they share this machine's cores
+        int local_workers = Integer.parseInt(options.flag("--workers", hosts.isEmpty() ? "2" : "0"));
+        int threads_per_worker = options.threads > 1 ? options.threads : Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, local_workers));
+
+        try {
+            BracketRegistry registry = options.loadRegistry(year);
+            ShardCoordinator coordinator = new ShardCoordinator(registry, year, calculationOptions(options, threads_per_worker))
+                    .localWorkers(local_workers)
+                    .partitionByJurisdiction(partition.equals("jurisdiction"))
+                    .shardMegabytes(Integer.parseInt(options.flag("--shard-size", Integer.toString(DEFAULT_SHARD_MEGABYTES))))
+                    .retries(Integer.parseInt(options.flag("--retries", Integer.toString(DEFAULT_RETRIES))))
+                    .workerTimeout(Integer.parseInt(options.flag("--worker-timeout", Integer.toString(DEFAULT_WORKER_TIMEOUT_SECONDS))))
+                    .gzip(options.hasFlag("--gzip"))
+                    .rejects(options.flag("--rejects", null));
+            for (String host : hosts.split(",")) {
+                if (!host.trim().isEmpty()) {
+                    int colon = host.lastIndexOf(':');
+                    coordinator.remoteWorker(colon < 0 ? host.trim() : host.substring(0, colon).trim(), colon < 0 ? ShardWorker.DEFAULT_PORT : Integer.parseInt(host.substring(colon + 1).trim()));
+                }
+            }
+            if (coordinator.links.isEmpty()) {
+                System.out.println("--workers 0 needs at least one worker in --hosts.");
+                System.exit(-1);
+            }
+            coordinator.run(inputFile, outputFile);
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+
+        catch(ParseException e) {
+            System.out.println("There was a JSON parsing error: " + e);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+	Worker process for sharded batch runs (see ShardCoordinator)
+	A worker estimates shards of a batch input that a coordinator sends it and sends back the result rows. It has no
+	bracket files of its own: the coordinator ships its compiled bracket tables (a BracketSnapshot) once when it
+	connects, and every shard on that connection is estimated with them on a ParallelBatchEngine.
+
+	With --stdio the worker speaks to the coordinator that launched it over its standard input and output, and
+	anything the estimation code prints goes to standard error instead. Otherwise it listens on a socket and serves
+	any number of coordinators, one connection at a time per coordinator.
+
+	Protocol (DataOutputStream encoding, big-endian):
+	    coordinator: int magic ("TXSH"), int version, int defaultYear, boolean jsonInput, boolean jsonOutput,
+	                 int option count, UTF options (e.g. "--exact"), int snapshot length, snapshot bytes
+	    worker:      byte READY, or byte FAILED + UTF message
+	    then any number of
+	    coordinator: byte SHARD, int shard id, long first line number, int line count, boolean has offsets,
+	                 [int line offset from the first line number, per line], int payload length, payload (the lines, '\n'-terminated)
+	    worker:      byte RESULT, int shard id, long elapsed nanos, byte outcome per line (ParallelBatchEngine's line outcomes),
+	                 int rows length, rows (one encoded result row per ROW_WRITTEN line, in line order)
+	                 or byte FAILED, int shard id, UTF message
+	    and finally
+	    coordinator: byte CLOSE
+
+	Usage: java TaxEstimator --worker [--port <port>] [--bind <address>]
+	       java TaxEstimator --worker --stdio
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ShardWorker {
+    static final int MAGIC = 0x54585348;
+    static final int VERSION = 1;
+    static final int DEFAULT_PORT = 9471;
+    static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    static final byte READY = 1;
+    static final byte SHARD = 2;
+    static final byte RESULT = 3;
+    static final byte FAILED = 4;
+    static final byte CLOSE = 5;
+
+    static void writeJobHeader(DataOutputStream out, int defaultYear, boolean jsonInput, boolean jsonOutput, String[] calculationOptions, byte[] snapshot) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(defaultYear);
+        out.writeBoolean(jsonInput);
+        out.writeBoolean(jsonOutput);
+        out.writeInt(calculationOptions.length);
+        for (String option : calculationOptions) {
+            out.writeUTF(option);
+        }
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+    }
+
+    static String[] splitLines(byte[] payload, int line_count) {
+        String[] lines = new String[line_count];
+        int start = 0;
+        for (int line_index = 0; line_index < line_count; line_index++) {
+            int end = start;
+            while (end < payload.length && payload[end] != '\n') {
+                end++;
+            }
+            int text_end = end > start && payload[end - 1] == '\r' ? end - 1 : end;
+            lines[line_index] = new String(payload, start, text_end - start, StandardCharsets.UTF_8);
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    public static void serve(InputStream rawIn, OutputStream rawOut) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn, 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut, 1 << 16));
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a shard coordinator");
+        }
+        int version = in.readInt();
+        int defaultYear = in.readInt();
+        boolean jsonInput = in.readBoolean();
+        boolean jsonOutput = in.readBoolean();
+        String[] calculation_options = new String[in.readInt()];
+        for (int option_index = 0; option_index < calculation_options.length; option_index++) {
+            calculation_options[option_index] = in.readUTF();
+        }
+        byte[] snapshot = new byte[in.readInt()];
+        in.readFully(snapshot);
+
+        ParallelBatchEngine engine;
+        try {
+            if (version != VERSION) {
+                throw new IOException("Unsupported shard protocol version " + version + " (expected " + VERSION + ")");
+            }
+            BracketRegistry registry = BracketSnapshot.read(ByteBuffer.wrap(snapshot));
+            CommandLineOptions options = CommandLineOptions.parse(calculation_options, "--worker");
+            engine = new ParallelBatchEngine(options.calculator(registry), defaultYear, options.threads);
+            if (options.hasFlag("--columnar") && !options.exact) {
+                engine.columnar(new ColumnarTaxCalculator(registry));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            out.writeByte(FAILED);
+            out.writeUTF(e.toString());
+            out.flush();
+            return;
+        }
+        out.writeByte(READY);
+        out.flush();
+
+        try {
+            while (true) {
+                byte command = in.readByte();
+                if (command == CLOSE) {
+                    return;
+                }
+                if (command != SHARD) {
+                    throw new IOException("Unexpected shard protocol command " + command);
+                }
+
+                int shard_id = in.readInt();
+                long first_line_number = in.readLong();
+                int line_count = in.readInt();
+                int[] line_offsets = null;
+                if (in.readBoolean()) {
+                    line_offsets = new int[line_count];
+                    for (int line_index = 0; line_index < line_count; line_index++) {
+                        line_offsets[line_index] = in.readInt();
+                    }
+                }
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+
+                // A shard that cannot be estimated is reported back, so the coordinator can retry it elsewhere
+                long started = System.nanoTime();
+                ParallelBatchEngine.Chunk chunk;
+                try {
+                    chunk = engine.estimate(splitLines(payload, line_count), first_line_number, line_offsets, jsonInput, jsonOutput);
+                }
+                catch (IOException | RuntimeException e) {
+                    out.writeByte(FAILED);
+                    out.writeInt(shard_id);
+                    out.writeUTF(e.toString());
+                    out.flush();
+                    continue;
+                }
+
+                int rows_length = 0;
+                for (byte[] encoded_range : chunk.encoded_ranges) {
+                    rows_length += encoded_range == null ? 0 : encoded_range.length;
+                }
+                out.writeByte(RESULT);
+                out.writeInt(shard_id);
+                out.writeLong(System.nanoTime() - started);
+                out.write(chunk.line_outcomes);
+                out.writeInt(rows_length);
+                for (byte[] encoded_range : chunk.encoded_ranges) {
+                    if (encoded_range != null) {
+                        out.write(encoded_range);
+                    }
+                }
+                out.flush();
+            }
+        }
+        finally {
+            engine.pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--worker" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--worker", "--port", "--bind");
+
+        try {
+            if (options.hasFlag("--stdio")) {
+                // Standard output carries the protocol, so nothing else may print to it
+                OutputStream protocol_out = new FileOutputStream(FileDescriptor.out);
+                System.setOut(System.err);
+                serve(new FileInputStream(FileDescriptor.in), protocol_out);
+                return;
+            }
+
+            String bind_address = options.flag("--bind", DEFAULT_BIND_ADDRESS);
+            ServerSocket server = new ServerSocket(Integer.parseInt(options.flag("--port", Integer.toString(DEFAULT_PORT))), 64, InetAddress.getByName(bind_address));
+            System.out.println("Tax estimator shard worker listening on " + bind_address + ":" + server.getLocalPort() + ".");
+
+            while (true) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> {
+                    try {
+                        socket.setTcpNoDelay(true);
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    }
+                    catch (EOFException e) {
+                        System.out.println("Coordinator " + socket.getRemoteSocketAddress() + " disconnected.");
+                    }
+                    catch (IOException e) {
+                        System.out.println("An IOException occurred: " + e);
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e) {
+                            System.out.println("An IOException occurred: " + e);
+                        }
+                    }
+                });
+                connection.start();
+            }
+        }
+
+        catch(IOException e) {
+            System.out.println("An IOException occurred: " + e);
+            System.exit(-1);
+        }
+    }
+}
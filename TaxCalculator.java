@@ -0,0 +1,11 @@
+/*
+	Anything that can answer "how much tax does this jurisdiction charge on this income".
+	BracketRegistry answers from its compiled schedules; EstimateCache sits in front of another
+	TaxCalculator and remembers recent answers. Implementations must be safe to call from many threads.
+*/
+
+public interface TaxCalculator {
+    boolean has(int year, Jurisdiction jurisdiction);
+
+    double calculateTax(int year, Jurisdiction jurisdiction, FilingStatus filingStatus, long taxableIncome);
+}
@@ -4,23 +4,13 @@
 	Note: This app will calculate estimated federal and state taxes for the 50 U.S. States
 */
 
-import java.io.FileNotFoundException;
-import java.nio.file.StandardCopyOption;
 import java.util.Scanner;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.io.InputStream;
-import java.net.URL;
 import java.time.LocalDate;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 
-import java.io.FileReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 enum FilingStatus {
@@ -32,85 +22,30 @@ enum FilingStatus {
 
 
 public class TaxEstimator {
+    static final String TAXEE_SOURCE_URL = "https://raw.githubusercontent.com/taxee/taxee-tax-statistics/master/src/statistics/";
+
     FilingStatus filingStatus;
-    JSONObject federal_tax_data;
-    JSONObject selected_state_tax_data;
-    HashMap<String, ArrayList<Bracket>> federal_brackets;
-    HashMap<String, ArrayList<Bracket>> selected_state_brackets;
+    HashMap<String, BracketSchedule> federal_brackets;
+    HashMap<String, BracketSchedule> selected_state_brackets;
+    Jurisdiction selected_state;
     HashMap<String, String> state_abbr_to_file_name;
 
     public TaxEstimator() {
-        federal_brackets = new HashMap<String, ArrayList<Bracket>>();
-        selected_state_brackets = new HashMap<String, ArrayList<Bracket>>();
+        federal_brackets = new HashMap<String, BracketSchedule>();
+        selected_state_brackets = new HashMap<String, BracketSchedule>();
         state_abbr_to_file_name = new HashMap<String, String>();
         fill_state_abbr_to_file_name_map();
     }
 
     public void fill_state_abbr_to_file_name_map() {
-        state_abbr_to_file_name.put("AL", "alabama");
-        state_abbr_to_file_name.put("AK", "alaska");
-        state_abbr_to_file_name.put("AZ", "arizona");
-        state_abbr_to_file_name.put("AR", "arkansas");
-        state_abbr_to_file_name.put("CA", "california");
-        state_abbr_to_file_name.put("CO", "colorado");
-        state_abbr_to_file_name.put("CT", "connecticut");
-        state_abbr_to_file_name.put("DE", "delaware");
-        state_abbr_to_file_name.put("DC", "district_of_columbia");
-        state_abbr_to_file_name.put("FL", "florida");
-        state_abbr_to_file_name.put("GA", "georgia");
-        state_abbr_to_file_name.put("HI", "hawaii");
-        state_abbr_to_file_name.put("ID", "idaho");
-        state_abbr_to_file_name.put("IL", "illinois");
-        state_abbr_to_file_name.put("IN", "indiana");
-        state_abbr_to_file_name.put("IA", "iowa");
-        state_abbr_to_file_name.put("KS", "kansas");
-        state_abbr_to_file_name.put("KY", "kentucky");
-        state_abbr_to_file_name.put("LA", "louisiana");
-        state_abbr_to_file_name.put("ME", "maine");
-        state_abbr_to_file_name.put("MD", "maryland");
-        state_abbr_to_file_name.put("MA", "massachusetts");
-        state_abbr_to_file_name.put("MI", "michigan");
-        state_abbr_to_file_name.put("MN", "minnesota");
-        state_abbr_to_file_name.put("MS", "mississippi");
-        state_abbr_to_file_name.put("MO", "missouri");
-        state_abbr_to_file_name.put("MT", "montana");
-        state_abbr_to_file_name.put("NE", "nebraska");
-        state_abbr_to_file_name.put("NV", "nevada");
-        state_abbr_to_file_name.put("NH", "new_hampshire");
-        state_abbr_to_file_name.put("NJ", "new_jersey");
-        state_abbr_to_file_name.put("NM", "new_mexico");
-        state_abbr_to_file_name.put("NY", "new_york");
-        state_abbr_to_file_name.put("NC", "north_carolina");
-        state_abbr_to_file_name.put("ND", "north_dakota");
-        state_abbr_to_file_name.put("OH", "ohio");
-        state_abbr_to_file_name.put("OK", "oklahoma");
-        state_abbr_to_file_name.put("OR", "oregon");
-        state_abbr_to_file_name.put("PA", "pennsylvania");
-        state_abbr_to_file_name.put("RI", "rhode_island");
-        state_abbr_to_file_name.put("SC", "south_carolina");
-        state_abbr_to_file_name.put("SD", "south_dakota");
-        state_abbr_to_file_name.put("TN", "tennessee");
-        state_abbr_to_file_name.put("TX", "texas");
-        state_abbr_to_file_name.put("UT", "utah");
-        state_abbr_to_file_name.put("VT", "vermont");
-        state_abbr_to_file_name.put("VA", "virginia");
-        state_abbr_to_file_name.put("WA", "washington");
-        state_abbr_to_file_name.put("WV", "west_virginia");
-        state_abbr_to_file_name.put("WI", "wisconsin");
-        state_abbr_to_file_name.put("WY", "wyoming");
-    }
-
-
-    public class Bracket {
-        Long bracketLow;
-        Long bracketHigh;
-        double taxRate;
-
-        public String toString() {
-            return String.format("Bracket: {taxRate: %f, bracketLow: %d, bracketHigh: %d}", taxRate, bracketLow, bracketHigh);
+        for (Jurisdiction jurisdiction : Jurisdiction.values()) {
+            if (jurisdiction.isState()) {
+                state_abbr_to_file_name.put(jurisdiction.name(), jurisdiction.fileName());
+            }
         }
     }
 
+
     public static void printFederalTaxFilingOptions() {
         System.out.println("The following options exist for federal tax filings.");
         System.out.println("[1]\tSingle");
@@ -153,105 +88,23 @@ public class TaxEstimator {
         } while (!filingStatusSelected);
     }
 
-    public void parse_federal_brackets_from_json() {
-        // Use the federal_tax_data JSONObject to read all the brackets for each filing status and store them in
-        // the federal_brackets hash map
-
-        Iterator iterator = federal_tax_data.keySet().iterator();
-        while (iterator.hasNext()) {
-            String key = (String) iterator.next();
-            JSONArray income_brackets = (JSONArray) ((JSONObject) federal_tax_data.get(key)).get("income_tax_brackets");
-            ArrayList<Bracket> brackets_for_specific_status = new ArrayList<Bracket>();
-
-            for (int bracket_object_index = 0; bracket_object_index < income_brackets.size(); bracket_object_index++) {
-                JSONObject bracket = (JSONObject) income_brackets.get(bracket_object_index);
-
-                Bracket newBracket = new Bracket();
-
-                // Get the low part of the bracket
-                // The income brackets from taxee start the next level at the upper end of the previous bracket
-                // So increment by 1
-
-                if (bracket_object_index == 0) {
-                    newBracket.bracketLow = 0L;
-                }
-                else {
-                    newBracket.bracketLow = ((Long) bracket.get("bracket")) + 1;
-                }
-
-                // Get the high part of the bracket
-                newBracket.bracketHigh = 0L;
-                if (bracket_object_index != income_brackets.size() - 1) {
-                    newBracket.bracketHigh = (Long) ((JSONObject) income_brackets.get(bracket_object_index + 1)).get("bracket");
-                }
-
-                if (bracket.get("marginal_rate") instanceof Double) {
-                    newBracket.taxRate = (double) bracket.get("marginal_rate");
-                }
-
-                if (bracket.get("marginal_rate") instanceof Long) {
-                    newBracket.taxRate = ((Long) bracket.get("marginal_rate")).doubleValue();
-                }
-
-                brackets_for_specific_status.add(newBracket);
-            }
-
-            federal_brackets.put(key, brackets_for_specific_status);
-            // System.out.println(String.format("Added {%s: %s} to federal_brackets", key, brackets_for_specific_status));
+    public static HashMap<String, BracketSchedule> parse_brackets_from_json(String file_name, boolean federal_layout) throws IOException, ParseException {
+        // Read all the brackets for each filing status straight from the taxee file, keyed the same way the file is
+        // The federal file nests its tables under tax_withholding_percentage_method_tables.annual, state files do not
+        long started = Metrics.ENABLED ? System.nanoTime() : 0;
+        BracketSchedule[] schedules_by_status = new TaxeeJsonParser().parse(Paths.get(file_name), federal_layout);
+        if (Metrics.ENABLED) {
+            Metrics.record(Metrics.Phase.PARSE, Metrics.jurisdictionOfFile(file_name), started);
         }
 
-        //System.out.println("Finished parsing all JSON data. Added the following to federal_brackets hash map:");
-        //System.out.println(federal_brackets);
-    }
-
-    public void parse_selected_state_brackets_from_json() {
-        // Use the selected_state_tax_data JSONObject to read all the brackets for each filing status and store them in
-        // the selected_state_brackets hash map
-
-        Iterator iterator = selected_state_tax_data.keySet().iterator();
-        while(iterator.hasNext()) {
-            String key = (String) iterator.next();
-            JSONArray income_brackets = (JSONArray) ((JSONObject) selected_state_tax_data.get(key)).get("income_tax_brackets");
-            ArrayList<Bracket> brackets_for_specific_status = new ArrayList<Bracket>();
-
-            for (int bracket_object_index=0; bracket_object_index < income_brackets.size(); bracket_object_index++) {
-                JSONObject bracket = (JSONObject) income_brackets.get(bracket_object_index);
-
-                Bracket newBracket = new Bracket();
-
-                // Get the low part of the bracket
-                // The income brackets from taxee start the next level at the upper end of the previous bracket
-                // So increment by 1
-
-                if (bracket_object_index == 0) {
-                    newBracket.bracketLow = 0L;
-                }
-                else {
-                    newBracket.bracketLow = ((Long) bracket.get("bracket")) + 1;
-                }
-
-                // Get the high part of the bracket
-                newBracket.bracketHigh = 0L;
-                if (bracket_object_index != income_brackets.size() - 1) {
-                    newBracket.bracketHigh = (Long) ((JSONObject) income_brackets.get(bracket_object_index + 1)).get("bracket");
-                }
-
-                //System.out.println("bracket marginal rate type: " + bracket.get("marginal_rate").getClass().getName());
-                //System.out.println("bracket marginal rate: " + bracket.get("marginal_rate"));
-
-                if (bracket.get("marginal_rate") instanceof Double) {
-                    newBracket.taxRate = (double) bracket.get("marginal_rate");
-                }
-
-                if (bracket.get("marginal_rate") instanceof Long) {
-                    newBracket.taxRate = ((Long) bracket.get("marginal_rate")).doubleValue();
-                }
-
-                brackets_for_specific_status.add(newBracket);
-            }
-
-            selected_state_brackets.put(key, brackets_for_specific_status);
+        HashMap<String, BracketSchedule> brackets = new HashMap<String, BracketSchedule>();
+        for (FilingStatus filingStatus : FilingStatus.values()) {
+            brackets.put(TaxEstimator.filingStatusToKey(filingStatus), schedules_by_status[filingStatus.ordinal()]);
         }
+
+        //System.out.println("Finished parsing " + file_name + ":");
+        //System.out.println(brackets);
+        return brackets;
     }
 
     public static String filingStatusToKey(FilingStatus filingStatus) {
@@ -273,81 +126,86 @@ public class TaxEstimator {
         }
 
         else {
-            System.out.println("Invalid filing status entered.");
-            System.exit(-1);
+            throw new IllegalArgumentException("Invalid filing status: " + filingStatus);
         }
 
         return federal_brackets_key;
     }
 
-    public double calculateFederalTaxes(FilingStatus filingStatus, int taxableIncome) {
-        double taxValue = 0.0;
-
-        // Iterate through all brackets that are less than the taxableIncome and add their contributions to the tax value
-        String federal_brackets_key = TaxEstimator.filingStatusToKey(filingStatus);
+    public static FilingStatus keyToFilingStatus(String key) {
+        // Accepts the taxee keys, the enum names and the menu codes from printFederalTaxFilingOptions
+        String normalized_key = key.trim().toLowerCase();
 
-        ArrayList<Bracket> brackets_for_filing_status = federal_brackets.get(federal_brackets_key);
-
-        for (int bracket_index = 0; bracket_index < brackets_for_filing_status.size(); bracket_index++) {
-            Bracket currentBracket = brackets_for_filing_status.get(bracket_index);
-
-            // If the taxable income is higher than the bracketHigh, include the entire bracket's contribution
-            // Else, calculate the difference between taxable income and bracketLow
+        if (normalized_key.equals("single") || normalized_key.equals("1")) {
+            return FilingStatus.Single;
+        }
 
-            if (taxableIncome > currentBracket.bracketHigh) {
-                // If you are at the last bracket, then bracketHigh will be set to 0 by default, so use taxableIncome - bracketLow
-                if (bracket_index == (brackets_for_filing_status.size() - 1)) {
-                    taxValue = taxValue + (currentBracket.taxRate/100) * (taxableIncome - currentBracket.bracketLow);
-                }
+        else if (normalized_key.equals("married") || normalized_key.equals("married_joint") || normalized_key.equals("2")) {
+            return FilingStatus.Married_Joint;
+        }
 
-                // Else, you are at an intermediate bracket, so just take the whole bracket's tax contribution
-                else {
-                    taxValue = taxValue + (currentBracket.taxRate/100) * (currentBracket.bracketHigh - currentBracket.bracketLow);
-                }
-            }
+        else if (normalized_key.equals("married_separately") || normalized_key.equals("married_separate") || normalized_key.equals("3")) {
+            return FilingStatus.Married_Separate;
+        }
 
-            else {
-                taxValue = taxValue + (currentBracket.taxRate/100) * (taxableIncome - currentBracket.bracketLow);
-                break;
-            }
+        else if (normalized_key.equals("head_of_household") || normalized_key.equals("4")) {
+            return FilingStatus.Head_of_Household;
         }
 
-        return taxValue;
+        return null;
     }
 
-    public double calculateSelectedStateTaxes(FilingStatus filingStatus, int taxableIncome) {
-        double taxValue = 0.0;
+    public static void report_fetch_outcome(BracketDataFetcher.Outcome outcome, String data_name) {
+        if (outcome == BracketDataFetcher.Outcome.UP_TO_DATE) {
+            System.out.println("All good! You have the most recent tax data.");
+        }
 
-        // Iterate through all brackets that are less than the taxableIncome and add their contributions to the tax value
-        String selected_state_brackets_key = TaxEstimator.filingStatusToKey(filingStatus);
+        else if (outcome == BracketDataFetcher.Outcome.DOWNLOADED) {
+            System.out.println("Downloaded the most recent " + data_name + " tax brackets from taxee github source.");
+            System.out.println("Source: https://github.com/taxee/taxee-tax-statistics");
+            System.out.println();
+        }
 
-        ArrayList<Bracket> brackets_for_filing_status = selected_state_brackets.get(selected_state_brackets_key);
+        else if (outcome == BracketDataFetcher.Outcome.STALE) {
+            System.out.println("Could not refresh the " + data_name + " tax brackets, using the copy you already have.");
+        }
 
-        for (int bracket_index = 0; bracket_index < brackets_for_filing_status.size(); bracket_index++) {
-            Bracket currentBracket = brackets_for_filing_status.get(bracket_index);
+        else {
+            System.out.println("No tax bracket data found for " + data_name + " and it could not be downloaded!");
+        }
+    }
 
-            // If the taxable income is higher than the bracketHigh, include the entire bracket's contribution
-            // Else, calculate the difference between taxable income and bracketLow
+    public void load_federal_brackets_from_file(String file_name) throws IOException, ParseException {
+        federal_brackets = TaxEstimator.parse_brackets_from_json(file_name, true);
+    }
 
-            if (taxableIncome > currentBracket.bracketHigh) {
-                // If you are at the last bracket, then bracketHigh will be set to 0 by default, so use taxableIncome - bracketLow
-                if (bracket_index == (brackets_for_filing_status.size() - 1)) {
-                    taxValue = taxValue + (currentBracket.taxRate/100) * (taxableIncome - currentBracket.bracketLow);
-                }
+    public void load_selected_state_brackets_from_file(String file_name) throws IOException, ParseException {
+        selected_state_brackets = TaxEstimator.parse_brackets_from_json(file_name, false);
+        selected_state = Metrics.jurisdictionOfFile(file_name);
+    }
 
-                // Else, you are at an intermediate bracket, so just take the whole bracket's tax contribution
-                else {
-                    taxValue = taxValue + (currentBracket.taxRate/100) * (currentBracket.bracketHigh - currentBracket.bracketLow);
-                }
-            }
+    public double calculateFederalTaxes(FilingStatus filingStatus, long taxableIncome) {
+        String federal_brackets_key = TaxEstimator.filingStatusToKey(filingStatus);
 
-            else {
-                taxValue = taxValue + (currentBracket.taxRate/100) * (taxableIncome - currentBracket.bracketLow);
-                break;
-            }
+        if (Metrics.ENABLED) {
+            long started = System.nanoTime();
+            double federal_taxes = federal_brackets.get(federal_brackets_key).calculateTax(taxableIncome);
+            Metrics.record(Metrics.Phase.CALCULATE, Jurisdiction.FEDERAL, started);
+            return federal_taxes;
         }
+        return federal_brackets.get(federal_brackets_key).calculateTax(taxableIncome);
+    }
 
-        return taxValue;
+    public double calculateSelectedStateTaxes(FilingStatus filingStatus, long taxableIncome) {
+        String selected_state_brackets_key = TaxEstimator.filingStatusToKey(filingStatus);
+
+        if (Metrics.ENABLED) {
+            long started = System.nanoTime();
+            double state_taxes = selected_state_brackets.get(selected_state_brackets_key).calculateTax(taxableIncome);
+            Metrics.record(Metrics.Phase.CALCULATE, selected_state, started);
+            return state_taxes;
+        }
+        return selected_state_brackets.get(selected_state_brackets_key).calculateTax(taxableIncome);
     }
 
     public void printFederalTaxBracketTable(FilingStatus filingStatus) {
@@ -356,17 +214,19 @@ public class TaxEstimator {
         String federal_brackets_key = TaxEstimator.filingStatusToKey(filingStatus);
 
         // Output each tax bracket for the given filing status, by using the federal_brackets HashMap
-        ArrayList<Bracket> brackets_for_filing_status = federal_brackets.get(federal_brackets_key);
+        BracketSchedule brackets_for_filing_status = federal_brackets.get(federal_brackets_key);
         System.out.printf("%-20s%s%n", "Tax Rate", "Income Bracket");
         for (int bracket_index = 0; bracket_index < brackets_for_filing_status.size(); bracket_index++) {
-            Bracket currentBracket = brackets_for_filing_status.get(bracket_index);
-            if (currentBracket.bracketHigh != 0L)
+            double taxRate = brackets_for_filing_status.taxRate(bracket_index);
+            long bracketLow = brackets_for_filing_status.bracketLow(bracket_index);
+            long bracketHigh = brackets_for_filing_status.bracketHigh(bracket_index);
+            if (bracketHigh != 0L)
             {
                 // This format means:
                 // 1. Left justify tax rate and make the size of the field 20 characters
                 // 2. Put bracket info after it to the right
                 //Note: To print a %, type "%%", because % is used to escape %
-                System.out.printf("%-20s%s%n", String.format(currentBracket.taxRate + "%%"), String.format("$%d - $%d", currentBracket.bracketLow, currentBracket.bracketHigh));
+                System.out.printf("%-20s%s%n", String.format(taxRate + "%%"), String.format("$%d - $%d", bracketLow, bracketHigh));
             }
 
             else {
@@ -374,7 +234,7 @@ public class TaxEstimator {
                 // 1. Left justify tax rate and make the size of the field 20 characters
                 // 2. Put bracket info after it to the right
                 // Note: %% is used to print a % (you use % to escape %)
-                System.out.printf("%-20s%s%n", String.format(currentBracket.taxRate + "%%"), String.format("$%d+", currentBracket.bracketLow));
+                System.out.printf("%-20s%s%n", String.format(taxRate + "%%"), String.format("$%d+", bracketLow));
             }
         }
     }
@@ -386,17 +246,19 @@ public class TaxEstimator {
 
         //Output each tax bracket for the given filing status, by using the selected_state_brackets HashMap
 
-        ArrayList<Bracket> brackets_for_filing_status = selected_state_brackets.get(selected_state_brackets_key);
+        BracketSchedule brackets_for_filing_status = selected_state_brackets.get(selected_state_brackets_key);
         System.out.printf("%-20s%s%n", "Tax Rate", "Income Bracket");
         for (int bracket_index = 0; bracket_index < brackets_for_filing_status.size(); bracket_index++) {
-            Bracket currentBracket = brackets_for_filing_status.get(bracket_index);
-            if (currentBracket.bracketHigh != 0L)
+            double taxRate = brackets_for_filing_status.taxRate(bracket_index);
+            long bracketLow = brackets_for_filing_status.bracketLow(bracket_index);
+            long bracketHigh = brackets_for_filing_status.bracketHigh(bracket_index);
+            if (bracketHigh != 0L)
             {
                 // This format means:
                 // 1. Left justify tax rate and make the size of the field 20 characters
                 // 2. Put bracket info after it to the right
                 //Note: To print a %, type "%%", because % is used to escape %
-                System.out.printf("%-20s%s%n", String.format(currentBracket.taxRate + "%%"), String.format("$%d - $%d", currentBracket.bracketLow, currentBracket.bracketHigh));
+                System.out.printf("%-20s%s%n", String.format(taxRate + "%%"), String.format("$%d - $%d", bracketLow, bracketHigh));
             }
 
             else {
@@ -404,41 +266,78 @@ public class TaxEstimator {
                 // 1. Left justify tax rate and make the size of the field 20 characters
                 // 2. Put bracket info after it to the right
                 // Note: %% is used to print a % (you use % to escape %)
-                System.out.printf("%-20s%s%n", String.format(currentBracket.taxRate + "%%"), String.format("$%d+", currentBracket.bracketLow));
+                System.out.printf("%-20s%s%n", String.format(taxRate + "%%"), String.format("$%d+", bracketLow));
             }
         }
     }
 
     public static void main(String[] args) {
-        System.out.println("Welcome to the tax estimator!");
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchEstimator.main(args);
+            return;
+        }
 
-        // Determine the year
-        LocalDate now = LocalDate.now();
-        int year = now.getYear();
-        System.out.println("Checking if you have the most recent federal tax brackets for this year (" + year + ").");
+        if (args.length > 0 && args[0].equals("--compile-snapshot")) {
+            BracketSnapshot.main(args);
+            return;
+        }
 
-        try {
-            FileReader reader = new FileReader("federal_brackets.json");
-            System.out.println("All good! You have the most recent tax data.");
+        if (args.length > 0 && args[0].equals("--serve")) {
+            EstimationServer.main(args);
+            return;
         }
-        catch (FileNotFoundException e) {
-            System.out.println("No tax bracket data found!");
 
-            System.out.println("Downloading most recent federal tax brackets from taxee github source.");
-            System.out.println("Source: https://github.com/taxee/taxee-tax-statistics");
-            System.out.println();
+        if (args.length > 0 && args[0].equals("--sweep")) {
+            IncomeSweep.main(args);
+            return;
+        }
 
-            String url = "https://raw.githubusercontent.com/taxee/taxee-tax-statistics/master/src/statistics/" + year + "/federal.json";
+        if (args.length > 0 && args[0].equals("--gross-up")) {
+            GrossUpSolver.main(args);
+            return;
+        }
 
-            // Download the json
-            try {
-                InputStream in = new URL(url).openStream();
-                Files.copy(in, Paths.get("federal_brackets.json"), StandardCopyOption.REPLACE_EXISTING);
-            } catch (Exception download_exception) {
-                System.out.println("Error occurred downloading file: " + download_exception);
-            }
+        if (args.length > 0 && args[0].equals("--compare")) {
+            HouseholdComparison.main(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--apportion")) {
+            Apportionment.main(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--pipeline")) {
+            TaxPipeline.main(args);
+            return;
         }
 
+        if (args.length > 0 && (args[0].equals("--index-results") || args[0].equals("--reestimate"))) {
+            ResultIndex.main(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--shard")) {
+            ShardCoordinator.main(args);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--worker")) {
+            ShardWorker.main(args);
+            return;
+        }
+
+        System.out.println("Welcome to the tax estimator!");
+
+        // Determine the year
+        LocalDate now = LocalDate.now();
+        int year = now.getYear();
+        System.out.println("Checking if you have the most recent federal tax brackets for this year (" + year + ").");
+
+        BracketDataFetcher fetcher = new BracketDataFetcher(BracketSource.taxee(), BracketRegistry.defaultDataDirectory()).quiet(true);
+        TaxEstimator.report_fetch_outcome(fetcher.fetch(year, Jurisdiction.FEDERAL), "federal");
+        String federal_json_file = fetcher.cachedFile(year, Jurisdiction.FEDERAL).toString();
+
         System.out.println("Let's start by estimating your federal taxes.");
         TaxEstimator taxEstObject = new TaxEstimator();
         taxEstObject.getFederalFilingStatus();
@@ -447,18 +346,12 @@ public class TaxEstimator {
         System.out.printf("Please enter your taxable income: $");
 
         Scanner taxableIncomeInput = new Scanner(System.in);
-        int taxableIncome = taxableIncomeInput.nextInt();
+        long taxableIncome = taxableIncomeInput.nextLong();
 
         System.out.println("Given your filing status and the current year (" + year + ")" + ", these are the tax brackets:");
 
         try {
-            JSONParser parser = new JSONParser();
-            FileReader reader = new FileReader("federal_brackets.json");
-
-            JSONObject json_object = (JSONObject) parser.parse(reader);
-            taxEstObject.federal_tax_data = (JSONObject) ((JSONObject) json_object.get("tax_withholding_percentage_method_tables")).get("annual");
-
-            taxEstObject.parse_federal_brackets_from_json();
+            taxEstObject.load_federal_brackets_from_file(federal_json_file);
 
             taxEstObject.printFederalTaxBracketTable(taxEstObject.filingStatus);
         }
@@ -506,40 +399,14 @@ public class TaxEstimator {
 
         System.out.println("Checking if you have the most recent state tax brackets for this year (" + year + ").");
 
-        String json_state_file = (String) taxEstObject.state_abbr_to_file_name.get(stateInput) + ".json";
-
-        try {
-            FileReader reader = new FileReader(json_state_file);
-            System.out.println("All good! You have the most recent tax data.");
-        }
-        catch (FileNotFoundException e) {
-            System.out.println("No tax bracket data found for " + taxEstObject.state_abbr_to_file_name.get(stateInput) + "!");
-
-            System.out.println("Downloading most recent state tax brackets from taxee github source.");
-            System.out.println("Source: https://github.com/taxee/taxee-tax-statistics");
-            System.out.println();
-
-            String url = "https://raw.githubusercontent.com/taxee/taxee-tax-statistics/master/src/statistics/" + year + "/" + json_state_file;
-
-            // Download the json
-            try {
-                InputStream in = new URL(url).openStream();
-                Files.copy(in, Paths.get(json_state_file), StandardCopyOption.REPLACE_EXISTING);
-            } catch (Exception download_exception) {
-                System.out.println("Error occurred downloading file: " + download_exception);
-            }
-        }
+        Jurisdiction selected_state = Jurisdiction.fromAbbreviation(stateInput);
+        TaxEstimator.report_fetch_outcome(fetcher.fetch(year, selected_state), selected_state.fileName());
+        String json_state_file = fetcher.cachedFile(year, selected_state).toString();
 
         System.out.println("Given your filing status and the current year (" + year + ")" + ", these are the tax brackets for " + taxEstObject.state_abbr_to_file_name.get(stateInput) + ":");
 
         try {
-            JSONParser parser = new JSONParser();
-            FileReader reader = new FileReader(json_state_file);
-
-            JSONObject json_object = (JSONObject) parser.parse(reader);
-            taxEstObject.selected_state_tax_data = json_object;
-
-            taxEstObject.parse_selected_state_brackets_from_json();
+            taxEstObject.load_selected_state_brackets_from_file(json_state_file);
 
             taxEstObject.printSelectedStateTaxBracketTable(taxEstObject.filingStatus);
         }
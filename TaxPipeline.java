@@ -0,0 +1,259 @@
+/*
+	Gross-to-net pipeline: deductions, bracket tax, payroll tax and credits for a record in one pass.
+	The stages, in the order a record flows through them:
+
+	    deductions   taxable income = gross - max(standard deduction, itemized deductions) - personal exemption,
+	                 for federal and state separately, from the amounts taxee lists next to each jurisdiction's
+	                 brackets (see TaxeeJsonParser); never below 0
+	    brackets     federal and state income tax on those taxable incomes, through the TaxCalculator chain
+	    payroll      Social Security (6.2% up to the year's wage base) and Medicare (1.45%, plus 0.9% above the
+	                 filing status threshold), with the whole gross income taken as one earner's wages
+	    credits      the nonrefundable child tax credit, phased out above the filing status threshold, plus any
+	                 other credits given on the record, taken off the federal income tax but never below 0
+
+	The brackets stage always runs; the others are picked when the pipeline is built. evaluate() runs the picked
+	stages straight through on primitive locals and writes the results into the caller's double[], so a record
+	creates no objects on the way. taxee ships no payroll or credit data, so those tables are constants here.
+	Years outside a table use its nearest year.
+
+	Usage: java TaxEstimator --pipeline <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--stages deductions,payroll,credits] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]
+	Input records are filing_status,state,gross_income[,dependents[,itemized_deductions[,other_credits[,year]]]], or JSONL with those names.
+*/
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+public final class TaxPipeline {
+    static final String CSV_HEADER = "filing_status,state,gross_income,federal_taxable_income,state_taxable_income,federal_tax,state_tax,credits,social_security_tax,medicare_tax,total_tax,net_income,effective_tax_rate";
+
+    public enum Stage { DEDUCTIONS, BRACKETS, PAYROLL, CREDITS }
+
+    // Slots of the result array evaluate() fills in
+    public static final int FEDERAL_TAXABLE_INCOME = 0;
+    public static final int STATE_TAXABLE_INCOME = 1;
+    public static final int FEDERAL_TAX = 2;
+    public static final int STATE_TAX = 3;
+    public static final int CREDITS = 4;
+    public static final int SOCIAL_SECURITY_TAX = 5;
+    public static final int MEDICARE_TAX = 6;
+    public static final int TOTAL_TAX = 7;
+    public static final int NET_INCOME = 8;
+    public static final int RESULT_SIZE = 9;
+
+    static final double SOCIAL_SECURITY_RATE = 0.062;
+    static final double MEDICARE_RATE = 0.0145;
+    static final double ADDITIONAL_MEDICARE_RATE = 0.009;
+
+    // Social Security wage base by year, starting at SOCIAL_SECURITY_FIRST_YEAR
+    static final int SOCIAL_SECURITY_FIRST_YEAR = 2017;
+    static final long[] SOCIAL_SECURITY_WAGE_BASES = { 127_200, 128_400, 132_900, 137_700, 142_800, 147_000, 160_200, 168_600, 176_100 };
+
+    // By filing status ordinal: Single, Married_Joint, Married_Separate, Head_of_Household
+    static final long[] ADDITIONAL_MEDICARE_THRESHOLDS = { 200_000, 250_000, 125_000, 200_000 };
+
+    // Child tax credit per child and phase-out start, before and from 2018; it shrinks by $50 per started $1,000 above the start
+    static final int CHILD_TAX_CREDIT_CHANGE_YEAR = 2018;
+    static final long CHILD_TAX_CREDIT_BEFORE_2018 = 1_000;
+    static final long CHILD_TAX_CREDIT_FROM_2018 = 2_000;
+    static final long[] CHILD_TAX_CREDIT_PHASE_OUT_BEFORE_2018 = { 75_000, 110_000, 55_000, 75_000 };
+    static final long[] CHILD_TAX_CREDIT_PHASE_OUT_FROM_2018 = { 200_000, 400_000, 200_000, 200_000 };
+
+    final BracketRegistry registry;
+    final TaxCalculator calculator;
+    final boolean deductions;
+    final boolean payroll;
+    final boolean credits;
+
+    public TaxPipeline(BracketRegistry registry, TaxCalculator calculator, EnumSet<Stage> stages) {
+        this.registry = registry;
+        this.calculator = calculator;
+        this.deductions = stages.contains(Stage.DEDUCTIONS);
+        this.payroll = stages.contains(Stage.PAYROLL);
+        this.credits = stages.contains(Stage.CREDITS);
+    }
+
+    public static EnumSet<Stage> parseStages(String stages) {
+        // "deductions,payroll,credits"; brackets are always included
+        EnumSet<Stage> parsed = EnumSet.of(Stage.BRACKETS);
+        for (String stage : stages.split(",")) {
+            if (!stage.trim().isEmpty()) {
+                parsed.add(Stage.valueOf(stage.trim().toUpperCase()));
+            }
+        }
+        return parsed;
+    }
+
+    public boolean has(int year, Jurisdiction state) {
+        return calculator.has(year, Jurisdiction.FEDERAL) && calculator.has(year, state);
+    }
+
+    public void evaluate(int year, Jurisdiction state, FilingStatus filingStatus, long grossIncome, int dependents, long itemizedDeductions, double otherCredits, double[] result) {
+        long federal_taxable_income = grossIncome;
+        long state_taxable_income = grossIncome;
+
+        if (deductions) {
+            BracketSchedule federal_schedule = registry.schedule(year, Jurisdiction.FEDERAL, filingStatus);
+            BracketSchedule state_schedule = registry.schedule(year, state, filingStatus);
+            federal_taxable_income = Math.max(0, grossIncome - Math.max(federal_schedule.standardDeduction(), itemizedDeductions) - federal_schedule.personalExemption());
+            state_taxable_income = Math.max(0, grossIncome - Math.max(state_schedule.standardDeduction(), itemizedDeductions) - state_schedule.personalExemption());
+        }
+
+        double federal_tax = calculator.calculateTax(year, Jurisdiction.FEDERAL, filingStatus, federal_taxable_income);
+        double state_tax = calculator.calculateTax(year, state, filingStatus, state_taxable_income);
+
+        double social_security_tax = 0.0;
+        double medicare_tax = 0.0;
+        if (payroll) {
+            social_security_tax = SOCIAL_SECURITY_RATE * Math.min(grossIncome, socialSecurityWageBase(year));
+            long additional_medicare_threshold = ADDITIONAL_MEDICARE_THRESHOLDS[filingStatus.ordinal()];
+            medicare_tax = MEDICARE_RATE * grossIncome + (grossIncome > additional_medicare_threshold ? ADDITIONAL_MEDICARE_RATE * (grossIncome - additional_medicare_threshold) : 0.0);
+        }
+
+        double credits_taken = 0.0;
+        if (credits) {
+            credits_taken = Math.min(federal_tax, childTaxCredit(year, filingStatus, grossIncome, dependents) + otherCredits);
+            federal_tax -= credits_taken;
+        }
+
+        double total_tax = federal_tax + state_tax + social_security_tax + medicare_tax;
+
+        result[FEDERAL_TAXABLE_INCOME] = federal_taxable_income;
+        result[STATE_TAXABLE_INCOME] = state_taxable_income;
+        result[FEDERAL_TAX] = federal_tax;
+        result[STATE_TAX] = state_tax;
+        result[CREDITS] = credits_taken;
+        result[SOCIAL_SECURITY_TAX] = social_security_tax;
+        result[MEDICARE_TAX] = medicare_tax;
+        result[TOTAL_TAX] = total_tax;
+        result[NET_INCOME] = grossIncome - total_tax;
+    }
+
+    static long socialSecurityWageBase(int year) {
+        int year_index = Math.max(0, Math.min(SOCIAL_SECURITY_WAGE_BASES.length - 1, year - SOCIAL_SECURITY_FIRST_YEAR));
+        return SOCIAL_SECURITY_WAGE_BASES[year_index];
+    }
+
+    static double childTaxCredit(int year, FilingStatus filingStatus, long grossIncome, int dependents) {
+        if (dependents <= 0) {
+            return 0.0;
+        }
+        boolean from_2018 = year >= CHILD_TAX_CREDIT_CHANGE_YEAR;
+        long credit = (from_2018 ? CHILD_TAX_CREDIT_FROM_2018 : CHILD_TAX_CREDIT_BEFORE_2018) * dependents;
+        long phase_out_start = (from_2018 ? CHILD_TAX_CREDIT_PHASE_OUT_FROM_2018 : CHILD_TAX_CREDIT_PHASE_OUT_BEFORE_2018)[filingStatus.ordinal()];
+        if (grossIncome > phase_out_start) {
+            credit -= 50 * ((grossIncome - phase_out_start + 999) / 1000);
+        }
+        return Math.max(0, credit);
+    }
+
+    static void encode(ResultWriter.Encoder encoder, FilingStatus filingStatus, Jurisdiction state, long grossIncome, double[] result, boolean jsonOutput) {
+        double effective_tax_rate = grossIncome == 0 ? 0.0 : (result[TOTAL_TAX] / grossIncome) * 100;
+
+        if (jsonOutput) {
+            encoder.append("{\"filing_status\":\"").appendFilingStatus(filingStatus);
+            encoder.append("\",\"state\":\"").append(state.name());
+            encoder.append("\",\"gross_income\":").append(grossIncome);
+            encoder.append(",\"federal_taxable_income\":").append((long) result[FEDERAL_TAXABLE_INCOME]);
+            encoder.append(",\"state_taxable_income\":").append((long) result[STATE_TAXABLE_INCOME]);
+            encoder.append(",\"federal_tax\":").appendCents(result[FEDERAL_TAX]);
+            encoder.append(",\"state_tax\":").appendCents(result[STATE_TAX]);
+            encoder.append(",\"credits\":").appendCents(result[CREDITS]);
+            encoder.append(",\"social_security_tax\":").appendCents(result[SOCIAL_SECURITY_TAX]);
+            encoder.append(",\"medicare_tax\":").appendCents(result[MEDICARE_TAX]);
+            encoder.append(",\"total_tax\":").appendCents(result[TOTAL_TAX]);
+            encoder.append(",\"net_income\":").appendCents(result[NET_INCOME]);
+            encoder.append(",\"effective_tax_rate\":").appendCents(effective_tax_rate).append("}\n");
+            return;
+        }
+
+        encoder.appendFilingStatus(filingStatus).append(',').append(state.name()).append(',').append(grossIncome);
+        encoder.append(',').append((long) result[FEDERAL_TAXABLE_INCOME]);
+        encoder.append(',').append((long) result[STATE_TAXABLE_INCOME]);
+        encoder.append(',').appendCents(result[FEDERAL_TAX]);
+        encoder.append(',').appendCents(result[STATE_TAX]);
+        encoder.append(',').appendCents(result[CREDITS]);
+        encoder.append(',').appendCents(result[SOCIAL_SECURITY_TAX]);
+        encoder.append(',').appendCents(result[MEDICARE_TAX]);
+        encoder.append(',').appendCents(result[TOTAL_TAX]);
+        encoder.append(',').appendCents(result[NET_INCOME]);
+        encoder.append(',').appendCents(effective_tax_rate).append('\n');
+    }
+
+    // JSONL field names, in the order of the CSV columns; the first three are required
+    static final String[] FIELD_NAMES = { "filing_status", "state", "gross_income", "dependents", "itemized_deductions", "other_credits", "year" };
+
+    static String optionalField(String[] fields, int index) {
+        return fields.length > index ? fields[index].trim() : "";
+    }
+
+    static double parseAmount(String field) {
+        // Returns -1 for anything that is not a non-negative amount
+        try {
+            double amount = Double.parseDouble(field);
+            return amount >= 0 ? amount : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    boolean evaluateRecord(String[] fields, ResultWriter.Encoder encoder, double[] result, int defaultYear, boolean jsonOutput) {
+        FilingStatus filingStatus = TaxEstimator.keyToFilingStatus(fields[0]);
+        Jurisdiction state = Jurisdiction.fromAbbreviation(fields[1]);
+        long grossIncome = BatchEstimator.parseTaxableIncome(fields[2]);
+        String dependents_field = optionalField(fields, 3);
+        String itemized_field = optionalField(fields, 4);
+        String credits_field = optionalField(fields, 5);
+        String year_field = optionalField(fields, 6);
+        long dependents = dependents_field.isEmpty() ? 0 : BatchEstimator.parseTaxableIncome(dependents_field);
+        long itemized_deductions = itemized_field.isEmpty() ? 0 : BatchEstimator.parseTaxableIncome(itemized_field);
+        double other_credits = credits_field.isEmpty() ? 0.0 : parseAmount(credits_field);
+        int year = year_field.isEmpty() ? defaultYear : BatchEstimator.parseYear(year_field);
+
+        if (filingStatus == null || state == null || grossIncome < 0 || dependents < 0 || dependents > 100 || itemized_deductions < 0 || other_credits < 0 || year < 0 || !has(year, state)) {
+            return false;
+        }
+
+        evaluate(year, state, filingStatus, grossIncome, (int) dependents, itemized_deductions, other_credits, result);
+        encode(encoder, filingStatus, state, grossIncome, result, jsonOutput);
+        return true;
+    }
+
+    public void run(String inputFile, String outputFile, int defaultYear, boolean gzip) throws IOException {
+        boolean jsonOutput = ResultWriter.isJsonOutput(outputFile);
+        long startTime = System.nanoTime();
+        double[] result = new double[RESULT_SIZE];
+
+        long[] counts = BatchEstimator.forEachRecord(inputFile, outputFile, gzip, CSV_HEADER, FIELD_NAMES, 3, (fields, encoder) -> evaluateRecord(fields, encoder, result, defaultYear, jsonOutput));
+
+        double elapsed_seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Processed " + counts[0] + " records (" + counts[1] + " skipped) in " + String.format("%.3f", elapsed_seconds) + " seconds.");
+    }
+
+    public static void main(String[] args) {
+        // args[0] is "--pipeline" when called through TaxEstimator.main
+        CommandLineOptions options = CommandLineOptions.parse(args, "--pipeline", "--stages");
+
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage: java TaxEstimator --pipeline <input.csv|input.jsonl> <output.csv|output.jsonl> [year] [--stages deductions,payroll,credits] [--years <y1,y2,...>] [--data-dir <dir>] [--source <url|dir>] [--snapshot <file>] [--cache <entries>] [--exact [--rounding <rules>]] [--gzip]");
+            System.exit(-1);
+        }
+
+        int year = options.yearAt(2);
+        EnumSet<Stage> stages;
+        try {
+            stages = parseStages(options.flag("--stages", "deductions,payroll,credits"));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Unknown stage in --stages; use deductions, brackets, payroll and credits.");
+            System.exit(-1);
+            return;
+        }
+
+        BatchEstimator.runOrExit(() -> {
+            BracketRegistry registry = options.loadRegistry(year);
+            TaxPipeline pipeline = new TaxPipeline(registry, options.calculator(registry), stages);
+            pipeline.run(options.positional(0), options.positional(1), year, options.hasFlag("--gzip"));
+        });
+    }
+}
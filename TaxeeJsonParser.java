@@ -0,0 +1,448 @@
+/*
+	Streaming parser for taxee's bracket files.
+	It walks the JSON text once and only keeps what the estimator uses: the "bracket" and "marginal_rate"
+	of each entry in income_tax_brackets, and the amounts in the deductions and exemptions lists, per
+	filing status. No JSONObject/JSONArray tree or boxed numbers are built; everything else in the file
+	is skipped in place.
+
+	Federal files keep the per-status bracket tables under tax_withholding_percentage_method_tables.annual
+	and the deductions and exemptions in per-status objects at the top level; state files keep all of it
+	in the top-level per-status objects. The amounts of each list are added up and stored on the schedule
+	as its standard deduction and personal exemption. A parser instance reuses its buffers across files, so
+	loading every jurisdiction with one instance creates very little garbage. It is not thread-safe.
+*/
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.json.simple.parser.ParseException;
+
+public final class TaxeeJsonParser {
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private char[] text = new char[1 << 14];
+    private int length;
+    private int position;
+
+    // Scratch space for one income_tax_brackets array, grown as needed
+    private long[] bracketStarts = new long[16];
+    private double[] marginalRates = new double[16];
+    private int bracketCount;
+
+    private BracketSchedule[] schedules_by_status;
+    private long[] deductions_by_status;
+    private long[] exemptions_by_status;
+
+    public BracketSchedule[] parse(Path jsonFile, boolean federalLayout) throws IOException, ParseException {
+        // FileInputStream so a missing file surfaces as FileNotFoundException, like the FileReader it replaces
+        Reader reader = new InputStreamReader(new FileInputStream(jsonFile.toFile()), StandardCharsets.UTF_8);
+        try {
+            return parse(reader, federalLayout);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    public BracketSchedule[] parse(Reader reader, boolean federalLayout) throws IOException, ParseException {
+        length = 0;
+        int read;
+        while ((read = reader.read(text, length, text.length - length)) != -1) {
+            length += read;
+            if (length == text.length) {
+                char[] grown = new char[text.length * 2];
+                System.arraycopy(text, 0, grown, 0, length);
+                text = grown;
+            }
+        }
+
+        position = 0;
+        schedules_by_status = new BracketSchedule[FilingStatus.values().length];
+        deductions_by_status = new long[FilingStatus.values().length];
+        exemptions_by_status = new long[FilingStatus.values().length];
+
+        if (federalLayout) {
+            parseFederalDocument();
+        }
+        else {
+            parseStatusTables();
+        }
+
+        // A status the file does not mention is treated like a state without an income tax
+        for (int status_index = 0; status_index < schedules_by_status.length; status_index++) {
+            if (schedules_by_status[status_index] == null) {
+                schedules_by_status[status_index] = BracketSchedule.EMPTY;
+            }
+            schedules_by_status[status_index] = schedules_by_status[status_index].withAllowances(deductions_by_status[status_index], exemptions_by_status[status_index]);
+        }
+
+        BracketSchedule[] parsed = schedules_by_status;
+        schedules_by_status = null;
+        deductions_by_status = null;
+        exemptions_by_status = null;
+        return parsed;
+    }
+
+    private void parseFederalDocument() throws ParseException {
+        // { "tax_withholding_percentage_method_tables": { "annual": { <status tables> } }, ... }
+        expect('{');
+        if (skipIfNext('}')) {
+            return;
+        }
+
+        do {
+            int key_start = readKey();
+            if (keyEquals(key_start, "tax_withholding_percentage_method_tables") && peekIs('{')) {
+                expect('{');
+                if (!skipIfNext('}')) {
+                    do {
+                        int inner_key_start = readKey();
+                        if (keyEquals(inner_key_start, "annual") && peekIs('{')) {
+                            parseStatusTables();
+                        }
+                        else {
+                            skipValue();
+                        }
+                    } while (skipIfNext(','));
+                    expect('}');
+                }
+            }
+            else if (filingStatusForKey(key_start) != null && peekIs('{')) {
+                // Only the deductions and exemptions; the brackets come from the withholding tables
+                parseStatusObject(filingStatusForKey(key_start), false);
+            }
+            else {
+                skipValue();
+            }
+        } while (skipIfNext(','));
+        expect('}');
+    }
+
+    private void parseStatusTables() throws ParseException {
+        // { "single": { ..., "income_tax_brackets": [...] }, "married": {...}, ... }
+        expect('{');
+        if (skipIfNext('}')) {
+            return;
+        }
+
+        do {
+            int key_start = readKey();
+            FilingStatus filingStatus = filingStatusForKey(key_start);
+            if (filingStatus != null && peekIs('{')) {
+                parseStatusObject(filingStatus, true);
+            }
+            else {
+                skipValue();
+            }
+        } while (skipIfNext(','));
+        expect('}');
+    }
+
+    private void parseStatusObject(FilingStatus filingStatus, boolean withBrackets) throws ParseException {
+        expect('{');
+        if (skipIfNext('}')) {
+            return;
+        }
+
+        do {
+            int key_start = readKey();
+            if (keyEquals(key_start, "deductions") && peekIs('[')) {
+                deductions_by_status[filingStatus.ordinal()] = sumAmounts("deduction_amount");
+            }
+            else if (keyEquals(key_start, "exemptions") && peekIs('[')) {
+                exemptions_by_status[filingStatus.ordinal()] = sumAmounts("exemption_amount");
+            }
+            else if (withBrackets && keyEquals(key_start, "income_tax_brackets")) {
+                if (peekIs('[')) {
+                    parseBracketArray();
+                    schedules_by_status[filingStatus.ordinal()] = compileBrackets();
+                }
+                else {
+                    // States without an income tax ship "income_tax_brackets": null
+                    skipValue();
+                    schedules_by_status[filingStatus.ordinal()] = BracketSchedule.EMPTY;
+                }
+            }
+            else {
+                skipValue();
+            }
+        } while (skipIfNext(','));
+        expect('}');
+    }
+
+    private void parseBracketArray() throws ParseException {
+        bracketCount = 0;
+        expect('[');
+        if (skipIfNext(']')) {
+            return;
+        }
+
+        do {
+            if (bracketCount == bracketStarts.length) {
+                bracketStarts = Arrays.copyOf(bracketStarts, bracketCount * 2);
+                marginalRates = Arrays.copyOf(marginalRates, bracketCount * 2);
+            }
+
+            long bracketStart = 0L;
+            double marginalRate = 0.0;
+
+            expect('{');
+            if (!skipIfNext('}')) {
+                do {
+                    int key_start = readKey();
+                    if (keyEquals(key_start, "bracket")) {
+                        bracketStart = (long) readNumber();
+                    }
+                    else if (keyEquals(key_start, "marginal_rate")) {
+                        marginalRate = readNumber();
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (skipIfNext(','));
+                expect('}');
+            }
+
+            bracketStarts[bracketCount] = bracketStart;
+            marginalRates[bracketCount] = marginalRate;
+            bracketCount++;
+        } while (skipIfNext(','));
+        expect(']');
+    }
+
+    private long sumAmounts(String amount_key) throws ParseException {
+        // [{"deduction_name": "Standard Deduction", "deduction_amount": 12200}, ...]; null amounts count as 0
+        long total = 0;
+        expect('[');
+        if (skipIfNext(']')) {
+            return 0;
+        }
+
+        do {
+            expect('{');
+            if (!skipIfNext('}')) {
+                do {
+                    int key_start = readKey();
+                    if (keyEquals(key_start, amount_key)) {
+                        total += (long) readNumber();
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (skipIfNext(','));
+                expect('}');
+            }
+        } while (skipIfNext(','));
+        expect(']');
+        return total;
+    }
+
+    private BracketSchedule compileBrackets() {
+        // The income brackets from taxee start the next level at the upper end of the previous bracket,
+        // so every bracket after the first starts one dollar higher; the last bracket has no top (0)
+        long[] bracketLows = new long[bracketCount];
+        long[] bracketHighs = new long[bracketCount];
+        double[] taxRates = new double[bracketCount];
+
+        for (int bracket_index = 0; bracket_index < bracketCount; bracket_index++) {
+            bracketLows[bracket_index] = bracket_index == 0 ? 0L : bracketStarts[bracket_index] + 1;
+            bracketHighs[bracket_index] = bracket_index == bracketCount - 1 ? 0L : bracketStarts[bracket_index + 1];
+            taxRates[bracket_index] = marginalRates[bracket_index];
+        }
+
+        return bracketCount == 0 ? BracketSchedule.EMPTY : new BracketSchedule(bracketLows, bracketHighs, taxRates);
+    }
+
+    private FilingStatus filingStatusForKey(int key_start) {
+        for (FilingStatus filingStatus : FilingStatus.values()) {
+            if (keyEquals(key_start, TaxEstimator.filingStatusToKey(filingStatus))) {
+                return filingStatus;
+            }
+        }
+        return null;
+    }
+
+    // ---- Tokenizer ----
+
+    private int key_end;
+
+    private int readKey() throws ParseException {
+        // Leaves position after the ':' and returns where the key's characters start (escapes are kept raw)
+        skipWhitespace();
+        expect('"');
+        int key_start = position;
+        while (position < length && text[position] != '"') {
+            if (text[position] == '\\') {
+                position++;
+            }
+            position++;
+        }
+        if (position >= length) {
+            throw error();
+        }
+        key_end = position;
+        position++;
+        expect(':');
+        return key_start;
+    }
+
+    private boolean keyEquals(int key_start, String expected) {
+        if (key_end - key_start != expected.length()) {
+            return false;
+        }
+        for (int char_index = 0; char_index < expected.length(); char_index++) {
+            if (text[key_start + char_index] != expected.charAt(char_index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double readNumber() throws ParseException {
+        skipWhitespace();
+
+        int start = position;
+        boolean negative = false;
+        if (position < length && text[position] == '-') {
+            negative = true;
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fraction_digits = 0;
+        boolean exact = true;
+
+        while (position < length && text[position] >= '0' && text[position] <= '9') {
+            mantissa = mantissa * 10 + (text[position++] - '0');
+            digits++;
+        }
+        if (position < length && text[position] == '.') {
+            position++;
+            while (position < length && text[position] >= '0' && text[position] <= '9') {
+                mantissa = mantissa * 10 + (text[position++] - '0');
+                digits++;
+                fraction_digits++;
+            }
+        }
+        if (position < length && (text[position] == 'e' || text[position] == 'E')) {
+            exact = false;
+            position++;
+            if (position < length && (text[position] == '+' || text[position] == '-')) {
+                position++;
+            }
+            while (position < length && text[position] >= '0' && text[position] <= '9') {
+                position++;
+            }
+        }
+
+        if (digits == 0) {
+            if (matchesLiteral("null")) {
+                return 0.0;
+            }
+            throw error();
+        }
+
+        // Up to 15 significant digits divided by an exact power of ten is correctly rounded, which is the same
+        // double Double.parseDouble would produce; anything longer or with an exponent takes the slow path
+        if (exact && digits <= 15 && fraction_digits < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[fraction_digits];
+            return negative ? -value : value;
+        }
+
+        return Double.parseDouble(new String(text, start, position - start));
+    }
+
+    private void skipValue() throws ParseException {
+        skipWhitespace();
+        if (position >= length) {
+            throw error();
+        }
+
+        char next = text[position];
+        if (next == '{' || next == '[') {
+            char close = next == '{' ? '}' : ']';
+            position++;
+            if (skipIfNext(close)) {
+                return;
+            }
+            do {
+                if (close == '}') {
+                    readKey();
+                }
+                skipValue();
+            } while (skipIfNext(','));
+            expect(close);
+        }
+        else if (next == '"') {
+            position++;
+            while (position < length && text[position] != '"') {
+                if (text[position] == '\\') {
+                    position++;
+                }
+                position++;
+            }
+            if (position >= length) {
+                throw error();
+            }
+            position++;
+        }
+        else if (next == '-' || (next >= '0' && next <= '9')) {
+            readNumber();
+        }
+        else if (!matchesLiteral("null") && !matchesLiteral("true") && !matchesLiteral("false")) {
+            throw error();
+        }
+    }
+
+    private boolean matchesLiteral(String literal) {
+        if (position + literal.length() > length) {
+            return false;
+        }
+        for (int char_index = 0; char_index < literal.length(); char_index++) {
+            if (text[position + char_index] != literal.charAt(char_index)) {
+                return false;
+            }
+        }
+        position += literal.length();
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (position < length && (text[position] == ' ' || text[position] == '\n' || text[position] == '\r' || text[position] == '\t')) {
+            position++;
+        }
+    }
+
+    private boolean peekIs(char expected) {
+        skipWhitespace();
+        return position < length && text[position] == expected;
+    }
+
+    private boolean skipIfNext(char expected) {
+        if (peekIs(expected)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) throws ParseException {
+        if (!skipIfNext(expected)) {
+            throw error();
+        }
+    }
+
+    private ParseException error() {
+        // Reported with the same exception type json-simple used, so existing callers handle it unchanged
+        if (position >= length) {
+            return new ParseException(position, ParseException.ERROR_UNEXPECTED_EXCEPTION, "end of input");
+        }
+        return new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf(text[position]));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+	SIMD kernel behind ColumnarTaxCalculator, written with the JDK Vector API (jdk.incubator.vector).
+	This is the only class that touches the incubator module. ColumnarTaxCalculator only loads it when the
+	JVM was started with --add-modules jdk.incubator.vector, and uses its scalar loop otherwise.
+
+	The kernel does no per-row binary search. It walks the schedule's brackets once per vector of incomes.
+	Each lane that is above a bracket's top moves on to the next bracket's (cumulative tax, rate, low).
+	The final step is the same multiply-then-add that BracketSchedule.calculateTax does, on the same
+	values, so every lane comes out bit-identical to the scalar result.
+*/
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorBracketKernel {
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorBracketKernel() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    static void calculateColumn(BracketSchedule schedule, double[] incomes, double[] taxes, int from, int to) {
+        int bracket_count = schedule.size();
+        int vector_end = from + SPECIES.loopBound(to - from);
+        int row = from;
+
+        for (; row < vector_end; row += SPECIES.length()) {
+            DoubleVector income = DoubleVector.fromArray(SPECIES, incomes, row);
+            DoubleVector cumulative_tax = DoubleVector.broadcast(SPECIES, schedule.cumulativeTaxAt(0));
+            DoubleVector rate_fraction = DoubleVector.broadcast(SPECIES, schedule.rateFraction(0));
+            DoubleVector bracket_low = DoubleVector.broadcast(SPECIES, (double) schedule.bracketLow(0));
+
+            for (int bracket_index = 1; bracket_index < bracket_count; bracket_index++) {
+                VectorMask<Double> above = income.compare(VectorOperators.GT, (double) schedule.bracketHigh(bracket_index - 1));
+                cumulative_tax = cumulative_tax.blend(DoubleVector.broadcast(SPECIES, schedule.cumulativeTaxAt(bracket_index)), above);
+                rate_fraction = rate_fraction.blend(DoubleVector.broadcast(SPECIES, schedule.rateFraction(bracket_index)), above);
+                bracket_low = bracket_low.blend(DoubleVector.broadcast(SPECIES, (double) schedule.bracketLow(bracket_index)), above);
+            }
+
+            // Multiply, then add: no FMA, so the rounding matches the scalar expression exactly
+            cumulative_tax.add(rate_fraction.mul(income.sub(bracket_low))).intoArray(taxes, row);
+        }
+
+        for (; row < to; row++) {
+            taxes[row] = schedule.calculateTax((long) incomes[row]);
+        }
+    }
+}
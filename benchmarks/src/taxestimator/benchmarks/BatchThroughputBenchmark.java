@@ -0,0 +1,117 @@
+/*
+	End-to-end batch throughput: read the input file, estimate every record, write the output file.
+	Each benchmark operation is one record, so the score is in records/second, and the gc profiler's
+	gc.alloc.rate.norm is the number of bytes allocated per record.
+
+	threads = 1 measures the sequential BatchEstimator loop. threads > 1 measures the
+	ParallelBatchEngine over a preloaded BracketRegistry, the same way --batch --threads <n> picks one.
+	The sequential loop parses its bracket files inside every run, just like the command line does.
+	The parallel engine's registry is loaded once per trial and is not part of the measurement.
+	The gc profiler only counts allocations on the benchmark thread, not on the ForkJoinPool workers.
+	Read allocation per record from the threads = 1 rows.
+*/
+
+package taxestimator.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BatchThroughputBenchmark {
+    static final int RECORDS = 100_000;
+    static final String[] FILING_STATUS_KEYS = { "single", "married", "married_separately", "head_of_household" };
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "csv", "jsonl" })
+    public String format;
+
+    Path dataDirectory;
+    String inputFile;
+    String outputFile;
+    Object fetcher;
+    Object registry;
+    PrintStream console;
+
+    @Setup
+    public void writeInput() throws Throwable {
+        dataDirectory = Estimator.unpackFixtures();
+        inputFile = dataDirectory.resolve("input." + format).toString();
+        outputFile = dataDirectory.resolve("output." + format).toString();
+
+        Random random = new Random(20190415L);
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of(inputFile), StandardCharsets.UTF_8)) {
+            for (int record = 0; record < RECORDS; record++) {
+                String filing_status = FILING_STATUS_KEYS[random.nextInt(FILING_STATUS_KEYS.length)];
+                String state = Estimator.FIXTURE_STATES[random.nextInt(Estimator.FIXTURE_STATES.length)];
+                long taxable_income = Math.round(55_000 * Math.exp(0.8 * random.nextGaussian()));
+
+                if (format.equals("csv")) {
+                    writer.write(filing_status + "," + state + "," + taxable_income);
+                }
+                else {
+                    writer.write("{\"filing_status\": \"" + filing_status + "\", \"state\": \"" + state + "\", \"taxable_income\": " + taxable_income + "}");
+                }
+                writer.newLine();
+            }
+        }
+
+        // Both engines print progress and throughput; keep that out of the JMH report
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // The fixtures double as the "remote" source, so nothing is downloaded
+        Object source = (Object) Estimator.SOURCE_FROM_LOCATION.invokeExact(dataDirectory.toString());
+        fetcher = (Object) Estimator.NEW_BRACKET_DATA_FETCHER.invokeExact(source, dataDirectory);
+        if (threads > 1) {
+            registry = (Object) Estimator.LOAD_REGISTRY.invokeExact(dataDirectory, new int[] { Estimator.FIXTURE_YEAR }, source);
+        }
+    }
+
+    @TearDown
+    public void deleteFiles() throws Exception {
+        System.setOut(console);
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void estimateBatch() throws Throwable {
+        if (threads > 1) {
+            // run() shuts its pool down when it is done, so every invocation gets a fresh engine
+            Object engine = (Object) Estimator.NEW_PARALLEL_BATCH_ENGINE.invokeExact(registry, Estimator.FIXTURE_YEAR, threads);
+            Estimator.RUN_PARALLEL_BATCH_ENGINE.invokeExact(engine, inputFile, outputFile);
+        }
+        else {
+            Object batchEstimator = (Object) Estimator.NEW_BATCH_ESTIMATOR.invokeExact(Estimator.FIXTURE_YEAR, fetcher);
+            Estimator.LOAD_BATCH_FEDERAL_BRACKETS.invokeExact(batchEstimator);
+            Estimator.RUN_BATCH_ESTIMATOR.invokeExact(batchEstimator, inputFile, outputFile);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+	Entry point of target/benchmarks.jar. This is JMH's own command line, except that the gc profiler
+	is always on, so every result comes with gc.alloc.rate.norm (bytes allocated per operation) next to
+	the time. Passing any -prof option replaces the default profiler.
+
+	    java -jar target/benchmarks.jar                              everything
+	    java -jar target/benchmarks.jar TaxCalculation -p jurisdiction=california
+	    java -jar target/benchmarks.jar -rf json -rff results.json   machine-readable results for comparing runs
+*/
+
+package taxestimator.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmh_args = new ArrayList<String>(Arrays.asList(args));
+        if (!jmh_args.contains("-prof") && !jmh_args.contains("-h") && !jmh_args.contains("-l")) {
+            jmh_args.add(0, "-prof");
+            jmh_args.add(1, "gc");
+        }
+        Main.main(jmh_args.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+	Time and allocation for parsing one taxee bracket file into BracketSchedules, through
+	TaxEstimator.parse_brackets_from_json. The interactive mode and the sequential batch mode do this for every file they load.
+	The fixtures cover the federal withholding layout, a nine-bracket state, a flat-rate state and a
+	state with no income tax.
+*/
+
+package taxestimator.benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BracketParsingBenchmark {
+    @Param({ "federal.json", "california.json", "illinois.json", "texas.json" })
+    public String fixture;
+
+    Path dataDirectory;
+    String file_name;
+    boolean federal_layout;
+
+    @Setup
+    public void unpackFixtures() throws Exception {
+        dataDirectory = Estimator.unpackFixtures();
+        file_name = dataDirectory.resolve(Integer.toString(Estimator.FIXTURE_YEAR)).resolve(fixture).toString();
+        federal_layout = fixture.equals("federal.json");
+    }
+
+    @TearDown
+    public void deleteFixtures() throws Exception {
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public Object parseBracketsFromJson() throws Throwable {
+        return (Object) Estimator.PARSE_BRACKETS_FROM_JSON.invokeExact(file_name, federal_layout);
+    }
+}
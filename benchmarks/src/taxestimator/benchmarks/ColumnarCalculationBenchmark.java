@@ -0,0 +1,99 @@
+/*
+	Scalar loop vs the Vector API kernel of ColumnarTaxCalculator, on one income column of
+	COLUMN_SIZE rows that all share one schedule. One operation is one row, so the scores are
+	comparable with TaxCalculationBenchmark.
+
+	The fork always runs with --add-modules jdk.incubator.vector, so "vector" really is the SIMD kernel.
+	Each setup prints the kernel it got to stdout.
+*/
+
+package taxestimator.benchmarks;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules=jdk.incubator.vector" })
+public class ColumnarCalculationBenchmark {
+    static final int COLUMN_SIZE = 4096;
+
+    @Param({ "FEDERAL", "CA", "NY", "IL" })
+    public String jurisdiction;
+
+    @Param({ "uniform", "lognormal", "high" })
+    public String distribution;
+
+    @Param({ "scalar", "vector" })
+    public String kernel;
+
+    Path dataDirectory;
+    Object schedule;
+    boolean vector;
+
+    final double[] taxable_incomes = new double[COLUMN_SIZE];
+    final double[] taxes = new double[COLUMN_SIZE];
+
+    @Setup
+    public void loadSchedule() throws Throwable {
+        dataDirectory = Estimator.unpackFixtures();
+        Object registry = Estimator.loadFixtureRegistry(dataDirectory);
+        schedule = (Object) Estimator.REGISTRY_SCHEDULE.invokeExact(registry, Estimator.FIXTURE_YEAR, Estimator.jurisdiction(jurisdiction), Estimator.filingStatus("single"));
+        vector = kernel.equals("vector");
+        if (vector) {
+            System.out.println("Columnar kernel: " + (String) Estimator.KERNEL_NAME.invokeExact());
+        }
+
+        Random random = new Random(20190415L);
+        for (int row = 0; row < COLUMN_SIZE; row++) {
+            switch (distribution) {
+                case "uniform":
+                    taxable_incomes[row] = random.nextInt(250_001);
+                    break;
+                case "lognormal":
+                    taxable_incomes[row] = Math.round(55_000 * Math.exp(0.8 * random.nextGaussian()));
+                    break;
+                case "high":
+                    taxable_incomes[row] = 500_000 + random.nextInt(4_500_001);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown income distribution " + distribution);
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteFixtures() throws Exception {
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMN_SIZE)
+    public double[] calculateColumn() throws Throwable {
+        if (vector) {
+            Estimator.CALCULATE_COLUMN.invokeExact(schedule, taxable_incomes, taxes, 0, COLUMN_SIZE);
+        }
+        else {
+            Estimator.CALCULATE_COLUMN_SCALAR.invokeExact(schedule, taxable_incomes, taxes, 0, COLUMN_SIZE);
+        }
+        return taxes;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+	Handles on the estimator classes for the benchmarks.
+	The estimator lives in the default package. Java code in a named package cannot refer to that
+	package, and JMH only accepts benchmarks that are in a named package. So the benchmarks resolve
+	the methods they measure once, as static final MethodHandles. The JIT treats those handles as
+	constants and inlines straight through them.
+
+	Also unpacks the bundled fixture JSON (benchmarks/fixtures/<year>/) into a scratch data directory,
+	so no benchmark touches the network.
+*/
+
+package taxestimator.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+final class Estimator {
+    static final int FIXTURE_YEAR = 2019;
+    static final String[] FIXTURE_FILES = { "federal.json", "california.json", "new_york.json", "illinois.json", "texas.json" };
+    static final String[] FIXTURE_STATES = { "CA", "NY", "IL", "TX" };
+
+    static final Class<?> TAX_ESTIMATOR = load("TaxEstimator");
+    static final Class<?> FILING_STATUS = load("FilingStatus");
+    static final Class<?> TAX_CALCULATOR = load("TaxCalculator");
+    static final Class<?> BRACKET_REGISTRY = load("BracketRegistry");
+    static final Class<?> BRACKET_SOURCE = load("BracketSource");
+    static final Class<?> BRACKET_DATA_FETCHER = load("BracketDataFetcher");
+    static final Class<?> BATCH_ESTIMATOR = load("BatchEstimator");
+    static final Class<?> PARALLEL_BATCH_ENGINE = load("ParallelBatchEngine");
+    static final Class<?> JURISDICTION = load("Jurisdiction");
+    static final Class<?> BRACKET_SCHEDULE = load("BracketSchedule");
+    static final Class<?> COLUMNAR_TAX_CALCULATOR = load("ColumnarTaxCalculator");
+    static final Class<?> FIXED_POINT_TAX_ENGINE = load("FixedPointTaxEngine");
+    static final Class<?> INCOME_SWEEP = load("IncomeSweep");
+
+    // (String file_name, boolean federal_layout) -> HashMap<String, BracketSchedule>
+    static final MethodHandle PARSE_BRACKETS_FROM_JSON = findMethod(TAX_ESTIMATOR, "parse_brackets_from_json", String.class, boolean.class);
+
+    // (TaxEstimator, FilingStatus, long) -> double
+    static final MethodHandle CALCULATE_FEDERAL_TAXES = findMethod(TAX_ESTIMATOR, "calculateFederalTaxes", FILING_STATUS, long.class);
+    static final MethodHandle CALCULATE_SELECTED_STATE_TAXES = findMethod(TAX_ESTIMATOR, "calculateSelectedStateTaxes", FILING_STATUS, long.class);
+
+    static final MethodHandle NEW_TAX_ESTIMATOR = findConstructor(TAX_ESTIMATOR);
+    static final MethodHandle LOAD_FEDERAL_BRACKETS = findMethod(TAX_ESTIMATOR, "load_federal_brackets_from_file", String.class);
+    static final MethodHandle LOAD_SELECTED_STATE_BRACKETS = findMethod(TAX_ESTIMATOR, "load_selected_state_brackets_from_file", String.class);
+    static final MethodHandle KEY_TO_FILING_STATUS = findMethod(TAX_ESTIMATOR, "keyToFilingStatus", String.class);
+
+    static final MethodHandle SOURCE_FROM_LOCATION = findMethod(BRACKET_SOURCE, "fromLocation", String.class);
+    static final MethodHandle NEW_BRACKET_DATA_FETCHER = findConstructor(BRACKET_DATA_FETCHER, BRACKET_SOURCE, Path.class);
+    static final MethodHandle LOAD_REGISTRY = findMethod(BRACKET_REGISTRY, "load", Path.class, int[].class, BRACKET_SOURCE);
+    static final MethodHandle REGISTRY_SCHEDULE = findMethod(BRACKET_REGISTRY, "schedule", int.class, JURISDICTION, FILING_STATUS);
+    static final MethodHandle NEW_BATCH_ESTIMATOR = findConstructor(BATCH_ESTIMATOR, int.class, BRACKET_DATA_FETCHER);
+    static final MethodHandle LOAD_BATCH_FEDERAL_BRACKETS = findMethod(BATCH_ESTIMATOR, "loadFederalBrackets");
+    static final MethodHandle RUN_BATCH_ESTIMATOR = findMethod(BATCH_ESTIMATOR, "run", String.class, String.class);
+    static final MethodHandle NEW_PARALLEL_BATCH_ENGINE = findConstructor(PARALLEL_BATCH_ENGINE, TAX_CALCULATOR, int.class, int.class);
+    static final MethodHandle RUN_PARALLEL_BATCH_ENGINE = findMethod(PARALLEL_BATCH_ENGINE, "run", String.class, String.class);
+
+    // (BracketSchedule, double[] incomes, double[] taxes, int from, int to) -> void
+    static final MethodHandle CALCULATE_COLUMN = findMethod(COLUMNAR_TAX_CALCULATOR, "calculateColumn", BRACKET_SCHEDULE, double[].class, double[].class, int.class, int.class);
+    static final MethodHandle CALCULATE_COLUMN_SCALAR = findMethod(COLUMNAR_TAX_CALCULATOR, "calculateColumnScalar", BRACKET_SCHEDULE, double[].class, double[].class, int.class, int.class);
+    static final MethodHandle KERNEL_NAME = findMethod(COLUMNAR_TAX_CALCULATOR, "kernelName");
+
+    // (TaxCalculator, int year, Jurisdiction, FilingStatus, long) -> double
+    static final MethodHandle CALCULATE_TAX = findMethod(TAX_CALCULATOR, "calculateTax", int.class, JURISDICTION, FILING_STATUS, long.class);
+    static final MethodHandle NEW_FIXED_POINT_TAX_ENGINE = findConstructor(FIXED_POINT_TAX_ENGINE, BRACKET_REGISTRY);
+
+    // (BracketRegistry, int year, long from, long to, long step) -> IncomeSweep
+    static final MethodHandle RUN_INCOME_SWEEP = findMethod(INCOME_SWEEP, "run", BRACKET_REGISTRY, int.class, long.class, long.class, long.class);
+
+    private Estimator() {
+    }
+
+    static Class<?> load(String className) {
+        try {
+            return Class.forName(className);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The estimator classes are not on the benchmark classpath", e);
+        }
+    }
+
+    static MethodHandle findMethod(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            return erase(MethodHandles.publicLookup().unreflect(owner.getMethod(name, parameterTypes)));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + owner.getName() + "." + name, e);
+        }
+    }
+
+    static MethodHandle findConstructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            return erase(MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, parameterTypes)));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find a " + owner.getName() + " constructor", e);
+        }
+    }
+
+    static MethodHandle erase(MethodHandle handle) {
+        // Default-package types become Object so the benchmarks can call invokeExact with types they can name
+        MethodType type = handle.type();
+        for (int parameter = 0; parameter < type.parameterCount(); parameter++) {
+            if (!type.parameterType(parameter).isPrimitive() && type.parameterType(parameter).getPackageName().isEmpty()) {
+                type = type.changeParameterType(parameter, Object.class);
+            }
+        }
+        if (!type.returnType().isPrimitive() && type.returnType() != String.class) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    static Object filingStatus(String key) {
+        try {
+            return (Object) KEY_TO_FILING_STATUS.invokeExact(key);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object jurisdiction(String name) {
+        for (Object jurisdiction : JURISDICTION.getEnumConstants()) {
+            if (((Enum<?>) jurisdiction).name().equals(name)) {
+                return jurisdiction;
+            }
+        }
+        throw new IllegalArgumentException("Unknown jurisdiction " + name);
+    }
+
+    static Object[] filingStatuses() {
+        return FILING_STATUS.getEnumConstants();
+    }
+
+    static Path unpackFixtures() throws IOException {
+        Path dataDirectory = Files.createTempDirectory("tax-estimator-benchmark");
+        Path yearDirectory = Files.createDirectories(dataDirectory.resolve(Integer.toString(FIXTURE_YEAR)));
+
+        for (String fixtureFile : FIXTURE_FILES) {
+            InputStream in = Estimator.class.getResourceAsStream("/fixtures/" + FIXTURE_YEAR + "/" + fixtureFile);
+            if (in == null) {
+                throw new IOException("Missing benchmark fixture " + fixtureFile);
+            }
+            try {
+                Files.copy(in, yearDirectory.resolve(fixtureFile), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        return dataDirectory;
+    }
+
+    static Object loadFixtureRegistry(Path dataDirectory) throws Throwable {
+        // Only a few states are bundled; keep the "no tax bracket data" notices for the rest out of the report
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Object source = (Object) SOURCE_FROM_LOCATION.invokeExact(dataDirectory.toString());
+            return (Object) LOAD_REGISTRY.invokeExact(dataDirectory, new int[] { FIXTURE_YEAR }, source);
+        }
+        finally {
+            System.setOut(console);
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+	Floating-point BracketRegistry vs the exact FixedPointTaxEngine. Both are called the same way,
+	through TaxCalculator.calculateTax, so the difference is the cost of integer cents with 128-bit
+	products and one rounding step. gc.alloc.rate.norm should stay at 0 B/op for both.
+*/
+
+package taxestimator.benchmarks;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FixedPointBenchmark {
+    static final int SAMPLE_SIZE = 1 << 12;
+
+    @Param({ "double", "fixed-point" })
+    public String engine;
+
+    Path dataDirectory;
+    Object calculator;
+
+    final Object[] jurisdictions = new Object[SAMPLE_SIZE];
+    final Object[] filing_statuses = new Object[SAMPLE_SIZE];
+    final long[] taxable_incomes = new long[SAMPLE_SIZE];
+    int next_sample;
+
+    @Setup
+    public void loadRegistry() throws Throwable {
+        dataDirectory = Estimator.unpackFixtures();
+        Object registry = Estimator.loadFixtureRegistry(dataDirectory);
+        calculator = engine.equals("fixed-point") ? (Object) Estimator.NEW_FIXED_POINT_TAX_ENGINE.invokeExact(registry) : registry;
+
+        Object[] all_filing_statuses = Estimator.filingStatuses();
+        Random random = new Random(20190415L);
+        for (int sample = 0; sample < SAMPLE_SIZE; sample++) {
+            // Every other lookup is federal, like a batch record
+            jurisdictions[sample] = Estimator.jurisdiction(sample % 2 == 0 ? "FEDERAL" : Estimator.FIXTURE_STATES[random.nextInt(Estimator.FIXTURE_STATES.length)]);
+            filing_statuses[sample] = all_filing_statuses[random.nextInt(all_filing_statuses.length)];
+            taxable_incomes[sample] = Math.round(55_000 * Math.exp(0.8 * random.nextGaussian()));
+        }
+    }
+
+    @TearDown
+    public void deleteFixtures() throws Exception {
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public double calculateTax() throws Throwable {
+        int sample = next_sample++ & (SAMPLE_SIZE - 1);
+        return (double) Estimator.CALCULATE_TAX.invokeExact(calculator, Estimator.FIXTURE_YEAR, jurisdictions[sample], filing_statuses[sample], taxable_incomes[sample]);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+	A full what-if grid over the fixture jurisdictions: every filing status, $0 to $1,000,000 in $100
+	steps. "per-point" makes one TaxCalculator.calculateTax call per point, as a caller without the sweep
+	API would. "sweep" is one IncomeSweep.run, which walks the brackets forward instead of searching them
+	for every point. One operation is the whole grid.
+*/
+
+package taxestimator.benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncomeSweepBenchmark {
+    static final long FROM_INCOME = 0;
+    static final long TO_INCOME = 1_000_000;
+    static final long STEP = 100;
+
+    Path dataDirectory;
+    Object registry;
+    Object[] jurisdictions;
+    Object[] filing_statuses;
+
+    @Setup
+    public void loadRegistry() throws Throwable {
+        dataDirectory = Estimator.unpackFixtures();
+        registry = Estimator.loadFixtureRegistry(dataDirectory);
+        filing_statuses = Estimator.filingStatuses();
+
+        jurisdictions = new Object[Estimator.FIXTURE_STATES.length + 1];
+        jurisdictions[0] = Estimator.jurisdiction("FEDERAL");
+        for (int state = 0; state < Estimator.FIXTURE_STATES.length; state++) {
+            jurisdictions[state + 1] = Estimator.jurisdiction(Estimator.FIXTURE_STATES[state]);
+        }
+    }
+
+    @TearDown
+    public void deleteFixtures() throws Exception {
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public void perPoint(Blackhole blackhole) throws Throwable {
+        for (Object jurisdiction : jurisdictions) {
+            for (Object filingStatus : filing_statuses) {
+                for (long income = FROM_INCOME; income <= TO_INCOME; income += STEP) {
+                    blackhole.consume((double) Estimator.CALCULATE_TAX.invokeExact(registry, Estimator.FIXTURE_YEAR, jurisdiction, filingStatus, income));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Object sweep() throws Throwable {
+        return (Object) Estimator.RUN_INCOME_SWEEP.invokeExact(registry, Estimator.FIXTURE_YEAR, FROM_INCOME, TO_INCOME, STEP);
+    }
+}
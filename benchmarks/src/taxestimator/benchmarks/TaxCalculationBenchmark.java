@@ -0,0 +1,106 @@
+/*
+	Cost of one calculateFederalTaxes / calculateSelectedStateTaxes call. The benchmark varies the income
+	distribution and the number of brackets in the schedule:
+
+	    federal      8 brackets per filing status
+	    california   9 brackets
+	    new_york     8 brackets
+	    illinois     1 bracket (flat rate)
+	    texas        no income tax
+
+	Every call takes the next (filing status, income) pair from a pre-generated sample. The JIT never
+	sees a constant argument, and the branch predictor cannot learn the bracket sequence.
+*/
+
+package taxestimator.benchmarks;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaxCalculationBenchmark {
+    static final int SAMPLE_SIZE = 1 << 12;
+
+    @Param({ "federal", "california", "new_york", "illinois", "texas" })
+    public String jurisdiction;
+
+    // uniform: 0 - 250,000; lognormal: median 55,000, like a payroll file; high: 500,000 - 5,000,000, all in the top brackets
+    @Param({ "uniform", "lognormal", "high" })
+    public String distribution;
+
+    Path dataDirectory;
+    Object estimator;
+    boolean federal;
+
+    final Object[] filing_statuses = new Object[SAMPLE_SIZE];
+    final long[] taxable_incomes = new long[SAMPLE_SIZE];
+    int next_sample;
+
+    @Setup
+    public void loadBrackets() throws Throwable {
+        dataDirectory = Estimator.unpackFixtures();
+        Path yearDirectory = dataDirectory.resolve(Integer.toString(Estimator.FIXTURE_YEAR));
+
+        estimator = (Object) Estimator.NEW_TAX_ESTIMATOR.invokeExact();
+        federal = jurisdiction.equals("federal");
+        if (federal) {
+            Estimator.LOAD_FEDERAL_BRACKETS.invokeExact(estimator, yearDirectory.resolve("federal.json").toString());
+        }
+        else {
+            Estimator.LOAD_SELECTED_STATE_BRACKETS.invokeExact(estimator, yearDirectory.resolve(jurisdiction + ".json").toString());
+        }
+
+        Object[] all_filing_statuses = Estimator.filingStatuses();
+        Random random = new Random(20190415L);
+        for (int sample = 0; sample < SAMPLE_SIZE; sample++) {
+            filing_statuses[sample] = all_filing_statuses[random.nextInt(all_filing_statuses.length)];
+            taxable_incomes[sample] = sampleIncome(random);
+        }
+    }
+
+    int sampleIncome(Random random) {
+        switch (distribution) {
+            case "uniform":
+                return random.nextInt(250_001);
+            case "lognormal":
+                return (int) Math.min(Integer.MAX_VALUE, Math.round(55_000 * Math.exp(0.8 * random.nextGaussian())));
+            case "high":
+                return 500_000 + random.nextInt(4_500_001);
+            default:
+                throw new IllegalArgumentException("Unknown income distribution " + distribution);
+        }
+    }
+
+    @TearDown
+    public void deleteFixtures() throws Exception {
+        Estimator.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public double calculateTaxes() throws Throwable {
+        int sample = next_sample++ & (SAMPLE_SIZE - 1);
+        if (federal) {
+            return (double) Estimator.CALCULATE_FEDERAL_TAXES.invokeExact(estimator, filing_statuses[sample], taxable_incomes[sample]);
+        }
+        return (double) Estimator.CALCULATE_SELECTED_STATE_TAXES.invokeExact(estimator, filing_statuses[sample], taxable_incomes[sample]);
+    }
+}
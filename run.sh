@@ -1,6 +1,16 @@
 #!/bin/bash
 # TaxEstimator main run script, written by Devan Dutta
 # July 2019
-javac -cp ".:./json-simple-1.1.1.jar" TaxEstimator.java
+javac --add-modules jdk.incubator.vector -cp ".:./json-simple-1.1.1.jar" *.java 2>&1 | grep -v "incubating"
+# Stop on a failed compile instead of running the classes left over from the last one
+if [ "${PIPESTATUS[0]}" -ne 0 ]; then
+    exit 1
+fi
 
-java -cp ".:./json-simple-1.1.1.jar" TaxEstimator
+# Batch mode, and the workers of a sharded batch, can use the Vector API (--columnar); the interactive mode does not need it
+JAVA_OPTS=""
+if [ "$1" = "--batch" ] || [ "$1" = "--shard" ] || [ "$1" = "--worker" ]; then
+    JAVA_OPTS="--add-modules jdk.incubator.vector"
+fi
+
+java $JAVA_OPTS -cp ".:./json-simple-1.1.1.jar" TaxEstimator "$@"